@@ -0,0 +1,142 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.maven.model.FileSet;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.summa.WebToSfMojo.Filter;
+
+/**
+ * Generates the web projects the benchmarks run against
+ * @author bgray
+ **/
+public final class BenchmarkCorpus {
+
+    private BenchmarkCorpus() {}
+
+    /**
+     * A small html page linking to a script and a stylesheet
+     * @param index
+     * @return page content
+     */
+    public static String page(int index) {
+        StringBuilder sb = new StringBuilder()
+                .append("<!doctype html>\n<html>\n<head>\n")
+                .append("    <meta charset=\"utf-8\" />\n")
+                .append("    <title>Page ").append(index).append("</title>\n")
+                .append("    <link rel=\"stylesheet\" href=\"css/app").append(index).append(".css\"></link>\n")
+                .append("    <script src='js/app").append(index).append(".js'></script>\n")
+                .append("</head>\n<body>\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("    <div class=\"row\" ng-include=\"'partials/part").append(i).append(".html'\">")
+                    .append("Lorem ipsum dolor sit amet, consectetur adipiscing elit</div>\n");
+        }
+        return sb.append("</body>\n</html>\n").toString();
+    }
+
+    /**
+     * Minified javascript: a single line of the given size
+     * @param bytes approximate size
+     * @return script content
+     */
+    public static String minifiedScript(int bytes) {
+        String chunk = "function a(b,c){var d=b.split(',');for(var e=0;e<d.length;e++){c(d[e],'partials/part"
+                + "1.html')}return d};";
+        return Strings.repeat(chunk, bytes / chunk.length() + 1) + "\n";
+    }
+
+    /**
+     * Non-compressible binary content
+     * @param bytes size
+     * @return random bytes
+     */
+    public static byte[] binary(int bytes) {
+        byte[] data = new byte[bytes];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Custom literal filters, like the ones flattening angular partials
+     * @param count
+     * @return filters
+     */
+    public static List<Filter> filters(int count) {
+        List<Filter> filters = newArrayList();
+        for (int i = 0; i < count; i++) {
+            filters.add(new Filter("partials/part" + i + ".html", "partialspart" + i));
+        }
+        return filters;
+    }
+
+    /**
+     * Write a web project: pages at the root, scripts and stylesheets in a directory tree of the given depth, and
+     * a few binary files
+     * @param root directory to create the project in
+     * @param pages number of html pages
+     * @param depth depth of the script and stylesheet tree
+     * @param scriptBytes size of each script
+     * @throws IOException
+     */
+    public static void write(File root, int pages, int depth, int scriptBytes) throws IOException {
+        String script = minifiedScript(scriptBytes);
+        for (int i = 0; i < pages; i++) {
+            File dir = root;
+            for (int d = 0; d < depth; d++) {
+                dir = new File(dir, "level" + (i + d) % 3);
+            }
+            write(new File(root, "page" + i + ".html"), page(i));
+            write(new File(dir, "js/app" + i + ".js"), script);
+            write(new File(dir, "css/app" + i + ".css"), ".row{margin:0 auto;padding:4px}\n");
+        }
+        for (int i = 0; i < 4; i++) {
+            File image = new File(root, "img/image" + i + ".bin");
+            Files.createParentDirs(image);
+            Files.write(binary(256 * 1024), image);
+        }
+    }
+
+    /**
+     * @param root
+     * @return file set including everything in the project
+     */
+    public static FileSet fileSet(File root) {
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(root.getAbsolutePath());
+        fileSet.setIncludes(newArrayList("**/*"));
+        return fileSet;
+    }
+
+    /**
+     * Create a mojo configured like a build would
+     * @param webappDir
+     * @param outputDir
+     * @param filters
+     * @param threads
+     * @return the mojo, not executed yet
+     */
+    public static WebToSfMojo mojo(File webappDir, File outputDir, List<Filter> filters, int threads) {
+        WebToSfMojo mojo = new WebToSfMojo();
+        mojo.setLog(new QuietLog());
+        TestUtils.reflectionSet(mojo, "zipFilename", "appzip");
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet(webappDir));
+        TestUtils.reflectionSet(mojo, "outputDir", outputDir);
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(filters));
+        TestUtils.reflectionSet(mojo, "encoding", "UTF-8");
+        TestUtils.reflectionSet(mojo, "threads", threads);
+        return mojo;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package com.summa;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * Whole executions of the mojo against a generated project
+ * @author bgray
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExecuteBenchmark {
+
+    /** Number of pages, each with its own script and stylesheet */
+    @Param({ "500" })
+    public int pages;
+
+    /** Depth of the directory tree holding scripts and stylesheets */
+    @Param({ "6" })
+    public int depth;
+
+    /** Size of each minified script in bytes */
+    @Param({ "65536" })
+    public int scriptBytes;
+
+    /** Number of custom filters */
+    @Param({ "20" })
+    public int filters;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private File webappDir;
+    private File outputDir;
+
+    @Setup
+    public void setup() throws IOException {
+        webappDir = Files.createTempDir();
+        outputDir = Files.createTempDir();
+        BenchmarkCorpus.write(webappDir, pages, depth, scriptBytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(webappDir);
+        FileUtils.deleteDirectory(outputDir);
+    }
+
+    @Benchmark
+    public void execute() throws MojoExecutionException {
+        BenchmarkCorpus.mojo(webappDir, outputDir, BenchmarkCorpus.filters(filters), threads).execute();
+    }
+}
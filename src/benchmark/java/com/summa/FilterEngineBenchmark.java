@@ -0,0 +1,103 @@
+package com.summa;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Cost of applying the base filters plus a number of custom filters to single lines
+ * @author bgray
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterEngineBenchmark {
+
+    /** Number of custom filters on top of the base filters */
+    @Param({ "0", "50" })
+    public int customFilters;
+
+    private FilterEngine engine;
+    private FilterEngine windowEngine;
+    private String[] pageLines;
+    private String minifiedLine;
+
+    @Setup
+    public void setup() {
+        engine = new FilterEngine(Iterables.concat(WebToSfMojo.BASE_FILTERS,
+                BenchmarkCorpus.filters(customFilters)), new QuietLog());
+        WebToSfMojo.Filter window = new WebToSfMojo.Filter("(?s)<script\\s+src=\"([^\"]*)\"\\s*>\\s*</script>",
+                "<apex:includeScript value=\"$1\"/>", true);
+        window.window = 4096;
+        windowEngine = new FilterEngine(Lists.newArrayList(window), new QuietLog());
+        pageLines = Iterables.toArray(Splitter.on('\n').split(BenchmarkCorpus.page(1)), String.class);
+        minifiedLine = Lists.newArrayList(Splitter.on('\n').split(BenchmarkCorpus.minifiedScript(1 << 20))).get(0);
+    }
+
+    @Benchmark
+    public int replacePageLines() {
+        int length = 0;
+        for (String line : pageLines) {
+            length += engine.replace(line).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public String replaceMinifiedLine() {
+        return engine.replace(minifiedLine);
+    }
+
+    @Benchmark
+    public CharSequence replaceMinifiedScriptLine() {
+        return engine.replace(minifiedLine, WebToSfMojo.FileType.TEXT);
+    }
+
+    @Benchmark
+    public long windowMinifiedLine() throws IOException {
+        CountingWriter out = new CountingWriter();
+        Writer w = windowEngine.window(out, WebToSfMojo.FileType.TEXT);
+        w.write(minifiedLine);
+        w.close();
+        return out.count;
+    }
+
+    /**
+     * Counts the characters written to it
+     */
+    private static final class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
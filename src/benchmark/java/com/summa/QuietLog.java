@@ -0,0 +1,44 @@
+package com.summa;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * Log that only reports warnings and errors, so logging doesn't dominate the measurements
+ * @author bgray
+ **/
+public class QuietLog extends SystemStreamLog {
+
+    @Override
+    public boolean isDebugEnabled() {
+        return false;
+    }
+
+    @Override
+    public void debug(CharSequence content) {
+    }
+
+    @Override
+    public void debug(CharSequence content, Throwable error) {
+    }
+
+    @Override
+    public void debug(Throwable error) {
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return false;
+    }
+
+    @Override
+    public void info(CharSequence content) {
+    }
+
+    @Override
+    public void info(CharSequence content, Throwable error) {
+    }
+
+    @Override
+    public void info(Throwable error) {
+    }
+}
@@ -0,0 +1,108 @@
+package com.summa;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Page transformation and archiving of single files of a generated project
+ * @author bgray
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebToSfMojoBenchmark {
+
+    /** Number of pages, each with its own script and stylesheet */
+    @Param({ "200" })
+    public int pages;
+
+    /** Depth of the directory tree holding scripts and stylesheets */
+    @Param({ "6" })
+    public int depth;
+
+    /** Size of each minified script in bytes */
+    @Param({ "65536" })
+    public int scriptBytes;
+
+    private File webappDir;
+    private File outputDir;
+    private File page;
+    private File script;
+    private File largeScript;
+    private File binary;
+    private WebToSfMojo mojo;
+
+    @Setup
+    public void setup() throws IOException, MojoExecutionException {
+        webappDir = Files.createTempDir();
+        outputDir = Files.createTempDir();
+        BenchmarkCorpus.write(webappDir, pages, depth, scriptBytes);
+
+        page = new File(webappDir, "page0.html");
+        script = new File(webappDir, "large.js");
+        Files.write(BenchmarkCorpus.minifiedScript(scriptBytes).getBytes("UTF-8"), script);
+        largeScript = new File(webappDir, "huge.js");
+        Files.write(BenchmarkCorpus.minifiedScript(8 << 20).getBytes("UTF-8"), largeScript);
+        binary = new File(webappDir, "img/image0.bin");
+
+        mojo = BenchmarkCorpus.mojo(webappDir, outputDir, BenchmarkCorpus.filters(20), 1);
+        mojo.compileFilters();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(webappDir);
+        FileUtils.deleteDirectory(outputDir);
+    }
+
+    @Benchmark
+    public void transformHtmlToPage() throws IOException {
+        mojo.transformHtmlToPage(outputDir, page);
+    }
+
+    @Benchmark
+    public void archiveTextStaticResource() throws IOException {
+        archiveText(script);
+    }
+
+    @Benchmark
+    public void archiveTextStaticResourceHugeLine() throws IOException {
+        archiveText(largeScript);
+    }
+
+    @Benchmark
+    public void archiveBinaryStaticResource() throws IOException {
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(ByteStreams.nullOutputStream());
+        mojo.archiveBinaryStaticResource(zos, outputDir, binary);
+        zos.finish();
+    }
+
+    private void archiveText(File file) throws IOException {
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(ByteStreams.nullOutputStream());
+        mojo.archiveTextStaticResource(zos, outputDir, file);
+        zos.finish();
+    }
+}
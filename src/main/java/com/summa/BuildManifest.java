@@ -0,0 +1,205 @@
+package com.summa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.summa.WebToSfMojo.FileType;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Record of the inputs of the last run, used by incremental builds to find out which files changed. Each input is
+ * keyed by its path relative to the webappDir and records its size, modification time, content hash and the
+ * fingerprint of the filters it went through. Safe to fill from several threads.
+ * @author bgray
+ **/
+final class BuildManifest {
+
+    /** Bump whenever the format or the meaning of the recorded data changes */
+    private static final String HEADER = "# webtosf manifest v1";
+
+    private static final char SEPARATOR = '\t';
+
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+    /**
+     * Read the manifest of the previous run
+     * @param file
+     * @return the recorded manifest, or an empty one if there is none or it can't be used
+     * @throws IOException
+     */
+    static BuildManifest read(File file) throws IOException {
+        BuildManifest manifest = new BuildManifest();
+        if (!file.isFile()) {
+            return manifest;
+        }
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        try {
+            if (!HEADER.equals(r.readLine())) {
+                return manifest;
+            }
+            String line;
+            while ((line = r.readLine()) != null) {
+                List<String> parts = newArrayList(Splitter.on(SEPARATOR).split(line));
+                if (parts.size() != 6) {
+                    return new BuildManifest();
+                }
+                Entry entry = new Entry(parts.get(0), FileType.valueOf(parts.get(1)), Long.parseLong(parts.get(2)),
+                        Long.parseLong(parts.get(3)), parts.get(4), parts.get(5));
+                manifest.entries.put(entry.path, entry);
+            }
+            return manifest;
+        } catch (IllegalArgumentException e) {
+            // corrupt or written by another version, start over
+            return new BuildManifest();
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Write this manifest
+     * @param file
+     * @throws IOException
+     */
+    void write(File file) throws IOException {
+        File temp = Utils.tempFile(file);
+        try {
+            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8));
+            try {
+                w.write(HEADER);
+                w.write('\n');
+                for (Entry entry : entries.values()) {
+                    w.write(entry.path + SEPARATOR + entry.type + SEPARATOR + entry.size + SEPARATOR
+                            + entry.lastModified + SEPARATOR + entry.hash + SEPARATOR + entry.fingerprint);
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+            Utils.replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Record the current state of a file, only hashing its content if its size or modification time differ from the
+     * one recorded in the previous manifest
+     * @param previous manifest of the last run
+     * @param file
+     * @param path path of the file relative to the webappDir
+     * @param type
+     * @param fingerprint fingerprint of the filters the file goes through
+     * @return true if the file and its filters are unchanged since the previous run
+     * @throws IOException
+     */
+    boolean track(BuildManifest previous, File file, String path, FileType type, String fingerprint)
+            throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Entry old = previous.entries.get(path);
+        String hash;
+        if (old != null && old.size == size && old.lastModified == lastModified) {
+            hash = old.hash;
+        } else {
+            hash = Files.hash(file, Hashing.sha1()).toString();
+        }
+        Entry entry = new Entry(path, type, size, lastModified, hash, fingerprint);
+        entries.put(path, entry);
+        return entry.sameContent(old);
+    }
+
+    /**
+     * @param previous manifest of the last run
+     * @param path
+     * @return true if the path was recorded as unchanged
+     */
+    boolean isUnchanged(BuildManifest previous, String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.sameContent(previous.entries.get(path));
+    }
+
+    /**
+     * @param previous
+     * @return true if any static resource was added, removed or changed since the previous manifest
+     */
+    boolean resourcesChangedSince(BuildManifest previous) {
+        Map<String, Entry> resources = resources();
+        Map<String, Entry> previousResources = previous.resources();
+        if (!resources.keySet().equals(previousResources.keySet())) {
+            return true;
+        }
+        for (Entry entry : resources.values()) {
+            if (!entry.sameContent(previousResources.get(entry.path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param current
+     * @return paths of pages recorded here that are no longer part of the current manifest
+     */
+    List<String> pagesRemovedIn(BuildManifest current) {
+        List<String> removed = newArrayList();
+        for (Entry entry : entries.values()) {
+            if (entry.type == FileType.HTML && !current.entries.containsKey(entry.path)) {
+                removed.add(entry.path);
+            }
+        }
+        return removed;
+    }
+
+    private Map<String, Entry> resources() {
+        Map<String, Entry> resources = Maps.newHashMap();
+        for (Entry entry : entries.values()) {
+            if (entry.type != FileType.HTML) {
+                resources.put(entry.path, entry);
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * State of one input file
+     */
+    private static final class Entry {
+        private final String path;
+        private final FileType type;
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+        private final String fingerprint;
+
+        private Entry(String path, FileType type, long size, long lastModified, String hash, String fingerprint) {
+            this.path = path;
+            this.type = type;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.fingerprint = fingerprint;
+        }
+
+        private boolean sameContent(Entry other) {
+            return other != null && type == other.type && hash.equals(other.hash)
+                    && Objects.equal(fingerprint, other.fingerprint);
+        }
+    }
+}
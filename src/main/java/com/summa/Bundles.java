@@ -0,0 +1,330 @@
+package com.summa;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.summa.WebToSfMojo.Bundle;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * How the static resources are split into bundles, each written to an archive of its own. A file goes to the first
+ * bundle whose patterns match it, or to the default bundle named after the zipFilename. A bundle whose files add up to
+ * more than the maximum size is split into parts named {@code name_2}, {@code name_3}... Files are assigned in path
+ * order, so the same files always end up in the same bundles. Files may also be renamed inside their archive, to add a
+ * hash of their content, and files whose content duplicates another one's are left out in favour of that canonical
+ * file. Points the {@code URLFor} references written for the default bundle at the bundle and name actually holding
+ * the file. Immutable, safe to share between threads.
+ * @author bgray
+ **/
+final class Bundles {
+
+    private static final String URL_PREFIX = "URLFor($Resource.";
+
+    private final String defaultName;
+    private final Map<String, List<File>> files;
+    private final Map<String, Long> sizes;
+    private final Map<String, String> resources;
+    private final Map<String, String> names;
+    private final Set<String> duplicates;
+    private final String reference;
+    private final String fingerprint;
+
+    private Bundles(String defaultName, Map<String, List<File>> files, Map<String, Long> sizes,
+            Map<String, String> resources, Map<String, String> names, Set<String> duplicates) {
+        this.defaultName = defaultName;
+        this.files = files;
+        this.sizes = sizes;
+        this.resources = resources;
+        this.names = names;
+        this.duplicates = duplicates;
+        this.reference = URL_PREFIX + defaultName + ", '";
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Map<String, String> map : ImmutableList.of(resources, names)) {
+            for (Map.Entry<String, String> entry : new TreeMap<String, String>(map).entrySet()) {
+                hasher.putString(entry.getKey(), Charsets.UTF_8).putByte((byte) 0)
+                        .putString(entry.getValue(), Charsets.UTF_8).putByte((byte) 0);
+            }
+            hasher.putByte((byte) 1);
+        }
+        this.fingerprint = resources.isEmpty() && names.isEmpty() ? "" : hasher.hash().toString();
+    }
+
+    /**
+     * @param name name of the static resource
+     * @return every file served from one static resource, the files themselves are not tracked
+     */
+    static Bundles single(String name) {
+        Map<String, List<File>> files = newLinkedHashMap();
+        files.put(name, Collections.<File>emptyList());
+        return new Bundles(name, files, Collections.<String, Long>emptyMap(), Collections.<String, String>emptyMap(),
+                Collections.<String, String>emptyMap(), Collections.<String>emptySet());
+    }
+
+    /**
+     * @param defaultName name of the bundle holding the files no rule matches
+     * @param rules bundles in the order they are tried
+     * @param maxSize size in bytes of the files above which a bundle is split, 0 to never split. A file larger than
+     *            this gets a part of its own
+     * @param filesByPath static resources keyed by their path relative to the webappDir
+     * @return the files assigned to their bundles
+     */
+    static Bundles partition(String defaultName, List<Bundle> rules, long maxSize, Map<String, File> filesByPath) {
+        List<FileSetMatcher> matchers = newArrayList();
+        for (Bundle rule : rules) {
+            matchers.add(new FileSetMatcher(rule.includes, rule.excludes));
+        }
+        Map<String, List<File>> files = newLinkedHashMap();
+        files.put(defaultName, newArrayList());
+        Map<String, Long> sizes = newHashMap();
+        Map<String, String> resources = newHashMap();
+        Map<String, Part> parts = newHashMap();
+        for (Map.Entry<String, File> entry : new TreeMap<String, File>(filesByPath).entrySet()) {
+            String bundle = defaultName;
+            for (int i = 0; i < matchers.size(); i++) {
+                if (matchers.get(i).matches(entry.getKey())) {
+                    bundle = rules.get(i).name;
+                    break;
+                }
+            }
+            Part part = parts.get(bundle);
+            if (part == null) {
+                part = new Part(bundle);
+                parts.put(bundle, part);
+            }
+            long size = entry.getValue().length();
+            if (maxSize > 0 && part.size > 0 && part.size + size > maxSize) {
+                part.next();
+            }
+            part.size += size;
+            List<File> partFiles = files.get(part.name);
+            if (partFiles == null) {
+                partFiles = newArrayList();
+                files.put(part.name, partFiles);
+            }
+            partFiles.add(entry.getValue());
+            sizes.put(part.name, part.size);
+            resources.put(entry.getKey(), part.name);
+        }
+        return new Bundles(defaultName, files, sizes, resources, Collections.<String, String>emptyMap(),
+                Collections.<String>emptySet());
+    }
+
+    /**
+     * @param names names inside the archive keyed by path relative to the webappDir, for the renamed files
+     * @return the same bundles, with the files renamed
+     */
+    Bundles withNames(Map<String, String> names) {
+        return new Bundles(defaultName, files, sizes, resources, ImmutableMap.copyOf(names), duplicates);
+    }
+
+    /**
+     * @param canonicals paths of the canonical files keyed by the paths of their duplicates, relative to the webappDir.
+     *            The duplicates must not have been assigned to a bundle
+     * @return the same bundles, with the duplicates served from the bundle and name of their canonical file
+     */
+    Bundles withDuplicates(Map<String, String> canonicals) {
+        Map<String, String> dedupedResources = newHashMap(resources);
+        Map<String, String> dedupedNames = newHashMap(names);
+        for (Map.Entry<String, String> entry : canonicals.entrySet()) {
+            String resource = resources.get(entry.getValue());
+            if (resource != null) {
+                dedupedResources.put(entry.getKey(), resource);
+            }
+            dedupedNames.put(entry.getKey(), nameOf(entry.getValue()));
+        }
+        return new Bundles(defaultName, files, sizes, dedupedResources, ImmutableMap.copyOf(dedupedNames),
+                ImmutableSet.copyOf(canonicals.keySet()));
+    }
+
+    /**
+     * @return names of the bundles, the default bundle first
+     */
+    Set<String> names() {
+        return files.keySet();
+    }
+
+    /**
+     * @param name
+     * @return files of the bundle, in the order they are written to its archive
+     */
+    List<File> files(String name) {
+        return files.get(name);
+    }
+
+    /**
+     * @param name
+     * @return size in bytes of the files of the bundle
+     */
+    long size(String name) {
+        Long size = sizes.get(name);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * @return true if the static resources are served from more than one bundle
+     */
+    boolean isSplit() {
+        return files.size() > 1;
+    }
+
+    /**
+     * @return true if references to the default bundle may have to be rewritten
+     */
+    boolean rewritesReferences() {
+        return isSplit() || !names.isEmpty();
+    }
+
+    /**
+     * @param path path relative to the webappDir
+     * @return path of the file inside its archive
+     */
+    String nameOf(String path) {
+        String name = names.get(path);
+        return name == null ? path : name;
+    }
+
+    /**
+     * @param path path relative to the webappDir
+     * @return true if the file is served from the entry of another file of the same content, and has no entry itself
+     */
+    boolean isDuplicate(String path) {
+        return duplicates.contains(path);
+    }
+
+    /**
+     * @return start of the references written for the default bundle, the ones pointed at other bundles or names
+     */
+    String reference() {
+        return reference;
+    }
+
+    /**
+     * @return hash identifying the bundle and name of each file
+     */
+    String fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param path path of a static resource, as referenced from a page
+     * @return name of the bundle holding it, the default bundle if it is not a known file
+     */
+    String resourceOf(String path) {
+        String resource = resources.get(normalize(path));
+        return resource == null ? defaultName : resource;
+    }
+
+    /**
+     * @param path path of a static resource, as referenced from a page
+     * @return visualforce expression of the url of the resource
+     */
+    String urlFor(String path) {
+        String name = names.get(normalize(path));
+        return "{!" + URL_PREFIX + resourceOf(path) + ", '" + (name == null ? path : name) + "')}";
+    }
+
+    /**
+     * Point the references to the default bundle at the bundle and name of each file
+     * @param line
+     * @return the line itself if no reference moved, the rewritten line otherwise
+     */
+    CharSequence rewrite(CharSequence line) {
+        if (!rewritesReferences()) {
+            return line;
+        }
+        StringBuilder sb = null;
+        int copied = 0;
+        for (int at = indexOf(line, reference, 0); at >= 0; at = indexOf(line, reference, at + 1)) {
+            int start = at + reference.length();
+            int end = indexOf(line, "'", start);
+            if (end < 0) {
+                break;
+            }
+            String path = line.subSequence(start, end).toString();
+            String resource = resourceOf(path);
+            String name = names.get(normalize(path));
+            if (!resource.equals(defaultName) || name != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(line.length() + 16);
+                }
+                sb.append(line, copied, at).append(URL_PREFIX).append(resource).append(", '");
+                if (name != null) {
+                    sb.append(name);
+                    copied = end;
+                } else {
+                    copied = start;
+                }
+            }
+        }
+        return sb == null ? line : sb.append(line, copied, line.length());
+    }
+
+    private static String normalize(String path) {
+        int end = path.length();
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '?' || path.charAt(i) == '#') {
+                end = i;
+                break;
+            }
+        }
+        int start = 0;
+        while (start < end) {
+            if (path.startsWith("./", start)) {
+                start += 2;
+            } else if (path.charAt(start) == '/') {
+                start++;
+            } else {
+                break;
+            }
+        }
+        return path.substring(start, end);
+    }
+
+    private static int indexOf(CharSequence s, String target, int from) {
+        int last = s.length() - target.length();
+        for (int i = from; i <= last; i++) {
+            int j = 0;
+            while (j < target.length() && s.charAt(i + j) == target.charAt(j)) {
+                j++;
+            }
+            if (j == target.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The part of a bundle files are currently added to
+     */
+    private static final class Part {
+        private final String bundle;
+        private int number = 1;
+        private String name;
+        private long size;
+
+        private Part(String bundle) {
+            this.bundle = bundle;
+            this.name = bundle;
+        }
+
+        private void next() {
+            number++;
+            name = bundle + "_" + number;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.summa;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Converts the web project like the webtosf goal, but streams the pages, the static resource archives and their
+ * metadata straight into a single zip ready for the Metadata API deploy call, with a generated package.xml. Nothing
+ * is written to the pages and staticResources directories: pages and archives are spooled to a temporary directory
+ * next to the package as they are written, and each archive is stored in the package as is, without being compressed
+ * again. Every archive is built by the goal itself. Incremental runs record their inputs next to the package, so the
+ * manifest of the webtosf goal in the outputDir is left to it.
+ * @author bgray
+ */
+@Mojo(name = "deploy-package", threadSafe = true)
+public class DeployPackageMojo extends WebToSfMojo {
+
+    /**
+     * Zip file to write the deploy package to
+     */
+    @Parameter( property = "webtosf.deployPackage",
+            defaultValue = "${project.build.directory}/${project.build.finalName}-deploy.zip" )
+    private File deployPackage;
+
+    /**
+     * Transformed pages keyed by page name, in name order
+     */
+    private final ConcurrentMap<String, File> pages = new ConcurrentSkipListMap<String, File>();
+
+    /**
+     * Archives written by this execution, keyed by the archive file they replace
+     */
+    private final ConcurrentMap<File, File> archives = newConcurrentMap();
+
+    /**
+     * Directory the pages and archives are spooled to until the package is written
+     */
+    private File spoolDir;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        // held until the package is written, so the manifest matches the package
+        DirectoryLock lock = lockOutputDir();
+        try {
+            this.pages.clear();
+            this.archives.clear();
+            File parent = this.deployPackage.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            this.spoolDir = java.nio.file.Files.createTempDirectory(parent.toPath(),
+                    this.deployPackage.getName() + ".").toFile();
+            try {
+                super.execute();
+                writePackage();
+            } finally {
+                FileUtils.deleteDirectory(this.spoolDir);
+                this.pages.clear();
+                this.archives.clear();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing deploy package " + this.deployPackage, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void transformHtmlToPage(File pagesDir, File htmlFile) throws IOException {
+        String name = getPageName(htmlFile);
+        getLog().info("transforming page file=" + htmlFile + " to=pages/" + name + ".page");
+        File page = new File(this.spoolDir, name + ".page");
+        OutputStream w = new BufferedOutputStream(new FileOutputStream(page));
+        try {
+            writePage(htmlFile, w);
+        } finally {
+            w.close();
+        }
+        this.pages.put(name, page);
+    }
+
+    @Override
+    void createOutputDirs() {
+        // nothing is written to the outputDir
+    }
+
+    @Override
+    File getManifestFile() {
+        return new File(this.deployPackage.getPath() + ".webtosf-manifest");
+    }
+
+    @Override
+    boolean deletePage(File pagesDir, String name) {
+        // the pages in the pagesDir belong to the webtosf goal
+        return false;
+    }
+
+    @Override
+    boolean keepsPage(File pagesDir, File htmlFile) {
+        // every page goes into the package, whatever the previous run left in the pagesDir
+        return false;
+    }
+
+    @Override
+    boolean reusesPreviousOutputs() {
+        // the package needs every archive, which only exist in the spoolDir of the execution writing them
+        return false;
+    }
+
+    @Override
+    ZipArchiveOutputStream openArchive(File archive) throws IOException {
+        File spooled = new File(this.spoolDir, archive.getName());
+        this.archives.put(archive, spooled);
+        return new ZipArchiveOutputStream(spooled);
+    }
+
+    @Override
+    void archiveWritten(File archive) {
+        // the spooled archive is complete once the stream is closed
+    }
+
+    @Override
+    protected void createMetaData(File staticResourcesDir, String name) {
+        // written to the package instead
+    }
+
+    @Override
+    void writeHashes(File hashesFile) {
+        // the archives only exist inside the package, which is itself reproducible
+    }
+
+    /**
+     * Write the pages, the archives, their metadata and the package.xml listing them to the deploy package
+     * @throws IOException
+     */
+    private void writePackage() throws IOException {
+        Map<String, File> resources = newLinkedHashMap();
+        for (String name : getLayout().names()) {
+            File written = this.archives.get(getArchive(name));
+            if (written != null) {
+                resources.put(name, written);
+            }
+        }
+
+        getLog().info("Writing deploy package " + this.deployPackage + " with " + this.pages.size() + " pages and "
+                + resources.size() + " static resources");
+        long time = entryTime();
+        File tempPackage = Utils.tempFile(this.deployPackage);
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(tempPackage);
+        try {
+            putEntry(zos, "package.xml", packageXml(resources).getBytes(Charsets.UTF_8), time);
+            for (Map.Entry<String, File> page : this.pages.entrySet()) {
+                putEntry(zos, "pages/" + page.getKey() + ".page", page.getValue(), time, true);
+                putEntry(zos, "pages/" + page.getKey() + ".page-meta.xml",
+                        pageMetaData(page.getKey()).getBytes(Charsets.UTF_8), time);
+            }
+            for (Map.Entry<String, File> resource : resources.entrySet()) {
+                // an archive of compressed entries, stored as is
+                putEntry(zos, "staticresources/" + resource.getKey() + ".resource", resource.getValue(), time, false);
+                putEntry(zos, "staticresources/" + resource.getKey() + ".resource-meta.xml",
+                        resourceMetaData().getBytes(Charsets.UTF_8), time);
+            }
+        } finally {
+            zos.close();
+        }
+        Utils.replace(tempPackage, this.deployPackage);
+    }
+
+    /**
+     * @param resources names of the static resources in the package
+     * @return package.xml listing the pages and static resources of the package
+     */
+    private String packageXml(Map<String, File> resources) {
+        String lf = lineSeparator();
+        StringBuilder sb = new StringBuilder()
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>").append(lf)
+                .append("<Package xmlns=\"http://soap.sforce.com/2006/04/metadata\">").append(lf);
+        appendType(sb, "ApexPage", this.pages.keySet(), lf);
+        appendType(sb, "StaticResource", resources.keySet(), lf);
+        return sb.append("    <version>").append(API_VERSION).append("</version>").append(lf)
+                .append("</Package>").append(lf)
+                .toString();
+    }
+
+    private static void appendType(StringBuilder sb, String type, Iterable<String> members, String lf) {
+        if (!members.iterator().hasNext()) {
+            return;
+        }
+        sb.append("    <types>").append(lf);
+        for (String member : members) {
+            sb.append("        <members>").append(member).append("</members>").append(lf);
+        }
+        sb.append("        <name>").append(type).append("</name>").append(lf)
+                .append("    </types>").append(lf);
+    }
+
+    private static void putEntry(ZipArchiveOutputStream zos, String path, byte[] content, long time)
+            throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(path);
+        entry.setTime(time);
+        zos.putArchiveEntry(entry);
+        zos.write(content);
+        zos.closeArchiveEntry();
+    }
+
+    /**
+     * Copy a spooled file into the package
+     * @param zos
+     * @param path
+     * @param file
+     * @param time
+     * @param deflate false to store the file as is, its CRC read from the file beforehand
+     * @throws IOException
+     */
+    private static void putEntry(ZipArchiveOutputStream zos, String path, File file, long time, boolean deflate)
+            throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(path);
+        entry.setTime(time);
+        if (!deflate) {
+            entry.setMethod(ZipArchiveEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCrc(Files.hash(file, Hashing.crc32()).padToLong());
+        }
+        zos.putArchiveEntry(entry);
+        Files.copy(file, zos);
+        zos.closeArchiveEntry();
+    }
+}
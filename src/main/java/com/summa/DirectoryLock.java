@@ -0,0 +1,118 @@
+package com.summa;
+
+import java.io.File;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Lock of a directory written by the executions of this build. A directory is held by one thread at a time, together
+ * with everything below it: while it is held, no other thread can lock it, one of its ancestors or one of its
+ * descendants, so nested or overlapping output directories are never written concurrently. Directories that do not
+ * overlap are locked independently. Reentrant: the thread holding a directory may lock it again, unlocking it as many
+ * times.
+ * @author bgray
+ **/
+final class DirectoryLock {
+
+    /** Directories held, keyed by canonical path. Guarded by itself */
+    private static final Map<String, Hold> HELD = Maps.newHashMap();
+
+    private final String path;
+
+    /**
+     * @param path canonical path of the directory
+     */
+    DirectoryLock(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Wait until no other thread holds the directory, an ancestor or a descendant, and take it
+     */
+    void lock() {
+        boolean interrupted = false;
+        synchronized (HELD) {
+            while (!acquire()) {
+                try {
+                    HELD.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the directory was taken, false if another thread holds it, an ancestor or a descendant
+     */
+    boolean tryLock() {
+        synchronized (HELD) {
+            return acquire();
+        }
+    }
+
+    /**
+     * Release the directory, once as many times as it was taken
+     */
+    void unlock() {
+        synchronized (HELD) {
+            Hold hold = HELD.get(path);
+            if (hold == null || hold.owner != Thread.currentThread()) {
+                throw new IllegalMonitorStateException(path + " is not locked by this thread");
+            }
+            if (--hold.count == 0) {
+                HELD.remove(path);
+                HELD.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Take the directory if no other thread holds it, an ancestor or a descendant. The caller synchronizes on HELD
+     * @return true if the directory is now held by the current thread
+     */
+    private boolean acquire() {
+        Thread current = Thread.currentThread();
+        Hold own = HELD.get(path);
+        if (own != null && own.owner == current) {
+            own.count++;
+            return true;
+        }
+        for (Map.Entry<String, Hold> held : HELD.entrySet()) {
+            if (held.getValue().owner != current && overlaps(held.getKey(), path)) {
+                return false;
+            }
+        }
+        HELD.put(path, new Hold(current));
+        return true;
+    }
+
+    /**
+     * @param a canonical path
+     * @param b canonical path
+     * @return true if the paths are the same directory or one is inside the other
+     */
+    static boolean overlaps(String a, String b) {
+        return a.equals(b) || isWithin(a, b) || isWithin(b, a);
+    }
+
+    private static boolean isWithin(String dir, String path) {
+        return path.startsWith(dir.endsWith(File.separator) ? dir : dir + File.separator);
+    }
+
+    /**
+     * Thread holding a directory and how many times it locked it
+     */
+    private static final class Hold {
+        private final Thread owner;
+        private int count = 1;
+
+        private Hold(Thread owner) {
+            this.owner = owner;
+        }
+    }
+}
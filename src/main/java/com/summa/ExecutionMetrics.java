@@ -0,0 +1,330 @@
+package com.summa;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.base.Charsets;
+import com.summa.FilterEngine.FilterStatistics;
+import com.summa.WebToSfMojo.FileType;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Timers and counters collected during one execution: time per phase, files and bytes per {@link FileType}, hits and
+ * time per filter, and the slowest files. Phases running on the workers add up the time of every thread. Safe to
+ * update from several threads.
+ * @author bgray
+ **/
+final class ExecutionMetrics {
+
+    /** Number of slowest files to report */
+    private static final int SLOWEST_FILES = 10;
+
+    /**
+     * Stages of an execution
+     */
+    enum Phase {
+        SCAN("file scan"),
+        TREE_SHAKE("tree shaking"),
+        DEDUPE("deduplication"),
+        CHANGES("change detection"),
+        PAGES("page transformation"),
+        TEXT("text filtering"),
+        ARCHIVE("archive writing"),
+        METADATA("metadata");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private final Map<Phase, AtomicLong> phaseNanos = new EnumMap<Phase, AtomicLong>(Phase.class);
+    private final Map<FileType, AtomicLong> typeFiles = new EnumMap<FileType, AtomicLong>(FileType.class);
+    private final Map<FileType, AtomicLong> typeBytes = new EnumMap<FileType, AtomicLong>(FileType.class);
+    private final PriorityQueue<FileTime> slowest = new PriorityQueue<FileTime>(SLOWEST_FILES + 1,
+            new Comparator<FileTime>() {
+                public int compare(FileTime a, FileTime b) {
+                    return a.nanos < b.nanos ? -1 : a.nanos == b.nanos ? 0 : 1;
+                }
+            });
+    private long elapsed = -1;
+    private List<FilterStatistics> filters = Collections.emptyList();
+    private List<String> unreferenced = Collections.emptyList();
+    private Map<String, String> duplicates = Collections.emptyMap();
+    private long duplicateSourceBytes;
+
+    ExecutionMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new AtomicLong());
+        }
+        for (FileType type : FileType.values()) {
+            typeFiles.put(type, new AtomicLong());
+            typeBytes.put(type, new AtomicLong());
+        }
+    }
+
+    /**
+     * @return start time to pass to {@link #phase} or {@link #file}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time elapsed since start to a phase
+     * @param phase
+     * @param start
+     */
+    void phase(Phase phase, long start) {
+        phaseNanos.get(phase).addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Add time measured elsewhere to a phase
+     * @param phase
+     * @param nanos
+     */
+    void phaseNanos(Phase phase, long nanos) {
+        phaseNanos.get(phase).addAndGet(nanos);
+    }
+
+    /**
+     * Count a processed file, adding the time elapsed since start to its phase
+     * @param phase
+     * @param path
+     * @param type
+     * @param bytes size of the input file
+     * @param start
+     */
+    void file(Phase phase, String path, FileType type, long bytes, long start) {
+        long nanos = System.nanoTime() - start;
+        phaseNanos.get(phase).addAndGet(nanos);
+        typeFiles.get(type).incrementAndGet();
+        typeBytes.get(type).addAndGet(bytes);
+        synchronized (slowest) {
+            slowest.add(new FileTime(path, nanos));
+            if (slowest.size() > SLOWEST_FILES) {
+                slowest.poll();
+            }
+        }
+    }
+
+    /**
+     * Record the files left out because nothing references them
+     * @param paths paths relative to the webappDir
+     */
+    void unreferenced(List<String> paths) {
+        this.unreferenced = paths;
+    }
+
+    /**
+     * Record the files left out because another file holds the same content
+     * @param canonicals paths of the files kept keyed by the paths of their copies, relative to the webappDir
+     * @param sourceBytes size of the source files of the copies, before filtering and compression
+     */
+    void duplicates(Map<String, String> canonicals, long sourceBytes) {
+        this.duplicates = canonicals;
+        this.duplicateSourceBytes = sourceBytes;
+    }
+
+    /**
+     * Stop the clock and take the filter statistics. A filter several engines apply is reported once, with the hits
+     * and time of every engine
+     * @param engines engines the files were filtered with, null for one that was not built
+     */
+    void finish(FilterEngine... engines) {
+        this.elapsed = System.nanoTime() - start;
+        List<FilterStatistics> merged = newArrayList();
+        for (FilterEngine engine : engines) {
+            if (engine == null) {
+                continue;
+            }
+            boolean[] added = new boolean[merged.size()];
+            for (FilterStatistics filter : engine.statistics()) {
+                int same = -1;
+                for (int i = 0; i < added.length && same < 0; i++) {
+                    if (!added[i] && merged.get(i).sameFilter(filter)) {
+                        same = i;
+                    }
+                }
+                if (same < 0) {
+                    merged.add(filter);
+                } else {
+                    merged.set(same, merged.get(same).plus(filter));
+                    added[same] = true;
+                }
+            }
+        }
+        this.filters = merged;
+    }
+
+    /**
+     * Log a summary of the execution
+     * @param log
+     */
+    void logSummary(Log log) {
+        log.info(String.format("webtosf finished in %s", millis(elapsed)));
+        for (Phase phase : Phase.values()) {
+            log.info(String.format("  %-20s %s", phase.label, millis(phaseNanos.get(phase).get())));
+        }
+        for (FileType type : FileType.values()) {
+            log.info(String.format("  %-20s %d files, %d bytes", type, typeFiles.get(type).get(),
+                    typeBytes.get(type).get()));
+        }
+        log.info("  filters (hits, time):");
+        for (FilterStatistics filter : filters) {
+            log.info(String.format("    %d, %s: %s", filter.hits, millis(filter.nanos), filter.token));
+        }
+        log.info("  slowest files:");
+        for (FileTime file : slowestFiles()) {
+            log.info(String.format("    %s: %s", millis(file.nanos), file.path));
+        }
+        if (!unreferenced.isEmpty()) {
+            log.info(String.format("  %d unreferenced files left out", unreferenced.size()));
+        }
+        if (!duplicates.isEmpty()) {
+            log.info(String.format("  %d duplicate files left out, %d source bytes", duplicates.size(),
+                    duplicateSourceBytes));
+        }
+    }
+
+    /**
+     * Write the metrics as JSON
+     * @param file
+     * @throws IOException
+     */
+    void writeJson(File file) throws IOException {
+        File temp = Utils.tempFile(file);
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8));
+            try {
+                w.write("{\n  \"elapsedMillis\": " + toMillis(elapsed) + ",\n  \"phases\": {");
+                String separator = "\n";
+                for (Phase phase : Phase.values()) {
+                    w.write(separator + "    " + quote(phase.name().toLowerCase(Locale.ENGLISH)) + ": {\"millis\": "
+                            + toMillis(phaseNanos.get(phase).get()) + "}");
+                    separator = ",\n";
+                }
+                w.write("\n  },\n  \"fileTypes\": {");
+                separator = "\n";
+                for (FileType type : FileType.values()) {
+                    w.write(separator + "    " + quote(type.name()) + ": {\"files\": " + typeFiles.get(type).get()
+                            + ", \"bytes\": " + typeBytes.get(type).get() + "}");
+                    separator = ",\n";
+                }
+                w.write("\n  },\n  \"filters\": [");
+                separator = "\n";
+                for (FilterStatistics filter : filters) {
+                    w.write(separator + "    {\"token\": " + quote(filter.token) + ", \"regex\": " + filter.regex
+                            + ", \"hits\": " + filter.hits + ", \"millis\": " + toMillis(filter.nanos) + "}");
+                    separator = ",\n";
+                }
+                w.write("\n  ],\n  \"slowestFiles\": [");
+                separator = "\n";
+                for (FileTime fileTime : slowestFiles()) {
+                    w.write(separator + "    {\"path\": " + quote(fileTime.path) + ", \"millis\": "
+                            + toMillis(fileTime.nanos) + "}");
+                    separator = ",\n";
+                }
+                w.write("\n  ],\n  \"unreferencedFiles\": [");
+                separator = "\n";
+                for (String path : unreferenced) {
+                    w.write(separator + "    " + quote(path));
+                    separator = ",\n";
+                }
+                w.write("\n  ],\n  \"duplicateSourceBytes\": " + duplicateSourceBytes + ",\n  \"duplicateFiles\": [");
+                separator = "\n";
+                for (Map.Entry<String, String> duplicate : duplicates.entrySet()) {
+                    w.write(separator + "    {\"path\": " + quote(duplicate.getKey()) + ", \"canonical\": "
+                            + quote(duplicate.getValue()) + "}");
+                    separator = ",\n";
+                }
+                w.write("\n  ]\n}\n");
+            } finally {
+                w.close();
+            }
+            Utils.replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private List<FileTime> slowestFiles() {
+        List<FileTime> files;
+        synchronized (slowest) {
+            files = newArrayList(slowest);
+        }
+        Collections.sort(files, Collections.reverseOrder(slowest.comparator()));
+        return files;
+    }
+
+    private static String millis(long nanos) {
+        return toMillis(nanos) + " ms";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Time spent on one file
+     */
+    private static final class FileTime {
+        private final String path;
+        private final long nanos;
+
+        private FileTime(String path, long nanos) {
+            this.path = path;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.summa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Finds the files of a FileSet with {@link Files#walkFileTree}, matching each path against patterns compiled once and
+ * skipping directories that can't hold an included file, or whose whole content is excluded, without listing them.
+ * Symbolic links are followed, like plexus {@code FileUtils.getFiles} does.
+ * @author bgray
+ **/
+final class FileDiscovery {
+
+    /** Files found ahead of the consumer of a stream */
+    private static final int STREAM_CAPACITY = 1024;
+
+    /** Marks the end of a stream */
+    private static final File END = new File("");
+
+    private final File baseDir;
+    private final FileSetMatcher matcher;
+
+    /**
+     * @param baseDir directory of the FileSet
+     * @param matcher include and exclude patterns of the FileSet
+     */
+    FileDiscovery(File baseDir, FileSetMatcher matcher) {
+        this.baseDir = baseDir;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Receives the files found by a walk
+     */
+    interface Listener {
+        /**
+         * @param file an included file
+         * @return false to stop the walk
+         */
+        boolean found(File file);
+    }
+
+    /**
+     * @return every included file, in the order they were found
+     * @throws IOException
+     */
+    List<File> scan() throws IOException {
+        final List<File> files = newArrayList();
+        walk(new Listener() {
+            public boolean found(File file) {
+                files.add(file);
+                return true;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Walk the directory on a background thread, handing out files as they are found
+     * @return the files, to be closed when no longer needed
+     */
+    Stream stream() {
+        Stream stream = new Stream();
+        stream.walker.start();
+        return stream;
+    }
+
+    /**
+     * Walk the directory, handing every included file to the listener
+     * @param listener
+     * @throws IOException
+     */
+    void walk(final Listener listener) throws IOException {
+        if (!this.baseDir.isDirectory()) {
+            return;
+        }
+        final Path base = this.baseDir.toPath();
+        Files.walkFileTree(base, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (dir.equals(base) || matcher.couldMatchBelow(relative(base, dir))) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory() || !matcher.matches(relative(base, file))) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        return listener.found(file.toFile()) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        if (e instanceof FileSystemLoopException) {
+                            // a link back up the tree, already walked
+                            return FileVisitResult.CONTINUE;
+                        }
+                        throw e;
+                    }
+                });
+    }
+
+    private static String relative(Path base, Path path) {
+        return base.relativize(path).toString();
+    }
+
+    /**
+     * Files found by a walk running on a background thread. {@link #next} throws {@link UncheckedIOException} if the
+     * walk failed
+     */
+    final class Stream implements Iterator<File>, Closeable {
+        private final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(STREAM_CAPACITY);
+        private volatile IOException failure;
+        private volatile long elapsedNanos;
+        private volatile boolean closed;
+        private File next;
+
+        private final Thread walker = new Thread(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    walk(new Listener() {
+                        public boolean found(File file) {
+                            return offer(file);
+                        }
+                    });
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    elapsedNanos = System.nanoTime() - start;
+                    // once closed nobody takes the end mark, it must not wait for room in the queue
+                    if (!closed) {
+                        offer(END);
+                    }
+                }
+            }
+        }, "webtosf-scan");
+
+        private Stream() {
+            walker.setDaemon(true);
+        }
+
+        private boolean offer(File file) {
+            if (closed) {
+                return false;
+            }
+            try {
+                queue.put(file);
+                return true;
+            } catch (InterruptedException e) {
+                // closed
+                return false;
+            }
+        }
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while scanning " + baseDir, e);
+                }
+            }
+            if (next == END) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File file = next;
+            next = null;
+            return file;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return time spent walking, once all files were handed out
+         */
+        long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Stop the walk if it is still running
+         */
+        public void close() {
+            closed = true;
+            queue.clear();
+            walker.interrupt();
+        }
+    }
+}
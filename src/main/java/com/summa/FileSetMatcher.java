@@ -0,0 +1,110 @@
+package com.summa;
+
+import java.io.File;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.MatchPatterns;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Include and exclude patterns of a FileSet, compiled once, matching relative paths the same way plexus
+ * {@code FileUtils.getFiles} does: no includes means everything, and a pattern ending with a separator matches
+ * everything below that directory. Also tells which directories can be skipped without listing them.
+ * @author bgray
+ **/
+final class FileSetMatcher {
+
+    private final MatchPatterns includes;
+    /** Include patterns split into path segments */
+    private final List<String[]> includeSegments = newArrayList();
+    private final MatchPatterns excludes;
+
+    /** Excludes ending with {@code /**}: a directory they match is excluded with everything below it */
+    private final MatchPatterns excludedDirs;
+
+    /**
+     * @param includes include patterns, null or empty to include everything
+     * @param excludes exclude patterns, may be null
+     */
+    FileSetMatcher(List<String> includes, List<String> excludes) {
+        List<String> normalizedIncludes = normalize(includes);
+        if (normalizedIncludes.isEmpty()) {
+            normalizedIncludes.add("**");
+        }
+        this.includes = MatchPatterns.from(normalizedIncludes);
+        for (String include : normalizedIncludes) {
+            this.includeSegments.add(split(include));
+        }
+        List<String> normalizedExcludes = normalize(excludes);
+        this.excludes = MatchPatterns.from(normalizedExcludes);
+        List<String> dirs = newArrayList();
+        for (String exclude : normalizedExcludes) {
+            if (exclude.endsWith(File.separator + "**")) {
+                dirs.add(exclude);
+            }
+        }
+        this.excludedDirs = MatchPatterns.from(dirs);
+    }
+
+    /**
+     * @param path path relative to the FileSet directory
+     * @return true if the path is included and not excluded
+     */
+    boolean matches(String path) {
+        String name = path.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+        return includes.matches(name, true) && !excludes.matches(name, true);
+    }
+
+    /**
+     * @param dir path of a directory relative to the FileSet directory
+     * @return false if nothing below the directory can be included
+     */
+    boolean couldMatchBelow(String dir) {
+        String name = dir.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+        return couldBeIncludedBelow(split(name)) && !excludedDirs.matches(name, true);
+    }
+
+    private boolean couldBeIncludedBelow(String[] dirSegments) {
+        for (String[] pattern : includeSegments) {
+            if (couldMatchBelow(pattern, dirSegments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean couldMatchBelow(String[] pattern, String[] dirSegments) {
+        for (int i = 0; i < dirSegments.length; i++) {
+            if (i < pattern.length && "**".equals(pattern[i])) {
+                return true;
+            }
+            // the last segment of the pattern names the file itself
+            if (i >= pattern.length - 1 || !SelectorUtils.match(pattern[i], dirSegments[i], true)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] split(String path) {
+        return path.split(Pattern.quote(File.separator));
+    }
+
+    private static List<String> normalize(List<String> patterns) {
+        List<String> normalized = newArrayList();
+        if (patterns == null) {
+            return normalized;
+        }
+        for (String pattern : patterns) {
+            String p = pattern.trim().replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if (p.endsWith(File.separator)) {
+                p += "**";
+            }
+            normalized.add(p);
+        }
+        return normalized;
+    }
+}
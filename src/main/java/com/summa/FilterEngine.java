@@ -0,0 +1,702 @@
+package com.summa;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.summa.WebToSfMojo.FileType;
+import com.summa.WebToSfMojo.Filter;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Applies an ordered list of filters to lines of text. Every filter is compiled once: regex filters get a reusable
+ * {@link Matcher} and all literal tokens are folded into one {@link LiteralScanner}, so a line containing none of them
+ * costs a single pass. The same pass looks for a literal every match of each regex filter must contain, extracted from
+ * the regex, and a regex only runs on lines holding its literal. Each {@link FileType} gets its own plan of the filters
+ * declared for it, so a script never goes through the html filters. Filters are still applied one after the other,
+ * exactly like {@code String.matches/replaceAll} and {@code String.contains/replace} would, and a line no filter
+ * changes is returned as is. Filters with a window match across lines instead: they are chained in front of the line
+ * filters and replace every match found in a sliding window of the text, see {@link #window(Writer, FileType)}. The
+ * engine can be shared between threads, each thread gets its own matchers and counters. When the static resources
+ * are split into bundles, the {@code URLFor} references the filters wrote are finally pointed at the bundle holding
+ * each file.
+ * @author bgray
+ **/
+final class FilterEngine {
+
+    private final Log log;
+    private final CompiledFilter[] filters;
+    private final Plan all;
+    private final Plan[] plans;
+    private final int maxTokens;
+    private final Bundles bundles;
+    private final String fingerprint;
+    private final String[] typeFingerprints;
+    private final Queue<State> states = new ConcurrentLinkedQueue<State>();
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Compile the filters
+     * @param filters filters in the order they are applied
+     * @param log log to report replacements to
+     */
+    FilterEngine(Iterable<Filter> filters, Log log) {
+        this(filters, null, log);
+    }
+
+    /**
+     * Compile the filters
+     * @param filters filters in the order they are applied
+     * @param bundles bundles the references to static resources are rewritten for, may be null
+     * @param log log to report replacements to
+     */
+    FilterEngine(Iterable<Filter> filters, Bundles bundles, Log log) {
+        this.log = log;
+        this.bundles = bundles;
+        List<CompiledFilter> compiled = newArrayList();
+        Hasher hasher = Hashing.sha1().newHasher();
+        Hasher[] typeHashers = new Hasher[FileType.values().length];
+        for (int t = 0; t < typeHashers.length; t++) {
+            typeHashers[t] = Hashing.sha1().newHasher();
+        }
+        for (Filter filter : filters) {
+            Set<FileType> types = filter.getFileTypes();
+            int window = filter.window == null ? -1 : filter.window;
+            putFilter(hasher, filter).putString(types.toString(), Charsets.UTF_8).putInt(window);
+            for (FileType type : types) {
+                putFilter(typeHashers[type.ordinal()], filter).putInt(window);
+            }
+            if (filter.window != null) {
+                Pattern pattern = Pattern.compile(filter.isRegex ? filter.token : Pattern.quote(filter.token));
+                compiled.add(new CompiledFilter(filter, pattern, "", types));
+            } else if (filter.isRegex) {
+                compiled.add(new CompiledFilter(filter, Pattern.compile(filter.token), requiredLiteral(filter.token),
+                        types));
+            } else {
+                compiled.add(new CompiledFilter(filter, null, filter.token, types));
+            }
+        }
+        this.filters = compiled.toArray(new CompiledFilter[compiled.size()]);
+        this.all = new Plan(null);
+        this.plans = new Plan[FileType.values().length];
+        int tokens = all.scanner.size();
+        for (FileType type : FileType.values()) {
+            plans[type.ordinal()] = new Plan(type);
+            tokens = Math.max(tokens, plans[type.ordinal()].scanner.size());
+        }
+        this.maxTokens = tokens;
+        if (bundles != null) {
+            hasher.putString(bundles.fingerprint(), Charsets.UTF_8);
+        }
+        this.fingerprint = hasher.hash().toString();
+        this.typeFingerprints = new String[typeHashers.length];
+        for (int t = 0; t < typeHashers.length; t++) {
+            this.typeFingerprints[t] = typeHashers[t].hash().toString();
+        }
+    }
+
+    private static Hasher putFilter(Hasher hasher, Filter filter) {
+        return hasher.putString(filter.token, Charsets.UTF_8).putByte((byte) 0)
+                .putString(filter.getValue(), Charsets.UTF_8).putByte((byte) 0)
+                .putBoolean(filter.isRegex);
+    }
+
+    /**
+     * The longest run of literal characters every match of a regex contains. Only characters outside groups and
+     * character classes count, a character made optional by a quantifier ends the run, and a regex with alternatives,
+     * flags or quoting at the top level has none.
+     * @param regex
+     * @return the literal, empty if none was found
+     */
+    static String requiredLiteral(String regex) {
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        int n = regex.length();
+        while (i < n) {
+            char c = regex.charAt(i);
+            int literal = -1;
+            if (c == '\\') {
+                if (i + 1 == n || "Qxuc0123456789pPkN".indexOf(regex.charAt(i + 1)) >= 0) {
+                    return "";
+                }
+                char escaped = regex.charAt(i + 1);
+                if (!Character.isLetter(escaped)) {
+                    literal = escaped;
+                }
+                i += 2;
+            } else if (c == '(') {
+                if (i + 2 < n && regex.charAt(i + 1) == '?' && "=!<>:".indexOf(regex.charAt(i + 2)) < 0) {
+                    // inline flags, may make the rest case insensitive
+                    return "";
+                }
+                depth++;
+                i++;
+            } else if (c == ')') {
+                depth--;
+                i++;
+            } else if (c == '[') {
+                i = skipClass(regex, i);
+            } else if (c == '|') {
+                if (depth == 0) {
+                    return "";
+                }
+                i++;
+            } else {
+                if (".^$".indexOf(c) < 0) {
+                    literal = c;
+                }
+                i++;
+            }
+
+            char quantifier = i < n ? regex.charAt(i) : 0;
+            boolean optional = quantifier == '?' || quantifier == '*' || quantifier == '{';
+            if (literal >= 0 && depth == 0 && !optional) {
+                run.append((char) literal);
+            }
+            if (literal < 0 || depth > 0 || optional || quantifier == '+') {
+                if (run.length() > longest.length()) {
+                    longest = run.toString();
+                }
+                run.setLength(0);
+            }
+            i = skipQuantifier(regex, i);
+        }
+        return run.length() > longest.length() ? run.toString() : longest;
+    }
+
+    /**
+     * @return index after the character class starting at the index
+     */
+    private static int skipClass(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        int nested = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                nested++;
+            } else if (c == ']') {
+                if (nested == 0) {
+                    return i + 1;
+                }
+                nested--;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return index after the quantifier starting at the index, the index itself if there is none
+     */
+    private static int skipQuantifier(String regex, int start) {
+        int i = start;
+        if (i < regex.length() && regex.charAt(i) == '{') {
+            int end = regex.indexOf('}', i);
+            i = end < 0 ? regex.length() : end + 1;
+        } else if (i < regex.length() && "?*+".indexOf(regex.charAt(i)) >= 0) {
+            i++;
+        } else {
+            return i;
+        }
+        // lazy or possessive
+        if (i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return hash identifying the filters and the order they are applied in
+     */
+    String fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param type type of the file
+     * @return hash identifying the filters applied to the file type and their order, leaving out the bundles the
+     *         references are rewritten for
+     */
+    String fingerprint(FileType type) {
+        return typeFingerprints[type.ordinal()];
+    }
+
+    /**
+     * @param text
+     * @param type type of the file
+     * @return true if a filter applied to the file type may write the text: it appears in the value of one, or the
+     *         value of a regex or window filter refers to the groups it matched
+     */
+    boolean mayWrite(String text, FileType type) {
+        Plan plan = plan(type);
+        for (int[] indexes : new int[][] { plan.filters, plan.windowFilters }) {
+            for (int i : indexes) {
+                CompiledFilter filter = filters[i];
+                if (filter.value.contains(text) || (filter.pattern != null && filter.value.indexOf('$') >= 0)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if there are no filters to apply and no references to rewrite
+     */
+    boolean isEmpty() {
+        return isEmpty(null);
+    }
+
+    /**
+     * @param type type of the file, null for every filter
+     * @return true if there are no filters to apply to the file and no references to rewrite
+     */
+    boolean isEmpty(FileType type) {
+        return plan(type).filters.length == 0 && !hasWindowFilters(type)
+                && (bundles == null || !bundles.rewritesReferences());
+    }
+
+    /**
+     * Tell, by looking for the literals of the filters only, whether filtering a whole text may change it
+     * @param text
+     * @param type type of the file, null for every filter
+     * @return false if no filter can match anywhere in the text and no reference is rewritten, true if one may
+     */
+    boolean mayChange(CharSequence text, FileType type) {
+        Plan plan = plan(type);
+        if (plan.windowFilters.length > 0 || (bundles != null && bundles.rewritesReferences())) {
+            return true;
+        }
+        if (plan.filters.length == 0) {
+            return false;
+        }
+        boolean[] present = this.state.get().present;
+        plan.scanner.scan(text, present);
+        for (int literal : plan.literals) {
+            if (literal < 0 || present[literal]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param type type of the file, null for every filter
+     * @return true if lines of the file go through filters or have references rewritten
+     */
+    boolean hasLineFilters(FileType type) {
+        return plan(type).filters.length > 0 || (bundles != null && bundles.rewritesReferences());
+    }
+
+    /**
+     * @param type type of the file, null for every filter
+     * @return true if filters matching across lines apply to the file
+     */
+    boolean hasWindowFilters(FileType type) {
+        return plan(type).windowFilters.length > 0;
+    }
+
+    /**
+     * Chain the filters matching across lines in front of a writer. Each filter replaces every match of its regex in
+     * the text, like {@code replaceAll} over the whole text would as long as no match is longer than its window, while
+     * holding at most three windows of text. A filter with a window of 0 holds the whole text. Lines are never split
+     * out, the text goes through {@link Matcher#find} in the buffer it was written to. Closing the returned writer
+     * pushes the rest of the text through the chain and closes the writer
+     * @param out writer receiving the filtered text
+     * @param type type of the file, null for every filter
+     * @return writer applying the filters one after the other, out itself if there are none
+     */
+    Writer window(Writer out, FileType type) {
+        int[] windowFilters = plan(type).windowFilters;
+        Writer writer = out;
+        for (int p = windowFilters.length - 1; p >= 0; p--) {
+            writer = new WindowWriter(windowFilters[p], writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Replace a line according to all our filters
+     * @param line
+     * @return the replaced line
+     */
+    String replace(String line) {
+        return replace((CharSequence) line, null).toString();
+    }
+
+    /**
+     * Replace a line according to all our filters, without copying it unless a filter matches
+     * @param line
+     * @return the line itself if no filter matched, the replaced line otherwise
+     */
+    CharSequence replace(CharSequence line) {
+        return replace(line, null);
+    }
+
+    /**
+     * Replace a line according to the filters of a file type, without copying it unless a filter matches
+     * @param line
+     * @param type type of the file the line is from, null for every filter
+     * @return the line itself if no filter matched, the replaced line otherwise
+     */
+    CharSequence replace(CharSequence line, FileType type) {
+        Plan plan = plan(type);
+        State state = this.state.get();
+        boolean[] present = state.present;
+        boolean debug = log.isDebugEnabled();
+        boolean scanned = false;
+        for (int p = 0; p < plan.filters.length; p++) {
+            int i = plan.filters[p];
+            CompiledFilter filter = filters[i];
+            int literal = plan.literals[p];
+            if (literal >= 0 && !scanned) {
+                long start = System.nanoTime();
+                plan.scanner.scan(line, present);
+                state.scans++;
+                state.scanNanos += System.nanoTime() - start;
+                scanned = true;
+            }
+            if (literal >= 0 && !present[literal]) {
+                continue;
+            }
+            if (filter.pattern != null) {
+                long start = System.nanoTime();
+                Matcher matcher = state.matchers[i];
+                if (matcher.reset(line).matches()) {
+                    if (debug) {
+                        log.debug("... replacing regex " + filter.token + " in line " + line);
+                    }
+                    line = matcher.replaceAll(filter.value);
+                    state.hits[i]++;
+                    scanned = false;
+                }
+                state.nanos[i] += System.nanoTime() - start;
+
+            } else {
+                long start = System.nanoTime();
+                if (debug) {
+                    log.debug("... replacing " + filter.token + " in line " + line);
+                }
+                line = line.toString().replace(filter.token, filter.value);
+                state.hits[i]++;
+                state.nanos[i] += System.nanoTime() - start;
+                scanned = false;
+            }
+        }
+        return bundles == null ? line : bundles.rewrite(line);
+    }
+
+    private Plan plan(FileType type) {
+        return type == null ? all : plans[type.ordinal()];
+    }
+
+    /**
+     * Sum up what every thread recorded so far. Regex filters are timed on every line holding their literal, literal
+     * filters only when they replace something; looking for literals is reported by its own entry.
+     * @return hit count and time of each filter in the order they are applied, followed by the literal token scan
+     */
+    List<FilterStatistics> statistics() {
+        long[] hits = new long[filters.length];
+        long[] nanos = new long[filters.length];
+        long scans = 0;
+        long scanNanos = 0;
+        for (State state : states) {
+            for (int i = 0; i < filters.length; i++) {
+                hits[i] += state.hits[i];
+                nanos[i] += state.nanos[i];
+            }
+            scans += state.scans;
+            scanNanos += state.scanNanos;
+        }
+        List<FilterStatistics> statistics = newArrayList();
+        for (int i = 0; i < filters.length; i++) {
+            statistics.add(new FilterStatistics(filters[i].token, filters[i].pattern != null, hits[i], nanos[i]));
+        }
+        statistics.add(new FilterStatistics("(literal token scan)", false, scans, scanNanos));
+        return statistics;
+    }
+
+    /**
+     * Hit count and time spent for one filter
+     */
+    static final class FilterStatistics {
+        final String token;
+        final boolean regex;
+        final long hits;
+        final long nanos;
+
+        private FilterStatistics(String token, boolean regex, long hits, long nanos) {
+            this.token = token;
+            this.regex = regex;
+            this.hits = hits;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @param other statistics of the same filter in another engine
+         * @return the hits and time of both
+         */
+        FilterStatistics plus(FilterStatistics other) {
+            return new FilterStatistics(token, regex, hits + other.hits, nanos + other.nanos);
+        }
+
+        /**
+         * @param other
+         * @return true if the other statistics are for a filter with the same token
+         */
+        boolean sameFilter(FilterStatistics other) {
+            return regex == other.regex && token.equals(other.token);
+        }
+    }
+
+    /**
+     * Per-thread matching state
+     */
+    private final class State {
+        private final Matcher[] matchers = new Matcher[filters.length];
+        private final boolean[] present = new boolean[maxTokens];
+        private final long[] hits = new long[filters.length];
+        private final long[] nanos = new long[filters.length];
+        private long scans;
+        private long scanNanos;
+
+        private State() {
+            for (int i = 0; i < filters.length; i++) {
+                if (filters[i].pattern != null) {
+                    matchers[i] = filters[i].pattern.matcher("");
+                }
+            }
+            states.add(this);
+        }
+    }
+
+    /**
+     * Applies one window filter to the text written to it, writing the result to the next writer. Text is processed
+     * once more than two windows are pending: every match starting before the last window is replaced, and the text up
+     * to there is passed on. The window before the pending text is kept as context for lookbehinds and boundaries, so
+     * anchors only match where they would in the whole text
+     */
+    private final class WindowWriter extends Writer {
+        private final int index;
+        private final CompiledFilter filter;
+        private final Writer next;
+        private final Matcher matcher;
+        private final State state;
+        private char[] buf;
+        private CharBuffer chars;
+        private int length;
+        /** Start of the text not processed yet, what comes before is context */
+        private int begin;
+
+        private WindowWriter(int index, Writer next) {
+            this.index = index;
+            this.filter = filters[index];
+            this.next = next;
+            this.state = FilterEngine.this.state.get();
+            this.matcher = filter.pattern.matcher("");
+            this.matcher.useTransparentBounds(true);
+            this.matcher.useAnchoringBounds(false);
+            this.buf = new char[filter.window > 0 ? Math.min(3 * filter.window, 8192) : 8192];
+            this.chars = CharBuffer.wrap(buf);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (length + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + len));
+                chars = CharBuffer.wrap(buf);
+            }
+            System.arraycopy(cbuf, off, buf, length, len);
+            length += len;
+            if (filter.window > 0 && length - begin > 2 * filter.window) {
+                process(false);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            next.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            process(true);
+            next.close();
+        }
+
+        /**
+         * Replace the matches starting before the last window, all of them at the end of the text
+         */
+        private void process(boolean end) throws IOException {
+            long start = System.nanoTime();
+            chars.limit(length);
+            matcher.reset(chars);
+            matcher.region(begin, length);
+            int safe = end ? length : length - filter.window;
+            int copied = begin;
+            while (matcher.find()) {
+                int at = matcher.start();
+                if (at >= safe && !end) {
+                    break;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("... replacing window " + filter.token + " at " + at);
+                }
+                next.write(buf, copied, at - copied);
+                appendReplacement();
+                copied = matcher.end();
+                state.hits[index]++;
+            }
+            int processed = Math.max(copied, safe);
+            next.write(buf, copied, processed - copied);
+            int context = Math.max(0, processed - filter.window);
+            System.arraycopy(buf, context, buf, 0, length - context);
+            length -= context;
+            begin = processed - context;
+            state.nanos[index] += System.nanoTime() - start;
+        }
+
+        /**
+         * Write the value of the filter for the current match, expanding group references the way
+         * {@link Matcher#appendReplacement} does
+         */
+        private void appendReplacement() throws IOException {
+            String value = filter.value;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    next.write(value.charAt(++i));
+                } else if (c == '$' && i + 1 < value.length()) {
+                    String group;
+                    if (value.charAt(i + 1) == '{') {
+                        int close = value.indexOf('}', i);
+                        if (close < 0) {
+                            throw new IllegalArgumentException("named group reference missing '}' in " + value);
+                        }
+                        group = matcher.group(value.substring(i + 2, close));
+                        i = close;
+                    } else {
+                        int number = value.charAt(++i) - '0';
+                        if (number < 0 || number > 9) {
+                            throw new IllegalArgumentException("illegal group reference in " + value);
+                        }
+                        while (i + 1 < value.length() && Character.isDigit(value.charAt(i + 1))
+                                && number * 10 + value.charAt(i + 1) - '0' <= matcher.groupCount()) {
+                            number = number * 10 + value.charAt(++i) - '0';
+                        }
+                        group = matcher.group(number);
+                    }
+                    if (group != null) {
+                        next.write(group);
+                    }
+                } else {
+                    next.write(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * The filters applied to one type of file, and the scanner looking for their literals
+     */
+    private final class Plan {
+        private final int[] filters;
+        private final int[] windowFilters;
+        /** Index of the literal of each filter in the scanner, -1 for a regex without one */
+        private final int[] literals;
+        private final LiteralScanner scanner;
+
+        private Plan(FileType type) {
+            List<Integer> planned = newArrayList();
+            List<Integer> windowed = newArrayList();
+            List<String> tokens = newArrayList();
+            Map<String, Integer> tokenIndexes = Maps.newHashMap();
+            List<Integer> indexes = newArrayList();
+            CompiledFilter[] compiled = FilterEngine.this.filters;
+            for (int i = 0; i < compiled.length; i++) {
+                if (type != null && !compiled[i].types.contains(type)) {
+                    continue;
+                }
+                if (compiled[i].window >= 0) {
+                    windowed.add(i);
+                    continue;
+                }
+                planned.add(i);
+                String literal = compiled[i].literal;
+                if (compiled[i].pattern != null && literal.isEmpty()) {
+                    indexes.add(-1);
+                    continue;
+                }
+                Integer index = tokenIndexes.get(literal);
+                if (index == null) {
+                    index = tokens.size();
+                    tokens.add(literal);
+                    tokenIndexes.put(literal, index);
+                }
+                indexes.add(index);
+            }
+            this.filters = Ints.toArray(planned);
+            this.windowFilters = Ints.toArray(windowed);
+            this.literals = Ints.toArray(indexes);
+            this.scanner = new LiteralScanner(tokens);
+        }
+    }
+
+    /**
+     * A filter prepared for repeated application
+     */
+    private static final class CompiledFilter {
+        private final String token;
+        private final String value;
+        private final Pattern pattern;
+        /** The token of a literal filter, the literal every match of a regex filter contains */
+        private final String literal;
+        private final Set<FileType> types;
+        /** Size of the window in characters, 0 for the whole text, -1 for a line filter */
+        private final int window;
+
+        private CompiledFilter(Filter filter, Pattern pattern, String literal, Set<FileType> types) {
+            this.token = filter.token;
+            this.window = filter.window == null ? -1 : filter.window;
+            // a window filter always goes through Matcher, which expands groups in the value
+            this.value = this.window >= 0 && !filter.isRegex ? Matcher.quoteReplacement(filter.getValue())
+                    : filter.getValue();
+            this.pattern = pattern;
+            this.literal = literal;
+            this.types = types;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.summa;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.summa.WebToSfMojo.FileType;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Converts html to the body of a Visualforce page in a single pass over the markup, as an alternative to running the
+ * {@link WebToSfMojo#BASE_FILTERS} regular expressions on every line. Tags are recognized wherever they are, several on
+ * a line or spread over several lines, and only the tag being read is held in memory:
+ * <ul>
+ *     <li>doctype, html, head and body tags and the charset meta tag are removed</li>
+ *     <li>title elements are removed with their content</li>
+ *     <li>{@code <script src>} and stylesheet {@code <link href>} become apex:includeScript and apex:stylesheet,
+ *     pointing into the static resource unless the url starts with http</li>
+ * </ul>
+ * The filters of the engine are applied to text, one line at a time, and to attribute values; its filters matching
+ * across lines are applied to the whole document first. Line terminators are normalized to the configured line
+ * separator. Safe to use from several threads.
+ * @author bgray
+ **/
+final class HtmlPageTransformer {
+
+    /** Tags removed from the page, their content is kept */
+    private static final Set<String> WRAPPERS = ImmutableSet.of("html", "head", "body");
+
+    private final FilterEngine engine;
+    private final Bundles bundles;
+    private final Charset charset;
+    private final String lineSeparator;
+    private final int bufferSize;
+
+    /**
+     * @param engine filters to apply to text and attribute values
+     * @param bundles static resources scripts and stylesheets are served from
+     * @param charset encoding of the input and the output
+     * @param lineSeparator written at the end of each line
+     * @param bufferSize size of the read buffer in chars
+     */
+    HtmlPageTransformer(FilterEngine engine, Bundles bundles, Charset charset, String lineSeparator,
+            int bufferSize) {
+        this.engine = engine;
+        this.bundles = bundles;
+        this.charset = charset;
+        this.lineSeparator = lineSeparator;
+        this.bufferSize = Math.max(bufferSize, 64);
+    }
+
+    /**
+     * @return filters applied to text and attribute values
+     */
+    FilterEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Convert the html input into the output. Neither stream is closed
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    void transform(InputStream in, OutputStream out) throws IOException {
+        Reader r = new InputStreamReader(in, charset);
+        if (engine.hasWindowFilters(FileType.HTML)) {
+            // filters matching across lines see the document before it is tokenized
+            StringWriter filtered = new StringWriter();
+            Writer window = engine.window(filtered, FileType.HTML);
+            char[] buf = new char[bufferSize];
+            int len;
+            while ((len = r.read(buf)) != -1) {
+                window.write(buf, 0, len);
+            }
+            window.close();
+            r = new StringReader(filtered.toString());
+        }
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, charset), bufferSize);
+        new Parser(r, w).parse();
+        w.flush();
+    }
+
+    /**
+     * State of the conversion of one document
+     */
+    private final class Parser {
+        private final Reader in;
+        private final Writer out;
+        private final char[] buf = new char[bufferSize];
+        private int pos;
+        private int limit;
+        private final StringBuilder text = new StringBuilder();
+        private boolean lineOpen;
+        private boolean skipLF;
+
+        private Parser(Reader in, Writer out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        private void parse() throws IOException {
+            int c;
+            while ((c = peek(0)) != -1) {
+                if (c == '<' && isMarkupStart(peek(1))) {
+                    flushText();
+                    markup();
+                } else {
+                    pos++;
+                    text((char) c);
+                }
+            }
+            flushText();
+            if (lineOpen) {
+                out.write(lineSeparator);
+            }
+        }
+
+        private boolean isMarkupStart(int c) {
+            return c == '!' || c == '?' || c == '/' || Character.isLetter(c);
+        }
+
+        private void markup() throws IOException {
+            if (peek(1) == '!' && peek(2) == '-' && peek(3) == '-') {
+                comment();
+            } else if (peek(1) == '!' || peek(1) == '?') {
+                String declaration = readUntilClose();
+                if (!declaration.toLowerCase(Locale.ENGLISH).startsWith("<!doctype")) {
+                    write(declaration);
+                }
+            } else {
+                String raw = readUntilClose();
+                if (raw.endsWith(">")) {
+                    tag(new Tag(raw));
+                } else {
+                    // unterminated tag at the end of the document
+                    write(raw);
+                }
+            }
+        }
+
+        private void comment() throws IOException {
+            StringBuilder end = new StringBuilder();
+            int c;
+            while ((c = read()) != -1) {
+                write(String.valueOf((char) c));
+                end.append((char) c);
+                if (end.length() > 3) {
+                    end.deleteCharAt(0);
+                }
+                if ("-->".contentEquals(end)) {
+                    return;
+                }
+            }
+        }
+
+        private void tag(Tag tag) throws IOException {
+            if (WRAPPERS.contains(tag.name)) {
+                return;
+            }
+            if (tag.end) {
+                if (!"link".equals(tag.name)) {
+                    write(filter(tag));
+                }
+                return;
+            }
+            if ("meta".equals(tag.name) && tag.value("charset") != null) {
+                return;
+            }
+            if ("title".equals(tag.name)) {
+                if (!tag.selfClosing) {
+                    rawText("title", false);
+                }
+                return;
+            }
+            if ("script".equals(tag.name) && tag.value("src") != null) {
+                write(apex("includeScript", tag.value("src")));
+                if (!tag.selfClosing) {
+                    rawText("script", false);
+                }
+                return;
+            }
+            if ("link".equals(tag.name) && tag.value("href") != null && isStylesheet(tag.value("rel"))) {
+                write(apex("stylesheet", tag.value("href")));
+                return;
+            }
+            write(filter(tag));
+            if (("script".equals(tag.name) || "style".equals(tag.name)) && !tag.selfClosing) {
+                rawText(tag.name, true);
+            }
+        }
+
+        private boolean isStylesheet(String rel) {
+            return rel == null || rel.toLowerCase(Locale.ENGLISH).contains("stylesheet");
+        }
+
+        private String apex(String component, String url) {
+            String value = engine.replace(url, FileType.HTML).toString();
+            if (!value.startsWith("http")) {
+                value = bundles.urlFor(value);
+            }
+            return "<apex:" + component + " value=\"" + value + "\"></apex:" + component + ">";
+        }
+
+        /**
+         * Apply the filters to the attribute values of a tag
+         */
+        private String filter(Tag tag) {
+            StringBuilder sb = null;
+            int copied = 0;
+            for (Attribute attribute : tag.attributes) {
+                if (attribute.valueStart < 0) {
+                    continue;
+                }
+                CharSequence value = tag.raw.subSequence(attribute.valueStart, attribute.valueEnd);
+                CharSequence replaced = engine.replace(value, FileType.HTML);
+                if (replaced != value) {
+                    if (sb == null) {
+                        sb = new StringBuilder(tag.raw.length() + 16);
+                    }
+                    sb.append(tag.raw, copied, attribute.valueStart).append(replaced);
+                    copied = attribute.valueEnd;
+                }
+            }
+            return sb == null ? tag.raw : sb.append(tag.raw, copied, tag.raw.length()).toString();
+        }
+
+        /**
+         * Read the content of a script, style or title element up to and including its end tag
+         * @param name of the element
+         * @param keep true to write the content, filtered, and the end tag
+         */
+        private void rawText(String name, boolean keep) throws IOException {
+            int c;
+            while ((c = peek(0)) != -1) {
+                if (c == '<' && peek(1) == '/' && isEndTag(name)) {
+                    if (keep) {
+                        flushText();
+                        write(readUntilClose());
+                    } else {
+                        readUntilClose();
+                    }
+                    return;
+                }
+                pos++;
+                if (keep) {
+                    text((char) c);
+                }
+            }
+        }
+
+        private boolean isEndTag(String name) throws IOException {
+            for (int i = 0; i < name.length(); i++) {
+                int c = peek(2 + i);
+                if (c == -1 || Character.toLowerCase((char) c) != name.charAt(i)) {
+                    return false;
+                }
+            }
+            int next = peek(2 + name.length());
+            return next == '>' || next == '/' || (next != -1 && Character.isWhitespace(next));
+        }
+
+        /**
+         * @return everything from the current {@code <} up to and including the matching {@code >}, ignoring any
+         * {@code >} inside quoted attribute values
+         */
+        private String readUntilClose() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            char quote = 0;
+            boolean afterEquals = false;
+            int c;
+            while ((c = read()) != -1) {
+                sb.append((char) c);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '>') {
+                    break;
+                } else if ((c == '"' || c == '\'') && afterEquals) {
+                    quote = (char) c;
+                }
+                if (c == '=') {
+                    afterEquals = true;
+                } else if (!Character.isWhitespace(c)) {
+                    afterEquals = false;
+                }
+            }
+            return sb.toString();
+        }
+
+        private void text(char c) throws IOException {
+            if (c == '\n' || c == '\r') {
+                flushText();
+                write(String.valueOf(c));
+            } else {
+                text.append(c);
+            }
+        }
+
+        private void flushText() throws IOException {
+            if (text.length() > 0) {
+                write(engine.replace(text, FileType.HTML));
+                text.setLength(0);
+            }
+        }
+
+        /**
+         * Write output, normalizing line terminators
+         */
+        private void write(CharSequence s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\n' && skipLF) {
+                    skipLF = false;
+                } else if (c == '\n' || c == '\r') {
+                    out.write(lineSeparator);
+                    lineOpen = false;
+                    skipLF = c == '\r';
+                } else {
+                    out.write(c);
+                    lineOpen = true;
+                    skipLF = false;
+                }
+            }
+        }
+
+        private int read() throws IOException {
+            int c = peek(0);
+            if (c != -1) {
+                pos++;
+            }
+            return c;
+        }
+
+        private int peek(int offset) throws IOException {
+            while (pos + offset >= limit) {
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                int len = in.read(buf, limit, buf.length - limit);
+                if (len == -1) {
+                    return -1;
+                }
+                limit += len;
+            }
+            return buf[pos + offset];
+        }
+    }
+
+    /**
+     * A start or end tag as read from the document
+     */
+    private static final class Tag {
+        private final String raw;
+        private final String name;
+        private final boolean end;
+        private final boolean selfClosing;
+        private final List<Attribute> attributes = newArrayList();
+
+        private Tag(String raw) {
+            this.raw = raw;
+            this.end = raw.startsWith("</");
+            this.selfClosing = raw.endsWith("/>");
+            int i = end ? 2 : 1;
+            int nameStart = i;
+            while (i < raw.length() && isNameChar(raw.charAt(i))) {
+                i++;
+            }
+            this.name = raw.substring(nameStart, i).toLowerCase(Locale.ENGLISH);
+            while (i < raw.length() - 1) {
+                char c = raw.charAt(i);
+                if (Character.isWhitespace(c) || c == '/') {
+                    i++;
+                    continue;
+                }
+                int attributeStart = i;
+                while (i < raw.length() - 1 && !Character.isWhitespace(raw.charAt(i)) && raw.charAt(i) != '='
+                        && raw.charAt(i) != '/') {
+                    i++;
+                }
+                Attribute attribute = new Attribute(raw.substring(attributeStart, i).toLowerCase(Locale.ENGLISH));
+                attributes.add(attribute);
+                int j = skipWhitespace(raw, i);
+                if (j >= raw.length() - 1 || raw.charAt(j) != '=') {
+                    continue;
+                }
+                i = skipWhitespace(raw, j + 1);
+                char quote = raw.charAt(i);
+                if (quote == '"' || quote == '\'') {
+                    int close = raw.indexOf(quote, i + 1);
+                    attribute.valueStart = i + 1;
+                    attribute.valueEnd = close < 0 ? raw.length() - 1 : close;
+                    i = attribute.valueEnd + 1;
+                } else {
+                    attribute.valueStart = i;
+                    while (i < raw.length() - 1 && !Character.isWhitespace(raw.charAt(i))) {
+                        i++;
+                    }
+                    attribute.valueEnd = i;
+                }
+            }
+        }
+
+        /**
+         * @param name lower case attribute name
+         * @return the value of the attribute, empty if it has none, null if the tag doesn't have it
+         */
+        private String value(String name) {
+            for (Attribute attribute : attributes) {
+                if (attribute.name.equals(name)) {
+                    return attribute.valueStart < 0 ? "" : raw.substring(attribute.valueStart, attribute.valueEnd);
+                }
+            }
+            return null;
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_';
+        }
+
+        private static int skipWhitespace(String s, int i) {
+            while (i < s.length() - 1 && Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Attribute of a tag, its value located by offsets in the raw tag
+     */
+    private static final class Attribute {
+        private final String name;
+        private int valueStart = -1;
+        private int valueEnd = -1;
+
+        private Attribute(String name) {
+            this.name = name;
+        }
+    }
+}
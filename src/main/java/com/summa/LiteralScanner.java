@@ -0,0 +1,176 @@
+package com.summa;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Aho-Corasick automaton that finds every occurrence of a fixed set of literal tokens in a single pass over the text.
+ * ASCII transitions are fully precomputed, other characters fall back to the failure links.
+ * @author bgray
+ **/
+final class LiteralScanner {
+
+    private static final int ASCII = 128;
+    private static final int[] NO_OUTPUT = new int[0];
+
+    private final int tokenCount;
+    private final int[] emptyTokens;
+    private final int[][] ascii;
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    private final int[] fail;
+    private final int[][] output;
+
+    /**
+     * Build the automaton
+     * @param tokens literal tokens, identified by their index in this list
+     */
+    LiteralScanner(List<String> tokens) {
+        this.tokenCount = tokens.size();
+
+        // build the trie
+        List<TreeMap<Character, Integer>> trie = newArrayList();
+        List<List<Integer>> outputs = newArrayList();
+        List<Integer> empty = newArrayList();
+        trie.add(new TreeMap<Character, Integer>());
+        outputs.add(Lists.<Integer>newArrayList());
+        for (int t = 0; t < tokens.size(); t++) {
+            String token = tokens.get(t);
+            if (token.isEmpty()) {
+                empty.add(t);
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < token.length(); i++) {
+                Integer next = trie.get(state).get(token.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    outputs.add(Lists.<Integer>newArrayList());
+                    trie.get(state).put(token.charAt(i), next);
+                }
+                state = next;
+            }
+            outputs.get(state).add(t);
+        }
+
+        int size = trie.size();
+        this.emptyTokens = toArray(empty);
+        this.edgeChars = new char[size][];
+        this.edgeTargets = new int[size][];
+        for (int s = 0; s < size; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            edgeChars[s] = new char[edges.size()];
+            edgeTargets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                edgeChars[s][i] = edge.getKey();
+                edgeTargets[s][i] = edge.getValue();
+                i++;
+            }
+        }
+
+        // breadth-first computation of failure links and ASCII transitions
+        this.fail = new int[size];
+        this.ascii = new int[size][ASCII];
+        this.output = new int[size][];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int s = queue[head++];
+            List<Integer> out = outputs.get(s);
+            if (s != 0) {
+                for (int o : output[fail[s]]) {
+                    out.add(o);
+                }
+            }
+            output[s] = out.isEmpty() ? NO_OUTPUT : toArray(out);
+
+            for (int c = 0; c < ASCII; c++) {
+                int target = edge(s, (char) c);
+                if (target >= 0) {
+                    ascii[s][c] = target;
+                } else {
+                    ascii[s][c] = s == 0 ? 0 : ascii[fail[s]][c];
+                }
+            }
+            for (int i = 0; i < edgeChars[s].length; i++) {
+                int child = edgeTargets[s][i];
+                fail[child] = s == 0 ? 0 : next(fail[s], edgeChars[s][i]);
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * @return number of tokens this scanner was built with
+     */
+    int size() {
+        return tokenCount;
+    }
+
+    /**
+     * Scan the text once, flagging each token that occurs in it
+     * @param text text to scan
+     * @param present flags indexed by token, overwritten by this call
+     * @return true if any token was found
+     */
+    boolean scan(CharSequence text, boolean[] present) {
+        Arrays.fill(present, false);
+        int remaining = tokenCount;
+        for (int t : emptyTokens) {
+            present[t] = true;
+            remaining--;
+        }
+        boolean found = emptyTokens.length > 0;
+        int state = 0;
+        for (int i = 0, len = text.length(); i < len && remaining > 0; i++) {
+            state = next(state, text.charAt(i));
+            for (int t : output[state]) {
+                if (!present[t]) {
+                    present[t] = true;
+                    remaining--;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    private int next(int state, char c) {
+        if (c < ASCII) {
+            return ascii[state][c];
+        }
+        while (true) {
+            int target = edge(state, c);
+            if (target >= 0) {
+                return target;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    private int edge(int state, char c) {
+        int i = Arrays.binarySearch(edgeChars[state], c);
+        return i >= 0 ? edgeTargets[state][i] : -1;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
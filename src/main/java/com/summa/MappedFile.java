@@ -0,0 +1,126 @@
+package com.summa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.CRC32;
+
+/**
+ * Reads large files through memory-mapped windows of their {@link FileChannel}, so their content is never read into
+ * heap buffers: checksums are computed straight from the mapped memory, and copies and decoded text go through a
+ * single reused chunk.
+ * @author bgray
+ **/
+final class MappedFile {
+
+    /** Size of the part of the file mapped at a time */
+    private static final long WINDOW = 64L << 20;
+
+    private MappedFile() {}
+
+    /**
+     * Compute the CRC-32 of a file
+     * @param file
+     * @return the checksum
+     * @throws IOException
+     */
+    static long crc(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        visit(file, new Visitor() {
+            public void visit(MappedByteBuffer window) {
+                crc.update(window);
+            }
+        });
+        return crc.getValue();
+    }
+
+    /**
+     * Copy a file to a stream
+     * @param file
+     * @param out stream to copy to, not closed
+     * @param chunk buffer the content goes through on its way to the stream
+     * @throws IOException
+     */
+    static void copy(File file, final OutputStream out, final byte[] chunk) throws IOException {
+        visit(file, new Visitor() {
+            public void visit(MappedByteBuffer window) throws IOException {
+                while (window.hasRemaining()) {
+                    int len = Math.min(chunk.length, window.remaining());
+                    window.get(chunk, 0, len);
+                    out.write(chunk, 0, len);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode a text file to a writer, a mapped window at a time
+     * @param file
+     * @param charset encoding of the file, malformed input is replaced
+     * @param out writer to decode to, not closed
+     * @param chunk buffer the characters go through on their way to the writer
+     * @throws IOException
+     */
+    static void decode(File file, Charset charset, Writer out, char[] chunk) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.wrap(chunk);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long position = 0;
+            boolean last;
+            do {
+                long length = Math.min(WINDOW, size - position);
+                last = position + length == size;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                while (decoder.decode(window, chars, last).isOverflow()) {
+                    drain(chars, chunk, out);
+                }
+                // a character split by the end of the window is decoded from the next one
+                position += window.position();
+            } while (!last);
+            while (decoder.flush(chars).isOverflow()) {
+                drain(chars, chunk, out);
+            }
+            drain(chars, chunk, out);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void drain(CharBuffer chars, char[] chunk, Writer out) throws IOException {
+        out.write(chunk, 0, chars.position());
+        chars.clear();
+    }
+
+    private static void visit(File file, Visitor visitor) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += WINDOW) {
+                visitor.visit(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position)));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Callback for each mapped window of a file
+     */
+    private interface Visitor {
+        void visit(MappedByteBuffer window) throws IOException;
+    }
+}
@@ -0,0 +1,345 @@
+package com.summa;
+
+import java.util.Locale;
+
+/**
+ * Conservative minification of scripts, stylesheets and pages, without parsing them: comments and redundant
+ * whitespace go, everything else is kept as written. Strings, template literals, regular expression literals and the
+ * content of pre, textarea, script and style elements are copied untouched. Line breaks of scripts are kept so
+ * automatic semicolon insertion works the same. Comments starting with {@code /*!} are kept, they usually hold
+ * licenses.
+ * @author bgray
+ **/
+final class Minifier {
+
+    /** Characters a script regular expression literal may follow */
+    private static final String BEFORE_REGEX = "(,=:[!&|?{};+-*%<>~^";
+
+    /** Keywords a script regular expression literal may follow */
+    private static final String[] KEYWORDS_BEFORE_REGEX = { "return", "typeof", "case", "do", "else", "in",
+            "instanceof", "new", "delete", "void", "throw", "yield", "await" };
+
+    /** Script punctuation that needs no whitespace around it */
+    private static final String JS_PUNCTUATION = "{}()[];,=:?&|";
+
+    /** Stylesheet punctuation that needs no whitespace around it, whitespace before a colon starts a selector */
+    private static final String CSS_PUNCTUATION = "{};,>";
+
+    /** Html elements whose content is copied as is */
+    private static final String[] RAW_ELEMENTS = { "pre", "textarea", "script", "style" };
+
+    private Minifier() {}
+
+    /**
+     * @param source a script
+     * @return the script without comments, indentation and blank lines
+     */
+    static String js(String source) {
+        StringBuilder out = new StringBuilder(source.length());
+        int n = source.length();
+        boolean space = false;
+        boolean newline = false;
+        int i = 0;
+        while (i < n) {
+            char c = source.charAt(i);
+            char next = i + 1 < n ? source.charAt(i + 1) : 0;
+            if (c == '/' && next == '/') {
+                int end = source.indexOf('\n', i);
+                i = end < 0 ? n : end;
+                continue;
+            }
+            if (c == '/' && next == '*') {
+                int end = source.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                if (i + 2 < n && source.charAt(i + 2) == '!') {
+                    appendWhitespace(out, space, newline, '/', true);
+                    out.append(source, i, end);
+                    space = newline = false;
+                } else {
+                    space = true;
+                    newline |= source.substring(i, end).indexOf('\n') >= 0;
+                }
+                i = end;
+                continue;
+            }
+            if (c == '\n' || c == '\r') {
+                newline = true;
+                i++;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            appendWhitespace(out, space, newline, c, true);
+            space = newline = false;
+            int end = -1;
+            if (c == '\'' || c == '"' || c == '`') {
+                end = skipString(source, i, c);
+            } else if (c == '/' && isRegexAllowed(out)) {
+                end = skipRegex(source, i);
+            }
+            if (end > i) {
+                out.append(source, i, end);
+                i = end;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param source a stylesheet
+     * @return the stylesheet without comments and redundant whitespace
+     */
+    static String css(String source) {
+        StringBuilder out = new StringBuilder(source.length());
+        int n = source.length();
+        boolean space = false;
+        int i = 0;
+        while (i < n) {
+            char c = source.charAt(i);
+            if (c == '/' && i + 1 < n && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                if (i + 2 < n && source.charAt(i + 2) == '!') {
+                    appendWhitespace(out, space, false, '/', false);
+                    out.append(source, i, end);
+                    space = false;
+                } else {
+                    space = true;
+                }
+                i = end;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            appendWhitespace(out, space, false, c, false);
+            space = false;
+            if (c == '\'' || c == '"') {
+                int end = skipString(source, i, c);
+                out.append(source, i, end);
+                i = end;
+                continue;
+            }
+            if (c == '}' && out.length() > 0 && out.charAt(out.length() - 1) == ';') {
+                out.setLength(out.length() - 1);
+            }
+            out.append(c);
+            i++;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param source html, or the body of a page
+     * @return the html without comments, whitespace runs in text shortened to a single space or line break. Tags,
+     *         with their attribute values, and the content of raw elements are kept as they are
+     */
+    static String html(String source) {
+        StringBuilder out = new StringBuilder(source.length());
+        String lower = source.toLowerCase(Locale.ENGLISH);
+        int n = source.length();
+        int i = 0;
+        while (i < n) {
+            char c = source.charAt(i);
+            if (source.startsWith("<!--", i) && !source.startsWith("<!--[if", i)) {
+                int end = source.indexOf("-->", i + 4);
+                i = end < 0 ? n : end + 3;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                boolean newline = false;
+                while (i < n && Character.isWhitespace(source.charAt(i))) {
+                    newline |= source.charAt(i) == '\n';
+                    i++;
+                }
+                if (out.length() == 0) {
+                    continue;
+                }
+                char last = out.charAt(out.length() - 1);
+                if (last == '\n' || last == ' ') {
+                    if (newline) {
+                        out.setCharAt(out.length() - 1, '\n');
+                    }
+                } else {
+                    out.append(newline ? '\n' : ' ');
+                }
+                continue;
+            }
+            if (c == '<') {
+                int end = skipRawElement(source, lower, i);
+                if (end < 0) {
+                    end = skipTag(source, i);
+                }
+                if (end > i) {
+                    out.append(source, i, end);
+                    i = end;
+                    continue;
+                }
+            }
+            out.append(c);
+            i++;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param source
+     * @param start index of a {@code <}
+     * @return index after the tag starting there, quoted attribute values included, -1 if it does not start a tag
+     */
+    private static int skipTag(String source, int start) {
+        int n = source.length();
+        if (start + 1 >= n) {
+            return -1;
+        }
+        char next = source.charAt(start + 1);
+        if (!Character.isLetter(next) && next != '/' && next != '!' && next != '?') {
+            return -1;
+        }
+        char quote = 0;
+        for (int i = start + 1; i < n; i++) {
+            char c = source.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    private static void appendWhitespace(StringBuilder out, boolean space, boolean newline, char next, boolean js) {
+        if (out.length() == 0 || (!space && !newline)) {
+            return;
+        }
+        char prev = out.charAt(out.length() - 1);
+        if (newline) {
+            out.append('\n');
+        } else if (js ? needsSpace(prev, next) : CSS_PUNCTUATION.indexOf(prev) < 0 && prev != ':'
+                && CSS_PUNCTUATION.indexOf(next) < 0) {
+            out.append(' ');
+        }
+    }
+
+    private static boolean needsSpace(char prev, char next) {
+        if (JS_PUNCTUATION.indexOf(prev) >= 0 || JS_PUNCTUATION.indexOf(next) >= 0) {
+            return false;
+        }
+        return (isWord(prev) && isWord(next))
+                || ((prev == '+' || prev == '-') && (next == '+' || next == '-'))
+                || (prev == '/' && (next == '/' || next == '*'))
+                || (Character.isDigit(prev) && next == '.');
+    }
+
+    private static boolean isWord(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '\\' || c > 127;
+    }
+
+    private static boolean isRegexAllowed(StringBuilder out) {
+        int end = out.length();
+        while (end > 0 && (out.charAt(end - 1) == ' ' || out.charAt(end - 1) == '\n')) {
+            end--;
+        }
+        if (end == 0) {
+            return true;
+        }
+        char prev = out.charAt(end - 1);
+        if (BEFORE_REGEX.indexOf(prev) >= 0) {
+            return true;
+        }
+        if (!Character.isLetter(prev)) {
+            return false;
+        }
+        int start = end;
+        while (start > 0 && isWord(out.charAt(start - 1))) {
+            start--;
+        }
+        String word = out.substring(start, end);
+        for (String keyword : KEYWORDS_BEFORE_REGEX) {
+            if (keyword.equals(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return index after the closing quote, or of the line break ending an unterminated string
+     */
+    private static int skipString(String source, int start, char quote) {
+        int i = start + 1;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else if (c == '\n' && quote != '`') {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return source.length();
+    }
+
+    /**
+     * @return index after the flags of the regular expression literal, -1 if it is not one
+     */
+    private static int skipRegex(String source, int start) {
+        boolean inClass = false;
+        int i = start + 1;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return -1;
+            } else if (c == '\\') {
+                i += 2;
+                continue;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '/' && !inClass) {
+                i++;
+                while (i < source.length() && Character.isLetter(source.charAt(i))) {
+                    i++;
+                }
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index after the end tag of a raw element starting at the index, -1 if none starts there
+     */
+    private static int skipRawElement(String source, String lower, int start) {
+        for (String name : RAW_ELEMENTS) {
+            int after = start + 1 + name.length();
+            if (lower.startsWith(name, start + 1) && after < source.length()
+                    && !Character.isLetterOrDigit(source.charAt(after))) {
+                int end = lower.indexOf("</" + name, after);
+                if (end < 0) {
+                    return source.length();
+                }
+                int close = source.indexOf('>', end);
+                return close < 0 ? source.length() : close + 1;
+            }
+        }
+        return -1;
+    }
+}
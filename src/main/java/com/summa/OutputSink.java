@@ -0,0 +1,60 @@
+package com.summa;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Receives what a {@link WebToSfEngine} renders: pages by name, and static resource entries by bundle and path inside
+ * the archive
+ * @author bgray
+ **/
+public interface OutputSink {
+
+    /**
+     * @param name name of the page
+     * @param content the page, encoded
+     * @throws IOException
+     */
+    void page(String name, byte[] content) throws IOException;
+
+    /**
+     * @param bundle name of the static resource holding the entry
+     * @param path path of the entry inside the archive
+     * @param content the entry, uncompressed
+     * @throws IOException
+     */
+    void resource(String bundle, String path, byte[] content) throws IOException;
+
+    /**
+     * Keeps everything rendered in memory, pages keyed by name and resources keyed by {@code bundle/path}, both in
+     * name order. Safe to use from several threads at once
+     */
+    public static final class Memory implements OutputSink {
+
+        private final Map<String, byte[]> pages = new ConcurrentSkipListMap<String, byte[]>();
+        private final Map<String, byte[]> resources = new ConcurrentSkipListMap<String, byte[]>();
+
+        public void page(String name, byte[] content) {
+            pages.put(name, content);
+        }
+
+        public void resource(String bundle, String path, byte[] content) {
+            resources.put(bundle + "/" + path, content);
+        }
+
+        /**
+         * @return pages rendered so far, keyed by name
+         */
+        public Map<String, byte[]> pages() {
+            return pages;
+        }
+
+        /**
+         * @return resources rendered so far, keyed by {@code bundle/path}
+         */
+        public Map<String, byte[]> resources() {
+            return resources;
+        }
+    }
+}
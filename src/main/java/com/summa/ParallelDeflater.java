@@ -0,0 +1,329 @@
+package com.summa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Function;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Compresses archive entries into raw deflate data off the archive writer's thread. Large files are split into chunks
+ * compressed in parallel, the pigz way: every chunk but the last ends with a sync flush, and each chunk is primed with
+ * the 32 KiB preceding it as dictionary, so the concatenated chunks form one regular deflate stream. Safe to use from
+ * several threads, each thread gets its own {@link Deflater}.
+ * @author bgray
+ **/
+final class ParallelDeflater {
+
+    /** Deflate window, the most a chunk can refer back into the previous one */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final int level;
+    private final int chunkSize;
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level, true);
+        }
+    };
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    /**
+     * @param level compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param chunkSize files larger than this many bytes are compressed in chunks of this size
+     */
+    ParallelDeflater(int level, int chunkSize) {
+        this.level = level;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param file
+     * @return true if the file is large enough to be compressed in chunks
+     */
+    boolean isChunked(File file) {
+        return file.length() > chunkSize;
+    }
+
+    /**
+     * Compress content on the calling thread
+     * @param content
+     * @return the compressed content
+     */
+    Deflated deflate(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        byte[] compressed = deflate(content, 0, content.length, null, true);
+        return new Deflated(crc.getValue(), content.length, newArrayList(compressed));
+    }
+
+    /**
+     * @return stream compressing what is written to it on the calling thread, for content produced piece by piece
+     */
+    DeflatingStream stream() {
+        return new DeflatingStream(level);
+    }
+
+    /**
+     * Compress a file in chunks on the given pool
+     * @param pool
+     * @param file
+     * @return the compressed file, once every chunk is done
+     */
+    ListenableFuture<Deflated> deflateInChunks(ListeningExecutorService pool, final File file) {
+        final long size = file.length();
+        List<ListenableFuture<Chunk>> chunks = newArrayList();
+        for (long position = 0; position < size; position += chunkSize) {
+            final long start = position;
+            final int length = (int) Math.min(chunkSize, size - position);
+            chunks.add(pool.submit(new Callable<Chunk>() {
+                public Chunk call() throws IOException {
+                    return deflateChunk(file, start, length, start + length == size);
+                }
+            }));
+        }
+        return Futures.transform(Futures.allAsList(chunks), new Function<List<Chunk>, Deflated>() {
+            public Deflated apply(List<Chunk> chunks) {
+                long crc = 0;
+                List<byte[]> compressed = newArrayList();
+                for (Chunk chunk : chunks) {
+                    crc = Crc32.combine(crc, chunk.crc, chunk.length);
+                    compressed.add(chunk.compressed);
+                }
+                return new Deflated(crc, size, compressed);
+            }
+        });
+    }
+
+    private Chunk deflateChunk(File file, long start, int length, boolean last) throws IOException {
+        int dictionaryLength = (int) Math.min(DICTIONARY_SIZE, start);
+        byte[] data = new byte[dictionaryLength + length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(start - dictionaryLength);
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, dictionaryLength, length);
+        byte[] dictionary = dictionaryLength == 0 ? null : Arrays.copyOf(data, dictionaryLength);
+        return new Chunk(crc.getValue(), length, deflate(data, dictionaryLength, length, dictionary, last));
+    }
+
+    private byte[] deflate(byte[] data, int offset, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = deflaters.get();
+        byte[] buf = buffers.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data, offset, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } else {
+            // sync flush ends the chunk on a byte boundary without ending the stream
+            int len;
+            do {
+                len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, len);
+            } while (len == buf.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Raw deflate data of an entry, with what the archive needs to know about it
+     */
+    static final class Deflated {
+        final long crc;
+        final long size;
+        final long compressedSize;
+        private final List<byte[]> compressed;
+
+        /**
+         * @param crc CRC-32 of the uncompressed content
+         * @param size size of the uncompressed content
+         * @param compressed raw deflate data
+         * @return compressed content produced earlier
+         */
+        static Deflated of(long crc, long size, byte[] compressed) {
+            return new Deflated(crc, size, newArrayList(compressed));
+        }
+
+        private Deflated(long crc, long size, List<byte[]> compressed) {
+            this.crc = crc;
+            this.size = size;
+            this.compressed = compressed;
+            long compressedSize = 0;
+            for (byte[] chunk : compressed) {
+                compressedSize += chunk.length;
+            }
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * @return stream over the compressed data
+         * @throws IOException
+         */
+        InputStream openStream() throws IOException {
+            List<ByteSource> sources = newArrayList();
+            for (byte[] chunk : compressed) {
+                sources.add(ByteSource.wrap(chunk));
+            }
+            return ByteSource.concat(sources).openStream();
+        }
+    }
+
+    /**
+     * Compresses content as it is written, so only the compressed data is held. {@link #finish} must be called once
+     * everything is written, closing the stream does not finish it
+     */
+    static final class DeflatingStream extends OutputStream {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final byte[] buf = new byte[8192];
+        private long size;
+
+        private DeflatingStream(int level) {
+            this.deflater = new Deflater(level, true);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            crc.update(b, off, len);
+            size += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        }
+
+        /**
+         * @return the compressed content written so far, the stream can't be written to anymore
+         */
+        Deflated finish() {
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            } finally {
+                deflater.end();
+            }
+            return new Deflated(crc.getValue(), size, newArrayList(out.toByteArray()));
+        }
+    }
+
+    /**
+     * One compressed chunk of a file
+     */
+    private static final class Chunk {
+        private final long crc;
+        private final long length;
+        private final byte[] compressed;
+
+        private Chunk(long crc, long length, byte[] compressed) {
+            this.crc = crc;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * CRC-32 of concatenated data from the CRCs of its parts, ported from zlib's crc32_combine
+     */
+    static final class Crc32 {
+
+        private static final int GF2_DIM = 32;
+
+        private Crc32() {}
+
+        /**
+         * @param crc1 CRC-32 of the first part
+         * @param crc2 CRC-32 of the second part
+         * @param length2 length of the second part
+         * @return CRC-32 of both parts one after the other
+         */
+        static long combine(long crc1, long crc2, long length2) {
+            if (length2 <= 0) {
+                return crc1;
+            }
+            long[] even = new long[GF2_DIM];
+            long[] odd = new long[GF2_DIM];
+
+            // operator for one zero bit
+            odd[0] = 0xedb88320L;
+            long row = 1;
+            for (int n = 1; n < GF2_DIM; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+            square(even, odd);
+            square(odd, even);
+
+            // apply length2 zero bytes to crc1, squaring the operator for each bit of length2
+            do {
+                square(even, odd);
+                if ((length2 & 1) != 0) {
+                    crc1 = times(even, crc1);
+                }
+                length2 >>= 1;
+                if (length2 == 0) {
+                    break;
+                }
+                square(odd, even);
+                if ((length2 & 1) != 0) {
+                    crc1 = times(odd, crc1);
+                }
+                length2 >>= 1;
+            } while (length2 != 0);
+            return crc1 ^ crc2;
+        }
+
+        private static long times(long[] matrix, long vector) {
+            long sum = 0;
+            for (int i = 0; vector != 0; i++, vector >>>= 1) {
+                if ((vector & 1) != 0) {
+                    sum ^= matrix[i];
+                }
+            }
+            return sum;
+        }
+
+        private static void square(long[] square, long[] matrix) {
+            for (int n = 0; n < GF2_DIM; n++) {
+                square[n] = times(matrix, matrix[n]);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.summa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * Finds the files of the webappDir that are reachable from the pages by following references: {@code src},
+ * {@code href} and {@code value} attributes and {@code URLFor} paths in html, {@code url(...)} and {@code @import} in
+ * stylesheets, and configurable patterns in scripts, whose first group is the referenced path. A reference is resolved
+ * against the directory of the file holding it, then against the webappDir, and is followed only if it names one of
+ * the files. External urls, data urls and Visualforce expressions are ignored.
+ * @author bgray
+ **/
+final class ReferenceGraph {
+
+    private static final List<Pattern> HTML_PATTERNS = ImmutableList.of(
+            Pattern.compile("(?i)\\b(?:src|href|value)\\s*=\\s*[\"']([^\"'{}]+)[\"']"),
+            Pattern.compile("URLFor\\(\\s*\\$Resource\\.\\w+\\s*,\\s*'([^']+)'"));
+
+    private static final List<Pattern> CSS_PATTERNS = ImmutableList.of(
+            Pattern.compile("(?i)url\\(\\s*[\"']?([^\"')]+?)[\"']?\\s*\\)"),
+            Pattern.compile("(?i)@import\\s+[\"']([^\"']+)[\"']"));
+
+    private final File baseDir;
+    private final Charset charset;
+    private final List<Pattern> scriptPatterns;
+
+    /**
+     * @param baseDir the webappDir
+     * @param charset encoding of the text files
+     * @param scriptPatterns patterns finding references in scripts, the path being the first group
+     */
+    ReferenceGraph(File baseDir, Charset charset, List<Pattern> scriptPatterns) {
+        this.baseDir = baseDir;
+        this.charset = charset;
+        this.scriptPatterns = scriptPatterns;
+    }
+
+    /**
+     * @param files every file of the webappDir
+     * @param roots files reachable whatever references them, such as the pages
+     * @return the roots and every file they reference, directly or not, in the order they were reached
+     * @throws IOException
+     */
+    Set<File> reachable(Collection<File> files, Collection<File> roots) throws IOException {
+        Map<String, File> byPath = byPath(files);
+        Set<File> reached = newLinkedHashSet(roots);
+        Deque<File> pending = new ArrayDeque<File>(roots);
+        while (!pending.isEmpty()) {
+            File file = pending.poll();
+            String path = Utils.getRelativePath(this.baseDir, file);
+            for (String reference : references(file)) {
+                File target = resolve(byPath, path, reference);
+                if (target != null && reached.add(target)) {
+                    pending.add(target);
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * @param files every file of the webappDir
+     * @param from files holding the references
+     * @return the files referenced directly by the given ones, in the order they were found
+     * @throws IOException
+     */
+    Set<File> referenced(Collection<File> files, Collection<File> from) throws IOException {
+        Map<String, File> byPath = byPath(files);
+        Set<File> referenced = newLinkedHashSet();
+        for (File file : from) {
+            String path = Utils.getRelativePath(this.baseDir, file);
+            for (String reference : references(file)) {
+                File target = resolve(byPath, path, reference);
+                if (target != null) {
+                    referenced.add(target);
+                }
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * @param file
+     * @return the references found in the file, none if it is not an html file, a stylesheet or a script
+     * @throws IOException
+     */
+    List<String> references(File file) throws IOException {
+        String extension = WebToSfMojo.getExtension(file);
+        List<Pattern> patterns;
+        if ("html".equals(extension) || "htm".equals(extension)) {
+            // inline styles and scripts reference files too
+            patterns = ImmutableList.<Pattern>builder().addAll(HTML_PATTERNS).addAll(CSS_PATTERNS)
+                    .addAll(this.scriptPatterns).build();
+        } else if ("css".equals(extension)) {
+            patterns = CSS_PATTERNS;
+        } else if ("js".equals(extension)) {
+            patterns = this.scriptPatterns;
+        } else {
+            return ImmutableList.of();
+        }
+        if (patterns.isEmpty()) {
+            return ImmutableList.of();
+        }
+        String content = Files.toString(file, this.charset);
+        List<String> references = newArrayList();
+        for (Pattern pattern : patterns) {
+            Matcher m = pattern.matcher(content);
+            while (m.find()) {
+                if (m.groupCount() > 0 && m.group(1) != null) {
+                    references.add(m.group(1).trim());
+                }
+            }
+        }
+        return references;
+    }
+
+    private Map<String, File> byPath(Collection<File> files) {
+        Map<String, File> byPath = newHashMap();
+        for (File file : files) {
+            byPath.put(Utils.getRelativePath(this.baseDir, file), file);
+        }
+        return byPath;
+    }
+
+    /**
+     * @param byPath files keyed by path relative to the webappDir
+     * @param from path of the file holding the reference
+     * @param reference
+     * @return the file referenced, null if it is external or not one of the files
+     */
+    private static File resolve(Map<String, File> byPath, String from, String reference) {
+        String path = reference;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '?' || path.charAt(i) == '#') {
+                path = path.substring(0, i);
+                break;
+            }
+        }
+        if (path.isEmpty() || path.startsWith("//") || path.matches("[A-Za-z][A-Za-z0-9+.-]*:.*")) {
+            return null;
+        }
+        if (path.startsWith("/")) {
+            return byPath.get(normalize(path.substring(1)));
+        }
+        int slash = from.lastIndexOf('/');
+        File relative = byPath.get(normalize(from.substring(0, slash + 1) + path));
+        return relative != null ? relative : byPath.get(normalize(path));
+    }
+
+    /**
+     * @param path
+     * @return the path without {@code .} and {@code ..} segments and url escapes, null if it leaves the webappDir
+     */
+    private static String normalize(String path) {
+        Deque<String> segments = new ArrayDeque<String>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.removeLast();
+            } else {
+                segments.addLast(decode(segment));
+            }
+        }
+        return Joiner.on('/').join(segments);
+    }
+
+    private static String decode(String segment) {
+        if (segment.indexOf('%') < 0) {
+            return segment;
+        }
+        try {
+            return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException e) {
+            return segment;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
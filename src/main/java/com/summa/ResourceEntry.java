@@ -0,0 +1,67 @@
+package com.summa;
+
+import java.io.File;
+
+import com.summa.ParallelDeflater.Deflated;
+
+/**
+ * A static resource ready to be written to the archive: either content already compressed by a worker, a source file
+ * that is copied as is, or an unchanged entry of the previous archive
+ * @author bgray
+ **/
+final class ResourceEntry {
+
+    /** Path of the entry inside the archive */
+    final String path;
+
+    /** File the entry was read from */
+    final File source;
+
+    /** Compressed content, null when the source file is copied byte-by-byte */
+    final Deflated deflated;
+
+    /** True when the entry is copied, still compressed, from the archive of the previous run */
+    final boolean fromPreviousArchive;
+
+    private ResourceEntry(String path, File source, Deflated deflated, boolean fromPreviousArchive) {
+        this.path = path;
+        this.source = source;
+        this.deflated = deflated;
+        this.fromPreviousArchive = fromPreviousArchive;
+    }
+
+    /**
+     * @return bytes of compressed content held in memory until the entry is written
+     */
+    long heldBytes() {
+        return deflated == null ? 0 : deflated.compressedSize;
+    }
+
+    /**
+     * @param path
+     * @param source
+     * @param deflated
+     * @return entry holding already compressed content
+     */
+    static ResourceEntry deflated(String path, File source, Deflated deflated) {
+        return new ResourceEntry(path, source, deflated, false);
+    }
+
+    /**
+     * @param path
+     * @param source
+     * @return entry copied byte-by-byte from the source file
+     */
+    static ResourceEntry binary(String path, File source) {
+        return new ResourceEntry(path, source, null, false);
+    }
+
+    /**
+     * @param path
+     * @param source
+     * @return entry copied from the archive of the previous run
+     */
+    static ResourceEntry previous(String path, File source) {
+        return new ResourceEntry(path, source, null, true);
+    }
+}
@@ -0,0 +1,385 @@
+package com.summa;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Serves the converted web project over http while developing, without writing anything. A page or a static resource
+ * entry is only converted when it is requested, by an engine compiled once and kept warm, and then kept in a bounded
+ * cache until its file changes. Pages are served at {@code /pages/name.page}, static resource entries at
+ * {@code /staticResources/bundle/path} and {@code /} lists both. Runs until the build is interrupted.
+ * @author bgray
+ */
+@Mojo(name = "serve", threadSafe = true)
+public class ServeMojo extends WebToSfMojo {
+
+    private static final String PAGES = "/pages/";
+
+    private static final String RESOURCES = "/staticResources/";
+
+    /** Content types of the extensions the platform may not know */
+    private static final Map<String, String> CONTENT_TYPES = new ImmutableMap.Builder<String, String>()
+            .put("js", "application/javascript")
+            .put("css", "text/css")
+            .put("html", "text/html")
+            .put("json", "application/json")
+            .put("svg", "image/svg+xml")
+            .put("woff", "font/woff")
+            .put("woff2", "font/woff2")
+            .build();
+
+    /**
+     * Port to serve on, 0 for any free port
+     */
+    @Parameter( property = "webtosf.port", defaultValue = "8180" )
+    private int port = 8180;
+
+    /**
+     * Size in bytes of the converted files kept in memory, the least recently used go first
+     */
+    @Parameter( property = "webtosf.serveCacheSize", defaultValue = "67108864" )
+    private long serveCacheSize = 67108864;
+
+    /**
+     * Files found by the last scan, with the engine converting them
+     */
+    private volatile Site site;
+
+    /**
+     * Converted files keyed by request path
+     */
+    private Cache<String, Rendered> rendered;
+
+    private ListeningExecutorService workers;
+
+    private ExecutorService handlers;
+
+    private HttpServer server;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        try {
+            int bound = start();
+            getLog().info("Serving " + getWebappBaseDir() + " at http://localhost:" + bound
+                    + "/, interrupt the build to stop");
+            new CountDownLatch(1).await();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error serving webappDir on port " + this.port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("Stopped serving " + getWebappBaseDir());
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Scan the webappDir, compile the filters and start the server
+     * @return port the server listens on
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    int start() throws IOException, MojoExecutionException {
+        this.workers = createWorkers();
+        this.rendered = CacheBuilder.newBuilder()
+                .maximumWeight(this.serveCacheSize)
+                .weigher(new Weigher<String, Rendered>() {
+                    public int weigh(String path, Rendered value) {
+                        return value.content.length;
+                    }
+                })
+                .build();
+        scan();
+        this.handlers = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("webtosf-serve-%d").setDaemon(true).build());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), 0);
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        this.server.setExecutor(this.handlers);
+        this.server.start();
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server, if started
+     */
+    void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.server = null;
+        }
+        if (this.handlers != null) {
+            this.handlers.shutdownNow();
+        }
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Convert the file served at a path, unless the cache holds it and its file did not change since. A path no file
+     * is known for, or a file that changed when files are bundled or renamed, makes the webappDir be scanned again, and
+     * so does a page requested once a partial or a directory holding partials changed
+     * @param path path of the request
+     * @return the converted file or the listing, null if nothing is served at the path
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    Rendered render(String path) throws IOException, MojoExecutionException {
+        Site current = this.site;
+        if ("/".equals(path) || path.isEmpty()) {
+            return listing(current);
+        }
+        Rendered cached = this.rendered.getIfPresent(path);
+        if (inlinesPartials() && path.startsWith(PAGES) && current.partialsChanged()) {
+            // the partials inlined into the page changed, the engine is built again with them
+            current = scan();
+        }
+        if (cached != null && cached.isFresh(current.engine)) {
+            return cached;
+        }
+        File file = current.files.get(path);
+        if (file == null || !file.isFile() || (cached != null && plansLayout())) {
+            // added, removed or changed files may move others to another bundle or name
+            current = scan();
+            file = current.files.get(path);
+            if (file == null) {
+                this.rendered.invalidate(path);
+                return null;
+            }
+        }
+        Rendered fresh = convert(current.engine, path, file);
+        this.rendered.put(path, fresh);
+        return fresh;
+    }
+
+    /**
+     * Find the files of the webappDir again and plan their bundles, the engine is built again if they moved
+     * @return the files found
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private synchronized Site scan() throws IOException, MojoExecutionException {
+        File[] files = filesIncludedByConfiguration();
+        WebToSfEngine engine = createEngine(this.workers, Arrays.asList(files));
+        Site scanned = new Site(engine);
+        for (File file : files) {
+            if (isPartial(file)) {
+                // served inlined into the pages, its directory stamped to notice partials added to it
+                scanned.stamp(file);
+                scanned.stamp(file.getParentFile());
+                continue;
+            }
+            if (getFileType(file) == FileType.HTML) {
+                scanned.files.put(PAGES + getPageName(file) + ".page", file);
+            } else {
+                String archivePath = getArchivePath(file);
+                if (engine.layout().isDuplicate(archivePath)) {
+                    // served from the entry of its canonical file
+                    continue;
+                }
+                scanned.files.put(RESOURCES + engine.layout().resourceOf(archivePath) + "/"
+                        + engine.layout().nameOf(archivePath), file);
+            }
+        }
+        getLog().debug("Found " + scanned.files.size() + " files to serve");
+        this.site = scanned;
+        return scanned;
+    }
+
+    /**
+     * @param engine
+     * @param path path the file is served at
+     * @param file
+     * @return the page or the static resource entry generated for the file
+     * @throws IOException
+     */
+    private Rendered convert(WebToSfEngine engine, String path, File file) throws IOException {
+        // stamped before converting, a change made meanwhile is converted on the next request
+        long lastModified = file.lastModified();
+        long length = file.length();
+        OutputSink.Memory sink = new OutputSink.Memory();
+        FileType type = getFileType(file);
+        String charset = "; charset=" + engine.charset().name();
+        if (type == FileType.HTML) {
+            String name = getPageName(file);
+            engine.renderPage(name, file, sink);
+            return new Rendered("text/plain" + charset, sink.pages().get(name), engine, file, lastModified, length);
+        }
+        engine.renderResource(getArchivePath(file), file, sink);
+        byte[] content = sink.resources().values().iterator().next();
+        String contentType = contentType(path);
+        return new Rendered(type == FileType.OTHER ? contentType : contentType + charset, content, engine, file,
+                lastModified, length);
+    }
+
+    /**
+     * @param current
+     * @return page listing every path served
+     */
+    private Rendered listing(Site current) {
+        StringBuilder sb = new StringBuilder("<!doctype html>\n<html><body><ul>\n");
+        for (String path : current.files.keySet()) {
+            String escaped = escape(path);
+            sb.append("<li><a href=\"").append(escaped).append("\">").append(escaped).append("</a></li>\n");
+        }
+        sb.append("</ul></body></html>\n");
+        return new Rendered("text/html; charset=UTF-8", sb.toString().getBytes(Charsets.UTF_8), null, null, 0, 0);
+    }
+
+    /**
+     * @param path
+     * @return the path escaped for an html attribute or text
+     */
+    private static String escape(String path) {
+        return path.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                send(exchange, 405, "text/plain; charset=UTF-8", ("Method not allowed: " + method + "\n"));
+                return;
+            }
+            Rendered response = render(path);
+            if (response == null) {
+                send(exchange, 404, "text/plain; charset=UTF-8", "Not found: " + path + "\n");
+            } else {
+                send(exchange, 200, response.contentType, response.content);
+            }
+        } catch (IOException e) {
+            getLog().error("Error serving " + path, e);
+            send(exchange, 500, "text/plain; charset=UTF-8", "Error serving " + path + ": " + e + "\n");
+        } catch (MojoExecutionException e) {
+            getLog().error("Error serving " + path, e);
+            send(exchange, 500, "text/plain; charset=UTF-8", "Error serving " + path + ": " + e + "\n");
+        } catch (RuntimeException e) {
+            // a broken filter or file must not leave the request without a response
+            getLog().error("Error serving " + path, e);
+            send(exchange, 500, "text/plain; charset=UTF-8", "Error serving " + path + ": " + e + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String message)
+            throws IOException {
+        send(exchange, status, contentType, message.getBytes(Charsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] content)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(status, head ? -1 : content.length);
+        if (!head) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(content);
+            out.close();
+        }
+    }
+
+    /**
+     * @param path
+     * @return content type of a static resource entry, without its charset
+     */
+    private static String contentType(String path) {
+        String extension = WebToSfMojo.getExtension(new File(path));
+        String contentType = CONTENT_TYPES.get(extension);
+        if (contentType == null) {
+            contentType = URLConnection.guessContentTypeFromName(path);
+        }
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    /**
+     * The files served, keyed by request path, and the engine converting them, with the partials it inlines
+     */
+    private static final class Site {
+        private final WebToSfEngine engine;
+        private final Map<String, File> files = new TreeMap<String, File>();
+        private final Map<File, String> partialStamps = newHashMap();
+
+        private Site(WebToSfEngine engine) {
+            this.engine = engine;
+        }
+
+        private void stamp(File file) {
+            this.partialStamps.put(file, stampOf(file));
+        }
+
+        /**
+         * @return true if a partial, or a directory holding partials, changed or went away since the scan
+         */
+        private boolean partialsChanged() {
+            for (Map.Entry<File, String> stamp : this.partialStamps.entrySet()) {
+                if (!stamp.getValue().equals(stampOf(stamp.getKey()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String stampOf(File file) {
+            return file.exists() ? file.lastModified() + "/" + file.length() : "";
+        }
+    }
+
+    /**
+     * A converted file, fresh as long as its file and the engine did not change
+     */
+    static final class Rendered {
+        final String contentType;
+        final byte[] content;
+        private final WebToSfEngine engine;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        private Rendered(String contentType, byte[] content, WebToSfEngine engine, File file, long lastModified,
+                long length) {
+            this.contentType = contentType;
+            this.content = content;
+            this.engine = engine;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        private boolean isFresh(WebToSfEngine current) {
+            return engine == current && file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
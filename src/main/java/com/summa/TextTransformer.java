@@ -0,0 +1,443 @@
+package com.summa;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import com.summa.WebToSfMojo.FileType;
+
+/**
+ * Streams text through a {@link FilterEngine} line by line. Lines are split on the raw bytes and decoded into a
+ * buffer that is reused for every line; lines no filter changed are written out as their original bytes, so they are
+ * never encoded again. Line terminators ({@code \n}, {@code \r} or {@code \r\n}) are normalized to the configured
+ * line separator. Charsets that are not ASCII compatible are decoded before being split into lines. When filters
+ * match across lines, the decoded text streams through them before being split into lines; large files are then
+ * decoded straight from mapped memory. Whatever the path, a line is held for the line filters up to a maximum length,
+ * and the buffers a long line grew are dropped once it is written. Safe to use from several threads, each thread gets
+ * its own buffers.
+ * @author bgray
+ **/
+final class TextTransformer {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    /** Multiple of the buffer size above which the buffers of a thread are dropped once a line is written */
+    private static final int RETAINED_BUFFERS = 4;
+
+    private final FilterEngine engine;
+    private final Charset charset;
+    private final String lineSeparator;
+    private final byte[] lineSeparatorBytes;
+    private final int bufferSize;
+    private final int maxLineLength;
+    private final boolean asciiCompatible;
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * @param engine filters to apply to each line
+     * @param charset encoding of the input and the output
+     * @param lineSeparator written after each line
+     * @param bufferSize size of the read buffer in bytes
+     * @param maxLineLength longest line in characters held for the line filters
+     */
+    TextTransformer(FilterEngine engine, Charset charset, String lineSeparator, int bufferSize, int maxLineLength) {
+        this.engine = engine;
+        this.charset = charset;
+        this.lineSeparator = lineSeparator;
+        this.lineSeparatorBytes = lineSeparator.getBytes(charset);
+        this.bufferSize = bufferSize;
+        this.maxLineLength = maxLineLength;
+        this.asciiCompatible = Arrays.equals("\r\n".getBytes(charset), new byte[] { CR, LF });
+    }
+
+    /**
+     * @return filters applied to each line
+     */
+    FilterEngine engine() {
+        return engine;
+    }
+
+    /**
+     * @return encoding of the input and the output
+     */
+    Charset charset() {
+        return charset;
+    }
+
+    /**
+     * Filter the input into the output, line by line. Neither stream is closed
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    void transform(InputStream in, OutputStream out) throws IOException {
+        transform(in, out, null);
+    }
+
+    /**
+     * Filter the input into the output, line by line, with the filters of a file type. Neither stream is closed
+     * @param in
+     * @param out
+     * @param type type of the file read, null for every filter
+     * @throws IOException
+     */
+    void transform(InputStream in, OutputStream out, FileType type) throws IOException {
+        if (engine.isEmpty(type)) {
+            copy(in, out);
+        } else if (engine.hasWindowFilters(type)) {
+            Reader r = new InputStreamReader(in, charset);
+            Writer w = engine.window(new LineWriter(out, type), type);
+            char[] buf = state.get().text;
+            int len;
+            while ((len = r.read(buf)) != -1) {
+                w.write(buf, 0, len);
+            }
+            w.close();
+        } else if (asciiCompatible) {
+            transformBytes(in, out, type);
+        } else {
+            transformChars(in, out, type);
+        }
+    }
+
+    /**
+     * Filter a file into the output, line by line, with the filters of a file type. The output is not closed
+     * @param file
+     * @param out
+     * @param type type of the file, null for every filter
+     * @param mapped true to decode the file from mapped memory when filters match across lines
+     * @throws IOException
+     */
+    void transform(File file, OutputStream out, FileType type, boolean mapped) throws IOException {
+        if (mapped && engine.hasWindowFilters(type)) {
+            Writer w = engine.window(new LineWriter(out, type), type);
+            MappedFile.decode(file, charset, w, state.get().text);
+            w.close();
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            transform(in, out, type);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = state.get().read;
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    private void transformBytes(InputStream in, OutputStream out, FileType type) throws IOException {
+        State state = this.state.get();
+        byte[] buf = state.read;
+        state.lineLength = 0;
+        boolean skipLF = false;
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            int start = 0;
+            for (int i = 0; i < len; i++) {
+                byte b = buf[i];
+                if (b != LF && b != CR) {
+                    continue;
+                }
+                if (b == LF && skipLF && i == start && state.lineLength == 0) {
+                    // second half of \r\n
+                    skipLF = false;
+                    start = i + 1;
+                    continue;
+                }
+                state.append(buf, start, i - start);
+                writeLine(state, out, type);
+                skipLF = b == CR;
+                start = i + 1;
+            }
+            if (start < len) {
+                skipLF = false;
+                state.append(buf, start, len - start);
+            }
+        }
+        if (state.lineLength > 0) {
+            writeLine(state, out, type);
+        }
+    }
+
+    private void writeLine(State state, OutputStream out, FileType type) throws IOException {
+        CharBuffer chars = state.decode();
+        if (chars.remaining() > maxLineLength) {
+            throw lineTooLong();
+        }
+        CharSequence replaced = engine.replace(chars, type);
+        if (replaced == chars) {
+            out.write(state.line, 0, state.lineLength);
+        } else {
+            ByteBuffer bytes = state.encode(replaced);
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+        out.write(lineSeparatorBytes);
+        state.lineLength = 0;
+        state.release();
+    }
+
+    private void transformChars(InputStream in, OutputStream out, FileType type) throws IOException {
+        Reader r = new InputStreamReader(in, charset);
+        // written through one writer, so an encoding with a byte order mark writes it once
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, charset), bufferSize);
+        char[] buf = state.get().text;
+        StringBuilder line = new StringBuilder();
+        boolean pending = false;
+        boolean skipLF = false;
+        int len;
+        while ((len = r.read(buf)) != -1) {
+            int start = 0;
+            for (int i = 0; i < len; i++) {
+                char c = buf[i];
+                if (c != LF && c != CR) {
+                    continue;
+                }
+                if (c == LF && skipLF && i == start && !pending) {
+                    // second half of \r\n
+                    skipLF = false;
+                    start = i + 1;
+                    continue;
+                }
+                appendLine(line, buf, start, i - start);
+                w.write(engine.replace(line, type).toString());
+                w.write(lineSeparator);
+                line.setLength(0);
+                pending = false;
+                skipLF = c == CR;
+                start = i + 1;
+            }
+            if (start < len) {
+                skipLF = false;
+                appendLine(line, buf, start, len - start);
+                pending = true;
+            }
+        }
+        if (pending) {
+            w.write(engine.replace(line, type).toString());
+            w.write(lineSeparator);
+        }
+        w.flush();
+    }
+
+    private void appendLine(StringBuilder line, char[] buf, int offset, int length) throws IOException {
+        if (line.length() + length > maxLineLength) {
+            throw lineTooLong();
+        }
+        line.append(buf, offset, length);
+    }
+
+    private IOException lineTooLong() {
+        return new IOException("Line longer than maxLineLength=" + maxLineLength
+                + " characters, raise it or give the filters matching in the line a window");
+    }
+
+    /**
+     * Splits the text written to it into lines, filters them and writes them encoded, each followed by the line
+     * separator. A line longer than maxLineLength fails the transformation, unless no line filter applies: the line is
+     * then written out in parts as it comes. Closing it writes the last line, the stream is not closed
+     */
+    private final class LineWriter extends Writer {
+        private final OutputStream out;
+        private final FileType type;
+        private final boolean lineFilters;
+        private final State state = TextTransformer.this.state.get();
+        private char[] line = new char[bufferSize];
+        private CharBuffer lineChars = CharBuffer.wrap(line);
+        private int lineLength;
+        private boolean partWritten;
+        private boolean skipLF;
+
+        private LineWriter(OutputStream out, FileType type) {
+            this.out = out;
+            this.type = type;
+            this.lineFilters = engine.hasLineFilters(type);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = cbuf[i];
+                if (c != LF && c != CR) {
+                    continue;
+                }
+                if (c == LF && skipLF && i == start && lineLength == 0) {
+                    // second half of \r\n
+                    skipLF = false;
+                    start = i + 1;
+                    continue;
+                }
+                append(cbuf, start, i - start);
+                writeLine();
+                skipLF = c == CR;
+                start = i + 1;
+            }
+            if (start < end) {
+                skipLF = false;
+                append(cbuf, start, end - start);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (lineLength > 0 || partWritten) {
+                writeLine();
+            }
+        }
+
+        private void append(char[] cbuf, int off, int len) throws IOException {
+            if (lineFilters && lineLength + len > maxLineLength) {
+                throw lineTooLong();
+            }
+            if (lineLength + len > line.length) {
+                if (!lineFilters && lineLength > 0) {
+                    writePart();
+                }
+                if (lineLength + len > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+                    lineChars = CharBuffer.wrap(line);
+                }
+            }
+            System.arraycopy(cbuf, off, line, lineLength, len);
+            lineLength += len;
+        }
+
+        /**
+         * Write the start of a line no filter changes, keeping a high surrogate for the rest of the line
+         * @throws IOException
+         */
+        private void writePart() throws IOException {
+            int kept = Character.isHighSurrogate(line[lineLength - 1]) ? 1 : 0;
+            lineChars.limit(lineLength - kept);
+            ByteBuffer bytes = state.encode(lineChars);
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            partWritten = true;
+            line[0] = line[lineLength - 1];
+            lineLength = kept;
+        }
+
+        private void writeLine() throws IOException {
+            lineChars.limit(lineLength);
+            ByteBuffer bytes = state.encode(engine.replace(lineChars, type));
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            out.write(lineSeparatorBytes);
+            lineLength = 0;
+            partWritten = false;
+            state.release();
+        }
+    }
+
+    /**
+     * Buffers reused by one thread
+     */
+    private final class State {
+        private final byte[] read = new byte[bufferSize];
+        private final char[] text = new char[bufferSize];
+        private final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        /** Longest line in bytes: a longer one holds more than maxLineLength characters */
+        private final long maxLineBytes = (long) maxLineLength * (long) Math.ceil(encoder.maxBytesPerChar());
+        private byte[] line = new byte[bufferSize];
+        private int lineLength;
+        private CharBuffer chars = CharBuffer.allocate(bufferSize);
+        private ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+
+        private void append(byte[] buf, int offset, int length) throws IOException {
+            if (lineLength + length > maxLineBytes) {
+                throw lineTooLong();
+            }
+            if (lineLength + length > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+            }
+            System.arraycopy(buf, offset, line, lineLength, length);
+            lineLength += length;
+        }
+
+        private CharBuffer decode() throws CharacterCodingException {
+            int needed = (int) Math.ceil(lineLength * (double) decoder.maxCharsPerByte());
+            if (chars.capacity() < needed) {
+                chars = CharBuffer.allocate(needed);
+            }
+            chars.clear();
+            decoder.reset();
+            ByteBuffer in = ByteBuffer.wrap(line, 0, lineLength);
+            check(decoder.decode(in, chars, true));
+            check(decoder.flush(chars));
+            chars.flip();
+            return chars;
+        }
+
+        private ByteBuffer encode(CharSequence text) throws CharacterCodingException {
+            int needed = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < needed) {
+                bytes = ByteBuffer.allocate(needed);
+            }
+            bytes.clear();
+            encoder.reset();
+            check(encoder.encode(CharBuffer.wrap(text), bytes, true));
+            check(encoder.flush(bytes));
+            bytes.flip();
+            return bytes;
+        }
+
+        /**
+         * Drop the buffers a long line grew, so a thread does not keep them for the rest of the build
+         */
+        private void release() {
+            int retained = RETAINED_BUFFERS * bufferSize;
+            if (line.length > retained) {
+                line = new byte[bufferSize];
+            }
+            if (chars.capacity() > retained) {
+                chars = CharBuffer.allocate(bufferSize);
+            }
+            if (bytes.capacity() > retained) {
+                bytes = ByteBuffer.allocate(bufferSize);
+            }
+        }
+
+        private void check(CoderResult result) throws CharacterCodingException {
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.summa;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.summa.ParallelDeflater.Deflated;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * On-disk cache of compressed archive entries, shared by every module and build using the same directory. Entries are
+ * keyed by the hash of the input content and the fingerprint of everything that went into producing them (filters,
+ * encoding, compression level), so identical vendor files processed by different projects are filtered and compressed
+ * only once. Entries are written to a temporary file and renamed into place, so concurrent builds never see partial
+ * entries; eviction removes the least recently used entries once the cache outgrows its maximum size, holding a lock so
+ * only one build evicts at a time. Safe to use from several threads and processes.
+ * @author bgray
+ **/
+final class TransformCache {
+
+    /** Start of every entry file, bump the version whenever the format changes */
+    private static final int MAGIC = 0x57545331;
+
+    /** Magic, CRC-32 and size of the uncompressed content */
+    private static final int HEADER_LENGTH = 4 + 8 + 8;
+
+    private static final String LOCK_FILENAME = ".lock";
+
+    private final File dir;
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param dir directory holding the cache, created if missing
+     * @param maxSize size in bytes above which the least recently used entries are evicted
+     */
+    TransformCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param fingerprint of everything besides the content that determines the cached output
+     * @param content input content
+     * @return key of the output of the content
+     */
+    static String key(String fingerprint, byte[] content) {
+        return Hashing.sha1().newHasher()
+                .putString(fingerprint, Charsets.UTF_8)
+                .putByte((byte) 0)
+                .putBytes(content)
+                .hash().toString();
+    }
+
+    /**
+     * @param fingerprint of everything besides the content that determines the cached output
+     * @param file input file, hashed as it is read
+     * @return key of the output of the file's content
+     * @throws IOException
+     */
+    static String key(String fingerprint, File file) throws IOException {
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putString(fingerprint, Charsets.UTF_8)
+                .putByte((byte) 0);
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteStreams.copy(in, Funnels.asOutputStream(hasher));
+        } finally {
+            in.close();
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @param key
+     * @return the cached entry, or null if there is none
+     */
+    Deflated get(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                long length = file.length();
+                if (length < HEADER_LENGTH || in.readInt() != MAGIC) {
+                    throw new IOException("Corrupt cache entry " + file);
+                }
+                long crc = in.readLong();
+                long size = in.readLong();
+                byte[] compressed = new byte[(int) (length - HEADER_LENGTH)];
+                in.readFully(compressed);
+                file.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return Deflated.of(crc, size, compressed);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // evicted meanwhile, or written by another version
+            file.delete();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Store an entry. Failing to do so only costs the next build a miss
+     * @param key
+     * @param deflated
+     */
+    void put(String key, Deflated deflated) {
+        File file = file(key);
+        File temp = null;
+        try {
+            file.getParentFile().mkdirs();
+            temp = File.createTempFile(key, ".tmp", file.getParentFile());
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(deflated.crc);
+                out.writeLong(deflated.size);
+                InputStream in = deflated.openStream();
+                try {
+                    ByteStreams.copy(in, out);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is back under its maximum size. Does nothing if another
+     * build is already evicting
+     * @throws IOException
+     */
+    void evict() throws IOException {
+        dir.mkdirs();
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILENAME), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().tryLock();
+            if (lock == null) {
+                return;
+            }
+            try {
+                List<File> entries = entries();
+                long size = 0;
+                for (File entry : entries) {
+                    size += entry.length();
+                }
+                if (size <= maxSize) {
+                    return;
+                }
+                final long[] lastModified = new long[entries.size()];
+                List<Integer> order = newArrayList();
+                for (int i = 0; i < entries.size(); i++) {
+                    lastModified[i] = entries.get(i).lastModified();
+                    order.add(i);
+                }
+                Collections.sort(order, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        return Long.compare(lastModified[a], lastModified[b]);
+                    }
+                });
+                for (int i : order) {
+                    if (size <= maxSize) {
+                        break;
+                    }
+                    File entry = entries.get(i);
+                    long length = entry.length();
+                    if (entry.delete()) {
+                        size -= length;
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockFile.close();
+        }
+    }
+
+    /**
+     * @return number of lookups that found an entry
+     */
+    long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that found nothing
+     */
+    long misses() {
+        return misses.get();
+    }
+
+    private List<File> entries() {
+        List<File> entries = newArrayList();
+        File[] prefixes = dir.listFiles();
+        if (prefixes == null) {
+            return entries;
+        }
+        for (File prefix : prefixes) {
+            File[] files = prefix.isDirectory() ? prefix.listFiles() : null;
+            if (files != null) {
+                entries.addAll(Arrays.asList(files));
+            }
+        }
+        return entries;
+    }
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+}
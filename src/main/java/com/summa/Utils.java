@@ -2,12 +2,16 @@ package com.summa;
 
 import static com.google.common.collect.Iterables.transform;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.ZipOutputStream;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
@@ -15,6 +19,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
 
 /**
  * Utilities
@@ -65,20 +70,116 @@ public final class Utils {
     }
 
     /**
-     * Close output stream, converting IOExceptions into MojoExecutionExceptions
-     * @param outputStream
+     * Close a stream or archive, converting IOExceptions into MojoExecutionExceptions
+     * @param closeable
      * @throws MojoExecutionException
      */
-    public static void close(ZipOutputStream outputStream) throws MojoExecutionException {
-        if (outputStream != null) {
+    public static void close(Closeable closeable) throws MojoExecutionException {
+        if (closeable != null) {
             try {
-                outputStream.close();
+                closeable.close();
             } catch (IOException e) {
                 throw new MojoExecutionException("Error executing mojo", e);
             }
         }
     }
 
+    /**
+     * Move a file over another one, replacing it
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    public static void replace(File from, File to) throws IOException {
+        try {
+            java.nio.file.Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Create an empty temporary file next to a file, to write it completely before replacing the file with it
+     * @param file
+     * @return a new file in the directory of the file, no other thread or process gets the same one
+     * @throws IOException
+     */
+    public static File tempFile(File file) throws IOException {
+        return File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Write a file through a temporary file, so readers see either the previous or the new content
+     * @param content
+     * @param file
+     * @param charset
+     * @throws IOException
+     */
+    public static void write(CharSequence content, File file, Charset charset) throws IOException {
+        File temp = tempFile(file);
+        try {
+            Files.write(content, temp, charset);
+            replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Write a file through a temporary file, unless it already holds the content, so unchanged outputs keep their time
+     * @param content
+     * @param file
+     * @param charset
+     * @return true if the file was written
+     * @throws IOException
+     */
+    public static boolean writeIfChanged(CharSequence content, File file, Charset charset) throws IOException {
+        String text = content.toString();
+        if (file.isFile() && file.length() == text.getBytes(charset).length
+                && text.equals(Files.toString(file, charset))) {
+            return false;
+        }
+        write(text, file, charset);
+        return true;
+    }
+
+    /**
+     * Look for text in a file, reading it a buffer at a time
+     * @param file
+     * @param charset
+     * @param text
+     * @return true if the file's content contains the text
+     * @throws IOException
+     */
+    static boolean contains(File file, Charset charset, String text) throws IOException {
+        Reader reader = Files.newReader(file, charset);
+        try {
+            StringBuilder window = new StringBuilder();
+            char[] buffer = new char[8192];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                window.append(buffer, 0, read);
+                if (window.indexOf(text) >= 0) {
+                    return true;
+                }
+                // keep what may be the start of a match going on in the next buffer
+                window.delete(0, Math.max(0, window.length() - text.length() + 1));
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param dir
+     * @return the lock excluding every other execution of this build writing to the directory, whatever path it is
+     * given by, or to a directory inside or around it
+     * @throws IOException
+     */
+    static DirectoryLock lockFor(File dir) throws IOException {
+        return new DirectoryLock(dir.getCanonicalPath());
+    }
+
     //// BG - I have no idea what these do ////
 
     public static String cleanName(String name) {
@@ -0,0 +1,335 @@
+package com.summa;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.summa.WebToSfMojo.FileType;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * Converts the web project once, like the webtosf goal, then keeps watching the webappDir and re-syncs the outputs
+ * whenever files change, until the build is interrupted. The compiled filters and the list of files stay in memory:
+ * only the pages of changed html files are transformed again, and the archive is rebuilt copying the unchanged entries
+ * without recompressing them. Bursts of changes, like a save-all or a checkout, are batched into one sync.
+ * @author bgray
+ */
+@Mojo(name = "watch", threadSafe = true)
+public class WatchMojo extends WebToSfMojo {
+
+    /**
+     * Milliseconds without further changes to wait for before syncing a burst of changes
+     */
+    @Parameter( property = "webtosf.debounce", defaultValue = "50" )
+    private int debounce = 50;
+
+    /**
+     * Files of the webappDir in the order they were found, keyed by archive path
+     */
+    private final Map<String, File> index = newLinkedHashMap();
+
+    /**
+     * Paths changed in the batch being synced, null during the initial conversion
+     */
+    private Set<String> changed;
+
+    private final Map<WatchKey, Path> watchedDirs = newHashMap();
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        this.changed = null;
+        super.execute();
+
+        ListeningExecutorService workers = createWorkers();
+        WatchService watcher = null;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            register(watcher, getWebappBaseDir().toPath());
+            getLog().info("Watching " + getWebappBaseDir() + " for changes, interrupt the build to stop");
+            watch(watcher, workers);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error watching webappDir", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("Stopped watching " + getWebappBaseDir());
+        } catch (ClosedWatchServiceException e) {
+            getLog().info("Stopped watching " + getWebappBaseDir());
+        } finally {
+            workers.shutdownNow();
+            Utils.close(watcher);
+        }
+    }
+
+    @Override
+    protected File[] filesIncludedByConfiguration() throws MojoExecutionException {
+        File[] files = super.filesIncludedByConfiguration();
+        this.index.clear();
+        for (File file : files) {
+            this.index.put(getArchivePath(file), file);
+        }
+        return files;
+    }
+
+    @Override
+    Iterator<File> streamFilesIncludedByConfiguration() throws MojoExecutionException {
+        // the whole list is needed up front to index it
+        return Arrays.asList(filesIncludedByConfiguration()).iterator();
+    }
+
+    @Override
+    boolean reusesPreviousOutputs() {
+        return this.changed != null || super.reusesPreviousOutputs();
+    }
+
+    @Override
+    boolean isUnchanged(String path) {
+        return this.changed != null ? !this.changed.contains(path) : super.isUnchanged(path);
+    }
+
+    /**
+     * Wait for changes and sync them, batch after batch
+     * @param watcher
+     * @param workers
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void watch(WatchService watcher, ListeningExecutorService workers)
+            throws IOException, InterruptedException {
+        FileSetMatcher matcher = getFileSetMatcher();
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key = watcher.take();
+            Set<Path> paths = newLinkedHashSet();
+            boolean overflow = false;
+            do {
+                overflow |= collect(watcher, key, paths);
+            } while ((key = watcher.poll(this.debounce, TimeUnit.MILLISECONDS)) != null);
+
+            long start = System.nanoTime();
+            DirectoryLock lock = null;
+            try {
+                // other modules of a parallel build may write to the same outputDir meanwhile
+                lock = lockOutputDir();
+                int synced = overflow ? resync(workers) : sync(workers, matcher, paths);
+                if (synced > 0) {
+                    getLog().info(String.format("Synced %d changed files in %d ms", synced,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                }
+            } catch (IOException e) {
+                getLog().error("Error syncing changes, waiting for the next change", e);
+            } catch (MojoExecutionException e) {
+                getLog().error("Error syncing changes, waiting for the next change", e);
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the events of a key, registering new directories
+     * @param watcher
+     * @param key
+     * @param paths collects the changed paths
+     * @return true if events were lost
+     * @throws IOException
+     */
+    private boolean collect(WatchService watcher, WatchKey key, Set<Path> paths) throws IOException {
+        boolean overflow = false;
+        Path dir = this.watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                overflow = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // files may have been created before the directory was registered
+                paths.addAll(register(watcher, path));
+            } else {
+                paths.add(path);
+            }
+        }
+        if (!key.reset()) {
+            this.watchedDirs.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     * Watch a directory and every directory below it that can hold an included file, skipping excluded trees such as
+     * node_modules so they take no watch
+     * @param watcher
+     * @param root
+     * @return the files found below the directory
+     * @throws IOException
+     */
+    List<Path> register(final WatchService watcher, Path root) throws IOException {
+        final List<Path> files = newArrayList();
+        final Path base = getWebappBaseDir().toPath();
+        final FileSetMatcher matcher = getFileSetMatcher();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(base) && !matcher.couldMatchBelow(base.relativize(dir).toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watchedDirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Bring the outputs up to date with a batch of changed paths
+     * @param workers
+     * @param matcher
+     * @param paths
+     * @return number of changed files of the webappDir
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private int sync(ListeningExecutorService workers, FileSetMatcher matcher, Set<Path> paths)
+            throws IOException, MojoExecutionException {
+        Set<String> changed = newHashSet();
+        List<String> removedPages = newArrayList();
+        boolean resourcesChanged = false;
+        for (Path path : paths) {
+            File file = path.toFile();
+            String archivePath = getArchivePath(file);
+            if (file.isFile()) {
+                if (!matcher.matches(archivePath)) {
+                    continue;
+                }
+                this.index.put(archivePath, file);
+                changed.add(archivePath);
+                resourcesChanged |= getFileType(file) != FileType.HTML;
+            } else if (!file.exists()) {
+                // a deleted file, or a deleted directory and everything below it
+                String dirPrefix = archivePath.endsWith("/") ? archivePath : archivePath + "/";
+                for (Iterator<Map.Entry<String, File>> it = this.index.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<String, File> entry = it.next();
+                    if (entry.getKey().equals(archivePath) || entry.getKey().startsWith(dirPrefix)) {
+                        it.remove();
+                        changed.add(entry.getKey());
+                        if (getFileType(entry.getValue()) == FileType.HTML) {
+                            removedPages.add(entry.getKey());
+                        } else {
+                            resourcesChanged = true;
+                        }
+                    }
+                }
+            }
+        }
+        if (changed.isEmpty()) {
+            return 0;
+        }
+
+        int synced = changed.size();
+        if (resourcesChanged && replanLayout(workers)) {
+            changed.addAll(this.index.keySet());
+        }
+        if (changesPartials(changed) && inlinePartials(workers, this.index.values())) {
+            getLog().info("Partials changed, transforming every page again");
+            changed.addAll(this.index.keySet());
+        }
+        this.changed = changed;
+        removePages(getPagesDir(), removedPages);
+        processOutputs(workers, newArrayList(this.index.values()).iterator(), resourcesChanged);
+        return synced;
+    }
+
+    /**
+     * Start over after events were lost: scan the webappDir again and rebuild every output
+     * @param workers
+     * @return number of files of the webappDir
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private int resync(ListeningExecutorService workers) throws IOException, MojoExecutionException {
+        getLog().warn("Changes were lost, converting every file again");
+        Map<String, File> previous = newLinkedHashMap(this.index);
+        File[] files = filesIncludedByConfiguration();
+        List<String> removedPages = newArrayList();
+        for (Map.Entry<String, File> entry : previous.entrySet()) {
+            if (!this.index.containsKey(entry.getKey()) && getFileType(entry.getValue()) == FileType.HTML) {
+                removedPages.add(entry.getKey());
+            }
+        }
+        replanLayout(workers);
+        if (inlinesPartials()) {
+            inlinePartials(workers, this.index.values());
+        }
+        this.changed = newHashSet(this.index.keySet());
+        removePages(getPagesDir(), removedPages);
+        processOutputs(workers, Arrays.asList(files).iterator(), true);
+        return files.length;
+    }
+
+    /**
+     * @param paths changed paths, relative to the webappDir
+     * @return true if any of the paths is a partial inlined into the pages
+     */
+    private boolean changesPartials(Set<String> paths) {
+        if (!inlinesPartials()) {
+            return false;
+        }
+        for (String path : paths) {
+            if (isPartial(new File(getWebappBaseDir(), path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Assign the static resources to their bundles and names again, after files changed. When a file moved to another
+     * bundle or name, the filters are compiled again and every page must be transformed again
+     * @param workers
+     * @return true if any file moved to another bundle or name
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private boolean replanLayout(ListeningExecutorService workers) throws IOException, MojoExecutionException {
+        if (!plansLayout() || !planLayout(workers, this.index.values())) {
+            return false;
+        }
+        getLog().info("Static resources moved between bundles or names, transforming every page again");
+        compileFilters();
+        createBundleMetaData(getArchive().getParentFile());
+        return true;
+    }
+}
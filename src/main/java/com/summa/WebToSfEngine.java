@@ -0,0 +1,374 @@
+package com.summa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import com.summa.WebToSfMojo.FileType;
+import com.summa.WebToSfMojo.Filter;
+
+/**
+ * The conversion of one file at a time, apart from how the files are found and where the output goes: turns html into
+ * the markup of a page, and filters and minifies text resources. Built once the filters are compiled and the bundles
+ * planned, it keeps no state of its own, so it can be shared between threads and kept warm across calls. The webtosf
+ * goal streams its output into files and archives, the serve goal renders single files on request into an
+ * {@link OutputSink}. Templates inlined from partials are written at the end of every page.
+ * <p>
+ * Outside of a build, an engine is configured with a {@link Builder}, which applies the same base filters as the
+ * webtosf goal, and renders into an {@link OutputSink} such as {@link OutputSink.Memory}:
+ * <pre>
+ * WebToSfEngine engine = WebToSfEngine.builder().filters(filters).resourceName("appzip").build();
+ * OutputSink.Memory sink = new OutputSink.Memory();
+ * engine.renderPage("index", new File("src/main/webapp/index.html"), sink);
+ * </pre>
+ * @author bgray
+ **/
+public final class WebToSfEngine {
+
+    private final TextTransformer textTransformer;
+    private final HtmlPageTransformer pageTransformer;
+    private final Bundles layout;
+    private final boolean minify;
+    private final String lineSeparator;
+    private final String templates;
+
+    /**
+     * @param textTransformer filters text resources, and pages unless they are tokenized
+     * @param pageTransformer tokenizes and filters pages, null to filter them line by line
+     * @param layout bundles and names of the static resources
+     * @param minify true to minify pages, scripts and stylesheets
+     * @param lineSeparator line separator of the output
+     */
+    WebToSfEngine(TextTransformer textTransformer, HtmlPageTransformer pageTransformer, Bundles layout,
+            boolean minify, String lineSeparator) {
+        this(textTransformer, pageTransformer, layout, minify, lineSeparator, "");
+    }
+
+    private WebToSfEngine(TextTransformer textTransformer, HtmlPageTransformer pageTransformer, Bundles layout,
+            boolean minify, String lineSeparator, String templates) {
+        this.textTransformer = textTransformer;
+        this.pageTransformer = pageTransformer;
+        this.layout = layout;
+        this.minify = minify;
+        this.lineSeparator = lineSeparator;
+        this.templates = templates;
+    }
+
+    /**
+     * @return a builder of an engine applying the base filters, with no other filter and a single static resource
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param templates markup written at the end of every page, such as the templates inlined from partials
+     * @return the same engine, writing the templates into the pages
+     */
+    WebToSfEngine withTemplates(String templates) {
+        return new WebToSfEngine(textTransformer, pageTransformer, layout, minify, lineSeparator, templates);
+    }
+
+    /**
+     * @return markup written at the end of every page, empty if none
+     */
+    String templates() {
+        return templates;
+    }
+
+    /**
+     * @return encoding of the input and the output
+     */
+    Charset charset() {
+        return textTransformer.charset();
+    }
+
+    /**
+     * @return bundles and names of the static resources
+     */
+    Bundles layout() {
+        return layout;
+    }
+
+    /**
+     * @return filters applied to text resources, and to pages unless they are tokenized
+     */
+    FilterEngine filterEngine() {
+        return textTransformer.engine();
+    }
+
+    /**
+     * @return filters applied to the text of tokenized pages, null when pages are filtered line by line
+     */
+    FilterEngine pageFilterEngine() {
+        return pageTransformer == null ? null : pageTransformer.engine();
+    }
+
+    /**
+     * Write the page generated for an html document. The input is not closed
+     * @param html
+     * @param size size of the document in bytes, to size the buffers
+     * @param w
+     * @throws IOException
+     */
+    void writePage(InputStream html, int size, OutputStream w) throws IOException {
+        Charset charset = charset();
+        String lf = lineSeparator;
+        w.write(("<apex:page showHeader=\"false\" sidebar=\"false\""
+                + " standardStylesheets=\"false\""
+                + " applyHtmlTag=\"false\">" + lf + lf).getBytes(charset));
+        writeMarkup(html, size, w);
+        if (!templates.isEmpty()) {
+            w.write((lf + templates).getBytes(charset));
+        }
+        w.write((lf + "</apex:page>").getBytes(charset));
+    }
+
+    /**
+     * Write the markup generated for an html document, without the page around it. The input is not closed
+     * @param html
+     * @param size size of the document in bytes, to size the buffers
+     * @param w
+     * @throws IOException
+     */
+    void writeMarkup(InputStream html, int size, OutputStream w) throws IOException {
+        OutputStream body = this.minify ? new ByteArrayOutputStream(size) : w;
+        if (pageTransformer != null) {
+            pageTransformer.transform(html, body);
+        } else {
+            textTransformer.transform(html, body, FileType.HTML);
+        }
+        if (this.minify) {
+            Charset charset = charset();
+            String text = new String(((ByteArrayOutputStream) body).toByteArray(), charset);
+            w.write(minified(Minifier.html(text)).getBytes(charset));
+        }
+    }
+
+    /**
+     * Filter a text resource, without minifying it
+     * @param file
+     * @param out
+     * @param mapped true to read the file from mapped memory
+     * @throws IOException
+     */
+    void filterText(File file, OutputStream out, boolean mapped) throws IOException {
+        textTransformer.transform(file, out, FileType.TEXT, mapped);
+    }
+
+    /**
+     * Filter a text resource, without minifying it. Neither stream is closed
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    void filterText(InputStream in, OutputStream out) throws IOException {
+        textTransformer.transform(in, out, FileType.TEXT);
+    }
+
+    /**
+     * @param content filtered text resource
+     * @param extension lower case extension of the resource
+     * @return the content minified if it is a script or a stylesheet and minifying is asked for, the content itself
+     *         otherwise
+     */
+    byte[] minify(byte[] content, String extension) {
+        if (!minifies(extension)) {
+            return content;
+        }
+        Charset charset = charset();
+        String text = new String(content, charset);
+        return minified("js".equals(extension) ? Minifier.js(text) : Minifier.css(text)).getBytes(charset);
+    }
+
+    /**
+     * @param extension lower case extension of a text resource
+     * @return true if the resource is minified, which needs its whole filtered content
+     */
+    boolean minifies(String extension) {
+        return this.minify && ("js".equals(extension) || "css".equals(extension));
+    }
+
+    /**
+     * Render the page generated for an html file
+     * @param name name of the page
+     * @param htmlFile
+     * @param sink
+     * @throws IOException
+     */
+    public void renderPage(String name, File htmlFile, OutputSink sink) throws IOException {
+        ByteArrayOutputStream page = new ByteArrayOutputStream((int) htmlFile.length() + 256);
+        InputStream in = new FileInputStream(htmlFile);
+        try {
+            writePage(in, (int) htmlFile.length(), page);
+        } finally {
+            in.close();
+        }
+        sink.page(name, page.toByteArray());
+    }
+
+    /**
+     * Render the archive entry of a static resource: filtered and minified text, or the bytes of any other file
+     * @param path path of the file relative to the webappDir
+     * @param file
+     * @param sink
+     * @throws IOException
+     */
+    public void renderResource(String path, File file, OutputSink sink) throws IOException {
+        byte[] content;
+        if (WebToSfMojo.fileTypeOf(file) == FileType.OTHER) {
+            content = Files.toByteArray(file);
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length() + lineSeparator.length());
+            filterText(file, out, false);
+            content = minify(out.toByteArray(), WebToSfMojo.getExtension(file));
+        }
+        sink.resource(layout.resourceOf(path), layout.nameOf(path), content);
+    }
+
+    /**
+     * @param text output of the {@link Minifier}
+     * @return the text with the configured line separator
+     */
+    private String minified(String text) {
+        return "\n".equals(lineSeparator) ? text : text.replace("\n", lineSeparator);
+    }
+
+    /**
+     * Configures an engine the way the webtosf goal parameters of the same names do
+     */
+    public static final class Builder {
+        private List<Filter> filters = Collections.emptyList();
+        private String resourceName = "appzip";
+        private Bundles layout;
+        private Charset charset = Charsets.UTF_8;
+        private String lineSeparator = System.getProperty("line.separator");
+        private boolean minify;
+        private boolean tokenizeHtml;
+        private int bufferSize = 65536;
+        private int maxLineLength = 4194304;
+        private Log log = new SystemStreamLog();
+
+        private Builder() {
+        }
+
+        /**
+         * @param filters applied after the base filters, in order
+         * @return this builder
+         */
+        public Builder filters(Iterable<Filter> filters) {
+            this.filters = ImmutableList.copyOf(filters);
+            return this;
+        }
+
+        /**
+         * @param resourceName name of the static resource the pages point their scripts and stylesheets into
+         * @return this builder
+         */
+        public Builder resourceName(String resourceName) {
+            this.resourceName = resourceName;
+            return this;
+        }
+
+        /**
+         * @param layout bundles and names of the static resources, a single static resource of the resourceName if not
+         *        set
+         * @return this builder
+         */
+        Builder layout(Bundles layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * @param charset encoding of the input and the output
+         * @return this builder
+         */
+        public Builder charset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /**
+         * @param lineSeparator line separator of the output
+         * @return this builder
+         */
+        public Builder lineSeparator(String lineSeparator) {
+            this.lineSeparator = lineSeparator;
+            return this;
+        }
+
+        /**
+         * @param minify true to minify pages, scripts and stylesheets
+         * @return this builder
+         */
+        public Builder minify(boolean minify) {
+            this.minify = minify;
+            return this;
+        }
+
+        /**
+         * @param tokenizeHtml true to convert pages with the html tokenizer rather than line by line
+         * @return this builder
+         */
+        public Builder tokenizeHtml(boolean tokenizeHtml) {
+            this.tokenizeHtml = tokenizeHtml;
+            return this;
+        }
+
+        /**
+         * @param bufferSize size of the read buffers
+         * @return this builder
+         */
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * @param maxLineLength longest line in characters held for the line filters
+         * @return this builder
+         */
+        public Builder maxLineLength(int maxLineLength) {
+            this.maxLineLength = maxLineLength;
+            return this;
+        }
+
+        /**
+         * @param log log the filters report replacements to
+         * @return this builder
+         */
+        public Builder log(Log log) {
+            this.log = log;
+            return this;
+        }
+
+        /**
+         * Compile the filters
+         * @return the engine
+         */
+        public WebToSfEngine build() {
+            Bundles bundles = layout == null ? Bundles.single(resourceName) : layout;
+            FilterEngine filterEngine = new FilterEngine(Iterables.concat(WebToSfMojo.BASE_FILTERS, filters,
+                    ImmutableList.of(WebToSfMojo.resourceFilter(resourceName))), bundles, log);
+            TextTransformer textTransformer = new TextTransformer(filterEngine, charset, lineSeparator, bufferSize,
+                    maxLineLength);
+            HtmlPageTransformer pageTransformer = !tokenizeHtml ? null : new HtmlPageTransformer(
+                    new FilterEngine(filters, log), bundles, charset, lineSeparator, bufferSize);
+            return new WebToSfEngine(textTransformer, pageTransformer, bundles, minify, lineSeparator);
+        }
+    }
+}
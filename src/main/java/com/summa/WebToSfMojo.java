@@ -1,43 +1,110 @@
 package com.summa;
 
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.summa.ExecutionMetrics.Phase;
+import com.summa.ParallelDeflater.Deflated;
+import com.summa.ParallelDeflater.DeflatingStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.maven.model.FileSet;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.codehaus.plexus.util.FileUtils;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.CRC32;
 
 import static com.google.common.collect.Lists.*;
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
 
 /**
  * Converts Standard web project to Force.com project
  * http://force201.wordpress.com/2013/11/06/mapping-an-angularjs-client-into-a-force-com-server/
  */
-@Mojo(name = "webtosf")
+@Mojo(name = "webtosf", threadSafe = true)
 public class WebToSfMojo extends AbstractMojo {
 
     private static final String LF = System.getProperty("line.separator");
 
+    /**
+     * Metadata API version the pages and deploy packages are written for
+     */
+    static final String API_VERSION = "29.0";
+
+    /**
+     * Name of the manifest written to the outputDir by incremental builds
+     */
+    private static final String MANIFEST_FILENAME = ".webtosf-manifest";
+
+    /**
+     * Name of the file listing the SHA-256 of each static resource archive, written to the outputDir by reproducible
+     * builds in the format of sha256sum
+     */
+    private static final String HASHES_FILENAME = "staticResources.sha256";
+
+    /**
+     * Name of the JSON metrics report written to the outputDir
+     */
+    private static final String REPORT_FILENAME = "webtosf-report.json";
+
     /**
      * A map of file extensions to their associated types
      */
@@ -49,29 +116,44 @@ public class WebToSfMojo extends AbstractMojo {
             .put("htm", FileType.HTML)
             .build();
 
+    /**
+     * File types of the filters that only make sense in html
+     */
+    private static final List<String> HTML_ONLY = ImmutableList.of("html");
+
     /**
      * Filters always applied by default
      */
-    private static final List<Filter> BASE_FILTERS = new ImmutableList.Builder<Filter>()
+    static final List<Filter> BASE_FILTERS = new ImmutableList.Builder<Filter>()
             // remove unneeded tags
-            .add(new Filter("<!doctype html>"))
-            .add(new Filter("<!DOCTYPE HTML>"))
-            .add(new Filter("<meta charset=\"utf-8\" />"))
-            .add(new Filter("<html>"))
-            .add(new Filter("</html>"))
-            .add(new Filter("<head>"))
-            .add(new Filter("</head>"))
-            .add(new Filter("<body>"))
-            .add(new Filter("</body>"))
-            .add(new Filter("(.*)<title>.*</title>(.*)", "$1$2", true))
+            .add(new Filter("<!doctype html>", null, false, HTML_ONLY))
+            .add(new Filter("<!DOCTYPE HTML>", null, false, HTML_ONLY))
+            .add(new Filter("<meta charset=\"utf-8\" />", null, false, HTML_ONLY))
+            .add(new Filter("<html>", null, false, HTML_ONLY))
+            .add(new Filter("</html>", null, false, HTML_ONLY))
+            .add(new Filter("<head>", null, false, HTML_ONLY))
+            .add(new Filter("</head>", null, false, HTML_ONLY))
+            .add(new Filter("<body>", null, false, HTML_ONLY))
+            .add(new Filter("</body>", null, false, HTML_ONLY))
+            .add(new Filter("(.*)<title>.*</title>(.*)", "$1$2", true, HTML_ONLY))
 
             // Replace external resource links
             .add(new Filter("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)",
-                    "$1<apex:includeScript value=\"$2\"></apex:includeScript>$3", true))
+                    "$1<apex:includeScript value=\"$2\"></apex:includeScript>$3", true, HTML_ONLY))
             .add(new Filter("(.*)<link.*href=[\"'](.+)[\"'].*>(</link>)*(.*)",
-                    "$1<apex:stylesheet value=\"$2\"></apex:stylesheet>$3", true))
+                    "$1<apex:stylesheet value=\"$2\"></apex:stylesheet>$3", true, HTML_ONLY))
             .build();
 
+    /**
+     * @param zipFilename name of the default static resource
+     * @return filter pointing the script and stylesheet tags written by the base filters into the static resource
+     */
+    static Filter resourceFilter(String zipFilename) {
+        // Replace .js and .css links with references to $Resource
+        return new Filter("(.*)<apex:(.*).* value=\"(?!http)(.+)\".*>(.*)",
+            "$1<apex:$2 value=\"{!URLFor(\\$Resource." + zipFilename + ", '$3')}\"></apex:$2>$4", true, HTML_ONLY);
+    }
+
     /**
      * Class used to represent a filter for this mojo (token gets replaced by value)
      */
@@ -89,18 +171,72 @@ public class WebToSfMojo extends AbstractMojo {
             this(token, value);
             this.isRegex = isRegex;
         }
+        public Filter(String token, String value, Boolean isRegex, List<String> fileTypes) {
+            this(token, value, isRegex);
+            this.fileTypes = fileTypes;
+        }
         protected String token;
         protected String value;
         protected Boolean isRegex = false;
+        protected List<String> fileTypes;
+        protected Integer window;
         protected String getValue() {
             return this.value == null ? "" : value;
         }
+        /**
+         * @return types of the files the filter is applied to, every type if none are configured
+         * @throws IllegalArgumentException if a configured type is not a {@link FileType}
+         */
+        protected Set<FileType> getFileTypes() {
+            if (this.fileTypes == null || this.fileTypes.isEmpty()) {
+                return EnumSet.allOf(FileType.class);
+            }
+            Set<FileType> types = EnumSet.noneOf(FileType.class);
+            for (String type : this.fileTypes) {
+                types.add(FileType.valueOf(type.trim().toUpperCase(Locale.ENGLISH)));
+            }
+            return types;
+        }
+    }
+
+    /**
+     * Class used to represent a bundle of static resources, holding the files its patterns match
+     */
+    public static class Bundle {
+        public Bundle() {
+        }
+        public Bundle(String name, List<String> includes) {
+            this.name = name;
+            this.includes = includes;
+        }
+        protected String name;
+        protected List<String> includes;
+        protected List<String> excludes;
+    }
+
+    /**
+     * Class used to represent a jar or zip, such as a WebJar, whose entries are added to the static resources without
+     * unpacking it. The entries below the prefix go to the targetPath of the archive
+     */
+    public static class Overlay {
+        public Overlay() {
+        }
+        public Overlay(File file, String prefix, String targetPath) {
+            this.file = file;
+            this.prefix = prefix;
+            this.targetPath = targetPath;
+        }
+        protected File file;
+        protected String prefix;
+        protected String targetPath;
+        protected List<String> includes;
+        protected List<String> excludes;
     }
 
     /**
      * Types of files this plugin handles
      */
-    private static enum FileType {
+    static enum FileType {
         TEXT, HTML, OTHER
     }
 
@@ -128,250 +264,2027 @@ public class WebToSfMojo extends AbstractMojo {
     @Parameter( property = "webtosf.zipFilename", defaultValue = "appzip" )
     private String zipFilename;
 
-    public void execute() throws MojoExecutionException {
-        // add one more default rule, this one dependent on zipFilename
-        // Replace .js and .css links with references to $Resource
-        getLog().info("Using zipfilename=" + zipFilename);
-        filters.add(new Filter("(.*)<apex:(.*).* value=\"(?!http)(.+)\".*>(.*)",
-            "$1<apex:$2 value=\"{!URLFor(\\$Resource." + zipFilename + ", '$3')}\"></apex:$2>$4", true));
+    /**
+     * Bundles to split the static resources into, each written to its own static resource. A file goes to the first
+     * bundle whose includes and excludes match it, files no bundle matches stay in the zipFilename archive
+     */
+    @Parameter( property = "webtosf.bundles" )
+    private List<Bundle> bundles = newArrayList();
 
-        File[] files = this.filesIncludedByConfiguration();
-        validateAndDebug(files);
+    /**
+     * Size in bytes of the files above which a bundle is split into parts named name_2, name_3... 0 to never split
+     */
+    @Parameter( property = "webtosf.maxBundleSize", defaultValue = "0" )
+    private long maxBundleSize;
 
-        // create directories
-        File staticResourcesDir = Utils.createDir(this.outputDir, "staticResources");
-        File pagesDir = Utils.createDir(this.outputDir, "pages");
+    /**
+     * Jars and zips, such as WebJars, whose entries are added to the zipFilename archive. Entries are copied still
+     * compressed, only the text entries a filter may change are inflated. Files of the webappDir win over entries of
+     * the same path
+     */
+    @Parameter( property = "webtosf.overlays" )
+    private List<Overlay> overlays = newArrayList();
 
-        ZipOutputStream outputStream = null;
-        try {
-            // Initialize archive for static resources
-            outputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(
-                    new File(staticResourcesDir, this.zipFilename + ".resource"))));
+    /**
+     * Number of threads transforming pages, filtering text resources and compressing archive entries. The archive is
+     * always written by a single thread, in the order the files were found. Defaults to the number of available
+     * processors
+     */
+    @Parameter( property = "webtosf.threads" )
+    private int threads = Runtime.getRuntime().availableProcessors();
 
-            for (File file : files) {
-                switch (getFileType(file)) {
-                    case HTML:
-                        transformHtmlToPage(pagesDir, file);
-                        break;
+    /**
+     * Encoding of the html and text files, also used to write the pages. Defaults to the platform encoding
+     */
+    @Parameter( property = "webtosf.encoding", defaultValue = "${project.build.sourceEncoding}" )
+    private String encoding;
 
-                    case TEXT:
-                        archiveTextStaticResource(outputStream, staticResourcesDir, file);
-                        break;
+    /**
+     * Extensions of files that are already compressed. They are stored in the archive as is instead of being
+     * deflated a second time
+     */
+    @Parameter( property = "webtosf.storedExtensions" )
+    private List<String> storedExtensions = newArrayList("png", "jpg", "jpeg", "gif", "ico", "webp",
+            "woff", "woff2", "mp3", "mp4", "ogg", "webm", "zip", "gz", "jar");
 
-                    case OTHER:
-                        archiveBinaryStaticResource(outputStream, staticResourcesDir, file);
-                        break;
-                }
-            }
-            createMetaData(staticResourcesDir);
+    /**
+     * Compression level of the archive entries, from 0 (no compression) to 9 (best compression)
+     */
+    @Parameter( property = "webtosf.compressionLevel", defaultValue = "6" )
+    private int compressionLevel = 6;
 
-        } catch (IOException e) {
-            throw new MojoExecutionException("Error executing mojo", e);
+    /**
+     * Files larger than this many bytes are split into chunks of this size, compressed in parallel
+     */
+    @Parameter( property = "webtosf.deflateChunkSize", defaultValue = "1048576" )
+    private int deflateChunkSize = 1048576;
 
-        } finally {
-            Utils.close(outputStream);
-        }
-    }
+    /**
+     * Size in bytes of the buffer used to copy binary files into the archive
+     */
+    @Parameter( property = "webtosf.bufferSize", defaultValue = "65536" )
+    private int bufferSize = 65536;
 
     /**
-     * Add the file to the static resources archive, replacing text according to the filters defined in this plugin's
-     * configuration
-     * @param zos
-     * @param staticResourcesDir
-     * @param file
-     * @throws IOException
+     * Longest line in characters held for the line filters. A longer line fails the build, unless no line filter
+     * applies to the file
      */
-    protected void archiveTextStaticResource(ZipOutputStream zos, File staticResourcesDir, File file) throws IOException {
-        File baseDir = new File(this.webappDir.getDirectory());
-        String path = Utils.getRelativePath(baseDir, file);
-        getLog().info("zipping dir=" + file + " file=" + file.getName() + " to=" + path);
+    @Parameter( property = "webtosf.maxLineLength", defaultValue = "4194304" )
+    private int maxLineLength = 4194304;
 
-        // Go line by line and replace using filters
-        zos.putNextEntry(new ZipEntry(path));
-        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-        try {
-            String line;
-            while ((line = r.readLine()) != null) {
-                zos.write(replace(line).getBytes());
-                zos.write(LF.getBytes());
-            }
-            zos.closeEntry();
-        } finally {
-            r.close();
-        }
-    }
+    /**
+     * Binary files larger than this many bytes are read through memory-mapped file channels instead of streams, and
+     * compressed by the archive writer as they are read rather than held compressed in memory
+     */
+    @Parameter( property = "webtosf.mappedThreshold", defaultValue = "8388608" )
+    private long mappedThreshold = 8388608;
 
     /**
-     * Add the file to the static resources archive, doing a byte-by-byte copy
-     * @param zos
-     * @param staticResourcesDir
-     * @param file
-     * @throws IOException
+     * Bytes of compressed entries that may wait in memory for the archive writer, beyond which the workers are not
+     * handed more files. A file counts for its size until it is compressed, files the archive writer copies do not
+     * count. A single larger file is still processed
      */
-    protected void archiveBinaryStaticResource(ZipOutputStream zos, File staticResourcesDir, File file) throws IOException {
-        File baseDir = new File(this.webappDir.getDirectory());
-        String path = Utils.getRelativePath(baseDir, file);
-        getLog().info("zipping dir=" + file + " file=" + file.getName() + " to=" + path);
+    @Parameter( property = "webtosf.inFlightBytes", defaultValue = "67108864" )
+    private long inFlightBytes = 67108864;
+
+    /**
+     * Convert html files to pages with a streaming html tokenizer instead of applying the base filters to each line.
+     * Tags are then recognized even when they span lines or share one, and the configured filters are applied to text
+     * and attribute values
+     */
+    @Parameter( property = "webtosf.tokenizeHtml", defaultValue = "false" )
+    private boolean tokenizeHtml;
+
+    /**
+     * Cache filtered and compressed archive entries on disk, keyed by content and configuration, so that files shared
+     * by several modules or builds are only filtered and compressed once
+     */
+    @Parameter( property = "webtosf.cache", defaultValue = "false" )
+    private boolean cache;
+
+    /**
+     * Directory of the cache, may be shared by any number of projects and concurrent builds
+     */
+    @Parameter( property = "webtosf.cacheDir", defaultValue = "${user.home}/.m2/webtosf-cache" )
+    private File cacheDir;
+
+    /**
+     * Size in bytes above which the least recently used cache entries are evicted
+     */
+    @Parameter( property = "webtosf.cacheSize", defaultValue = "536870912" )
+    private long cacheSize = 536870912;
+
+    /**
+     * Minify scripts and stylesheets before archiving them, and strip comments and redundant whitespace from pages.
+     * Strings, regular expressions and pre, textarea, script and style elements are kept as is
+     */
+    @Parameter( property = "webtosf.minify", defaultValue = "false" )
+    private boolean minify;
+
+    /**
+     * Add a hash of their content to the names of scripts and stylesheets in the archive, so browsers never use a
+     * stale copy. The references of the pages are rewritten through the $Resource url filter
+     */
+    @Parameter( property = "webtosf.hashNames", defaultValue = "false" )
+    private boolean hashNames;
+
+    /**
+     * Produce the same bytes from the same inputs: archive entries sorted by path with a fixed timestamp, and \n line
+     * endings whatever the platform. The SHA-256 of each archive is written to staticResources.sha256 in the outputDir
+     */
+    @Parameter( property = "webtosf.reproducible", defaultValue = "false" )
+    private boolean reproducible;
+
+    /**
+     * Timestamp of the archive entries of reproducible builds, as an ISO-8601 date-time or seconds since the epoch.
+     * Defaults to 1980-02-01 00:00:00
+     */
+    @Parameter( property = "webtosf.outputTimestamp", defaultValue = "${project.build.outputTimestamp}" )
+    private String outputTimestamp;
+
+    /**
+     * Only regenerate pages and archive entries whose inputs or filters changed since the last incremental run. The
+     * state of each input is recorded in a manifest in the outputDir
+     */
+    @Parameter( property = "webtosf.incremental", defaultValue = "false" )
+    private boolean incremental;
+
+    /**
+     * Also write the execution metrics as JSON to webtosf-report.json in the outputDir
+     */
+    @Parameter( property = "webtosf.report", defaultValue = "false" )
+    private boolean report;
+
+    /**
+     * Leave out of the archives the static resources no page references, directly or through the stylesheets and
+     * scripts it references. The files left out are logged and listed in the report
+     */
+    @Parameter( property = "webtosf.treeShake", defaultValue = "false" )
+    private boolean treeShake;
+
+    /**
+     * Regular expressions finding references to other files in scripts, the path being the first group, e.g.
+     * {@code templateUrl:\s*'([^']+)'}. Used by treeShake and dedupe
+     */
+    @Parameter( property = "webtosf.treeShakePatterns" )
+    private List<String> treeShakePatterns = newArrayList();
+
+    /**
+     * Patterns of static resources treeShake keeps, along with the files they reference, even when no page references
+     * them, such as files loaded through computed urls
+     */
+    @Parameter( property = "webtosf.treeShakeKeeps" )
+    private List<String> treeShakeKeeps = newArrayList();
+
+    /**
+     * Store static resources whose filtered content is the same only once, pointing the {@code URLFor} references of
+     * every copy at the first one in path order. Copies referenced by a path from a stylesheet or script are kept, as
+     * are stylesheets and scripts holding such paths. The bytes saved are logged and listed in the report
+     */
+    @Parameter( property = "webtosf.dedupe", defaultValue = "false" )
+    private boolean dedupe;
+
+    /**
+     * Patterns of the html files that are Angular partials, e.g. {@code partials/}. Rather than becoming pages of their
+     * own, they are inlined into every page under their path relative to the webappDir, so a {@code templateUrl} of
+     * that path is found in the template cache without a request
+     */
+    @Parameter( property = "webtosf.partials" )
+    private List<String> partials = newArrayList();
+
+    /**
+     * Angular module whose template cache the partials are put into, by a script at the end of every page. When empty,
+     * the partials are inlined as {@code <script type="text/ng-template">} blocks, which Angular only finds inside the
+     * element holding ng-app, and which no partial may end early with a {@code </script>} of its own
+     */
+    @Parameter( property = "webtosf.partialsModule" )
+    private String partialsModule;
+
+    /**
+     * Bundles the static resources of this execution are split into
+     */
+    private Bundles layout;
+
+    /**
+     * Matches the paths of the partials
+     */
+    private FileSetMatcher partialMatcher;
+
+    /**
+     * Compiled form of the base filters and the configured filters, built once per execution
+     */
+    private FilterEngine filterEngine;
+
+    /**
+     * Compiled form of the configured filters the html tokenizer applies to the text of pages, null unless tokenizeHtml
+     */
+    private FilterEngine pageFilterEngine;
+
+    /**
+     * Converts single files with the filterEngine, built once per execution
+     */
+    private WebToSfEngine engine;
+
+    /**
+     * Compresses archive entries on the workers
+     */
+    private ParallelDeflater deflater;
+
+    /**
+     * Cache of compressed archive entries when enabled, null otherwise
+     */
+    private TransformCache transformCache;
 
-        zos.putNextEntry(new ZipEntry(path));
-        BufferedInputStream is = new BufferedInputStream(new FileInputStream(file));
+    /**
+     * Inputs recorded by the previous incremental run, and the ones of this run
+     */
+    private BuildManifest previousManifest;
+    private BuildManifest currentManifest;
+
+    /**
+     * Timers and counters of this execution
+     */
+    private ExecutionMetrics metrics = new ExecutionMetrics();
+
+    /**
+     * Temporary files the archives being written go to, keyed by the archive they replace
+     */
+    private final ConcurrentMap<File, File> tempArchives = newConcurrentMap();
+
+    /**
+     * Buffers binary files are copied through, one per archive writer
+     */
+    private final ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>();
+
+    public void execute() throws MojoExecutionException {
+        DirectoryLock lock = lockOutputDir();
         try {
-            byte[] buf = new byte[4092];
-            int len;
-            while ((len = is.read(buf)) != -1) {
-                zos.write(buf, 0, len);
-            }
+            convert();
         } finally {
-            is.close();
+            lock.unlock();
         }
     }
 
     /**
-     * Creates metadata needed by Force.com to deploy the static resources
-     * @param staticResourcesDir
-     * @throws IOException
+     * Take the lock of the outputDir, waiting for any other module of a parallel build writing to the same directory
+     * @return the lock held, to be unlocked by the caller
+     * @throws MojoExecutionException
      */
-    protected void createMetaData(File staticResourcesDir) throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(staticResourcesDir,
-                zipFilename + ".resource-meta.xml")));
+    DirectoryLock lockOutputDir() throws MojoExecutionException {
+        DirectoryLock lock;
         try {
-            writer.write(""
-                    + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + LF
-                    + "<StaticResource xmlns=\"http://soap.sforce.com/2006/04/metadata\">" + LF
-                    + "    <cacheControl>Public</cacheControl>" + LF
-                    + "    <contentType>application/zip</contentType>" + LF
-                    + "</StaticResource>"
-            );
-        } finally {
-            writer.close();
+            lock = Utils.lockFor(this.outputDir);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to resolve outputDir " + this.outputDir, e);
         }
+        if (!lock.tryLock()) {
+            getLog().info("Waiting for another execution writing to " + this.outputDir);
+            lock.lock();
+        }
+        return lock;
     }
 
     /**
-     * Transform a single htmlFile to a Force.com .page file
-     * TODO ugh, clean up
-     * @param pagesDir
-     * @param htmlFile
+     * Convert the web project, the outputDir being locked
+     * @throws MojoExecutionException
      */
-    private void transformHtmlToPage(File pagesDir, File htmlFile) throws IOException {
-        // Prepend path
-        File baseDir = new File(this.webappDir.getDirectory());
-        String name = "";
-        for (String path : Utils.pathDifference(baseDir, htmlFile.getParentFile())) {
-            name += Utils.cleanName(path);
-        }
-        name += Utils.cleanName(Utils.removeSuffix(htmlFile.getName()));
+    private void convert() throws MojoExecutionException {
+        this.metrics = new ExecutionMetrics();
+        validateAndDebug();
+        this.deflater = new ParallelDeflater(this.compressionLevel, this.deflateChunkSize);
+        this.transformCache = this.cache ? new TransformCache(this.cacheDir, this.cacheSize) : null;
 
-        File to = new File(pagesDir, name + ".page");
-        File toMeta = new File(pagesDir, name + ".page-meta.xml");
-        getLog().info("transforming page file=" + htmlFile + " to=" + to);
+        createOutputDirs();
+        File archive = getArchive();
+        File staticResourcesDir = archive.getParentFile();
+        File pagesDir = getPagesDir();
+        File manifestFile = getManifestFile();
 
-        BufferedReader r = new BufferedReader(new FileReader(htmlFile));
+        ListeningExecutorService workers = createWorkers();
+        Iterator<File> files = null;
         try {
-            // Data
-            BufferedWriter w = new BufferedWriter(new FileWriter(to));
-            try {
-                w.write("<apex:page showHeader=\"false\" sidebar=\"false\""
-                        + " standardStylesheets=\"false\""
-                        + " applyHtmlTag=\"false\">" + LF + LF);
-                String line;
-                while ((line = r.readLine()) != null) {
-                    w.write(replace(line));
-                    w.write(LF);
+            // Work out what changed since the last run
+            this.previousManifest = this.incremental ? BuildManifest.read(manifestFile) : new BuildManifest();
+            this.currentManifest = new BuildManifest();
+            boolean rebuildArchive = true;
+            File[] allFiles = null;
+            if (this.incremental || plansLayout() || this.reproducible || this.treeShake || inlinesPartials()) {
+                // bundles and names are planned, changes detected, entries sorted, references followed and partials
+                // inlined on the whole list
+                long scanStart = ExecutionMetrics.start();
+                allFiles = filesIncludedByConfiguration();
+                if (this.reproducible) {
+                    sortByArchivePath(allFiles);
                 }
-                w.write(LF + "</apex:page>");
-            } finally {
-                w.close();
+                this.metrics.phase(Phase.SCAN, scanStart);
+                files = Arrays.asList(allFiles).iterator();
+            } else {
+                files = streamFilesIncludedByConfiguration();
+            }
+            this.layout = null;
+            planLayout(workers, allFiles == null ? Collections.<File>emptyList() : Arrays.asList(allFiles));
+            compileFilters();
+            if (inlinesPartials()) {
+                inlinePartials(workers, Arrays.asList(allFiles));
             }
 
-            // Meta
-            BufferedWriter ww = new BufferedWriter(new FileWriter(toMeta));
-            try {
-                ww.write("" + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + LF
-                        + "<StaticResource xmlns=\"http://soap.sforce.com/2006/04/metadata\">" + LF
-                        + "    <apiVersion>29.0</apiVersion>" + LF
-                        + "    <label>" + name + "</label>" + LF
-                        + "</StaticResource>"
-                );
-            } finally {
-                ww.close();
+            if (this.incremental) {
+                recordFiles(workers, allFiles);
+                recordOverlays();
+                removePages(pagesDir, this.previousManifest.pagesRemovedIn(this.currentManifest));
+                // bundles are always rewritten, copying their unchanged entries
+                rebuildArchive = isBundled() || !archive.isFile() || !reusesPreviousOutputs()
+                        || this.currentManifest.resourcesChangedSince(this.previousManifest);
+                if (!rebuildArchive) {
+                    getLog().info("Static resources unchanged, keeping " + archive);
+                }
+            } else {
+                manifestFile.delete();
+            }
+
+            processOutputs(workers, files, rebuildArchive);
+            if (files instanceof FileDiscovery.Stream) {
+                this.metrics.phaseNanos(Phase.SCAN, ((FileDiscovery.Stream) files).elapsedNanos());
+            }
+            long metaDataStart = ExecutionMetrics.start();
+            createBundleMetaData(staticResourcesDir);
+            if (this.reproducible) {
+                writeHashes(new File(this.outputDir, HASHES_FILENAME));
             }
+            this.metrics.phase(Phase.METADATA, metaDataStart);
+            if (this.incremental) {
+                this.currentManifest.write(manifestFile);
+            }
+
+            if (this.transformCache != null) {
+                getLog().info(String.format("Cache %s: %d hits, %d misses", this.cacheDir,
+                        this.transformCache.hits(), this.transformCache.misses()));
+                this.transformCache.evict();
+            }
+
+            this.metrics.finish(this.filterEngine, this.pageFilterEngine);
+            this.metrics.logSummary(getLog());
+            if (this.report) {
+                File reportFile = new File(this.outputDir, REPORT_FILENAME);
+                getLog().info("Writing report to " + reportFile);
+                this.outputDir.mkdirs();
+                this.metrics.writeJson(reportFile);
+            }
+
+        } catch (UncheckedIOException e) {
+            throw new MojoExecutionException("Unable to get webappDir files", e.getCause());
+
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error executing mojo", e);
+
         } finally {
-            r.close();
+            workers.shutdownNow();
+            if (files instanceof Closeable) {
+                Utils.close((Closeable) files);
+            }
         }
     }
 
     /**
-     * Replace a line according to all our filters
-     * @param line
-     * @return the replaced line
+     * Add the filters that depend on the configuration and compile all filters for this execution
+     * @throws MojoExecutionException
      */
-    private String replace(String line) {
-        for (Filter filter : Iterables.concat(BASE_FILTERS, filters)) {
-            if (filter.isRegex && line.matches(filter.token)) {
-                getLog().info("... replacing " + filter.token + " in line " + line);
-                line = line.replaceAll(filter.token, filter.getValue());
-
-            } else if (!filter.isRegex && line.contains(filter.token)) {
-                getLog().info("... replacing regex " + filter.token + " in line " + line);
-                line = line.replace(filter.token, filter.getValue());
-            }
-        }
-        return line;
+    void compileFilters() throws MojoExecutionException {
+        // add one more default rule, this one dependent on zipFilename
+        getLog().info("Using zipfilename=" + zipFilename);
+        this.engine = WebToSfEngine.builder()
+                .filters(this.filters)
+                .resourceName(this.zipFilename)
+                .layout(getLayout())
+                .charset(getCharset())
+                .lineSeparator(lineSeparator())
+                .minify(this.minify)
+                .tokenizeHtml(this.tokenizeHtml)
+                .bufferSize(this.bufferSize)
+                .maxLineLength(this.maxLineLength)
+                .log(getLog())
+                .build();
+        this.filterEngine = this.engine.filterEngine();
+        this.pageFilterEngine = this.engine.pageFilterEngine();
     }
 
     /**
-     * Validate properties
-     * @param files
+     * @return the conversion of single files, once the filters are compiled
      */
-    private void validateAndDebug(File[] files) throws MojoExecutionException {
-        getLog().debug("Executing webtosf mojo.");
-        getLog().debug(String.format("webAppDir: [%s]", webappDir.getDirectory()));
-        if (getLog().isDebugEnabled()) {
-            for (File file : files) {
-                getLog().debug(String.format("\t--file: [%s]", file.getAbsolutePath()));
-            }
-        }
-        getLog().info(String.format("Filters:"));
-        for (Filter filter : this.filters) {
-            if (filter.token == null) {
-                throw new MojoExecutionException("token required on each filter.");
-            }
-            getLog().debug(String.format("\t--filter token: [%s] value: [%s]", filter.token, filter.getValue()));
-        }
-        getLog().debug(String.format("outputDir: [%s]", outputDir.getAbsolutePath()));
+    WebToSfEngine getEngine() {
+        return this.engine;
     }
 
     /**
-     * Iterates through the webappDir, populating the files property and the replacement map
-     * @return Array of files we care about (applying includes and excludes)
+     * Plan the bundles of the files, compile the filters and inline the partials, without writing anything. Called
+     * again when the files changed, the engine is only built again when files moved to another bundle or name or the
+     * partials changed
+     * @param workers hash the content of renamed files
+     * @param files every file of the webappDir
+     * @return the engine converting single files
+     * @throws IOException
      * @throws MojoExecutionException
      */
-    protected File[] filesIncludedByConfiguration() throws MojoExecutionException {
-        if (this.webappDir == null || this.webappDir.getDirectory() == null) {
-            return new File[] {};
+    WebToSfEngine createEngine(ListeningExecutorService workers, Collection<File> files)
+            throws IOException, MojoExecutionException {
+        if (this.engine == null) {
+            validateAndDebug();
         }
-        try {
-            File directory = new File(this.webappDir.getDirectory());
-            String includes = Utils.getCommaSeparatedList(this.webappDir.getIncludes());
-            String excludes = Utils.getCommaSeparatedList(this.webappDir.getExcludes());
-            List files = FileUtils.getFiles(directory, includes, excludes);
-            return (File[]) files.toArray(new File[files.size()]);
-        } catch (IOException e) {
-            throw new MojoExecutionException("Unable to get webappDir files", e);
+        if (planLayout(workers, files) || this.engine == null) {
+            compileFilters();
         }
+        if (inlinesPartials()) {
+            inlinePartials(workers, files);
+        }
+        return this.engine;
     }
 
     /**
-     * Get the {@code FileType} of a given file
-     * @param file
-     * @return matching FileType or OTHER if none matches
+     * @return true if partials are inlined into the pages
      */
-    private FileType getFileType(File file) {
-        final String name = file.getName().toLowerCase();
-        String extension = Iterables.getLast(Splitter.on(".").split(name), "");
-        FileType type = EXTENSIONS_MAP.get(extension);
-        return type == null ? FileType.OTHER : type;
+    boolean inlinesPartials() {
+        return !this.partials.isEmpty();
+    }
+
+    /**
+     * @param file
+     * @return true if the file is a partial, inlined into the pages rather than converted to a page of its own
+     */
+    boolean isPartial(File file) {
+        return this.partialMatcher != null && getFileType(file) == FileType.HTML
+                && this.partialMatcher.matches(getArchivePath(file));
+    }
+
+    /**
+     * Convert the partials among the files on the workers, and write them at the end of every page: as one script
+     * putting them into the template cache of the partialsModule, or as one ng-template script each. Partials are
+     * written in path order, filtered and minified like pages
+     * @param workers
+     * @param files every file of the webappDir
+     * @return true if the partials changed, every page must then be transformed again
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    boolean inlinePartials(ListeningExecutorService workers, Collection<File> files)
+            throws IOException, MojoExecutionException {
+        Map<String, Future<String>> converted = newLinkedHashMap();
+        for (final File file : files) {
+            if (!isPartial(file)) {
+                continue;
+            }
+            final String path = getArchivePath(file);
+            converted.put(path, workers.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    long start = ExecutionMetrics.start();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        engine.writeMarkup(in, (int) file.length(), out);
+                    } finally {
+                        in.close();
+                    }
+                    metrics.file(Phase.PAGES, path, FileType.HTML, file.length(), start);
+                    return CharMatcher.WHITESPACE.trimTrailingFrom(new String(out.toByteArray(), engine.charset()));
+                }
+            }));
+        }
+        String lf = lineSeparator();
+        String module = this.partialsModule == null ? "" : this.partialsModule.trim();
+        StringBuilder templates = new StringBuilder();
+        for (Map.Entry<String, Future<String>> entry : new TreeMap<String, Future<String>>(converted).entrySet()) {
+            String markup = await(entry.getValue());
+            if (!module.isEmpty()) {
+                templates.append("    $templateCache.put('").append(jsString(entry.getKey())).append("', '")
+                        .append(jsString(markup)).append("');").append(lf);
+            } else {
+                if (markup.toLowerCase(Locale.ENGLISH).contains("</script")) {
+                    throw new MojoExecutionException("Partial " + entry.getKey()
+                            + " contains </script>, which would end its ng-template block early. Set partialsModule"
+                            + " to put the partials into the template cache instead");
+                }
+                if (templates.length() > 0) {
+                    templates.append(lf);
+                }
+                templates.append("<script type=\"text/ng-template\" id=\"")
+                        .append(entry.getKey().replace("&", "&amp;").replace("\"", "&quot;")).append("\">").append(lf)
+                        .append(markup).append(lf).append("</script>");
+            }
+        }
+        if (!module.isEmpty() && templates.length() > 0) {
+            templates.insert(0, "<script>" + lf + "angular.module('" + jsString(module)
+                    + "').run(['$templateCache', function($templateCache) {" + lf).append("}]);" + lf + "</script>");
+        }
+        getLog().info(String.format("Inlining %d partials into every page", converted.size()));
+        if (templates.toString().equals(this.engine.templates())) {
+            return false;
+        }
+        this.engine = this.engine.withTemplates(templates.toString());
+        return true;
+    }
+
+    /**
+     * @param s
+     * @return the text escaped to fit between the single quotes of a script string, inside a script element
+     */
+    private static String jsString(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\'':
+                    sb.append("\\'");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\u2028':
+                    sb.append("\\u2028");
+                    break;
+                case '\u2029':
+                    sb.append("\\u2029");
+                    break;
+                case '/':
+                    // no </script> ending the element early
+                    sb.append(i > 0 && s.charAt(i - 1) == '<' ? "\\/" : "/");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sort files the way reproducible archives list them
+     * @param files
+     */
+    private void sortByArchivePath(File[] files) {
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return getArchivePath(a).compareTo(getArchivePath(b));
+            }
+        });
+    }
+
+    /**
+     * Write the SHA-256 of every static resource archive, so deployments can skip the unchanged ones
+     * @param hashesFile
+     * @throws IOException
+     */
+    void writeHashes(File hashesFile) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String name : getLayout().names()) {
+            File archive = getArchive(name);
+            if (archive.isFile()) {
+                String hash = Files.hash(archive, Hashing.sha256()).toString();
+                getLog().info("sha256 " + hash + " " + archive.getName());
+                sb.append(hash).append("  ").append("staticResources/").append(archive.getName()).append('\n');
+            }
+        }
+        Utils.write(sb, hashesFile, Charsets.UTF_8);
+    }
+
+    /**
+     * @return time of the archive entries written now
+     * @throws IOException if the outputTimestamp can't be parsed
+     */
+    long entryTime() throws IOException {
+        if (!this.reproducible) {
+            return System.currentTimeMillis();
+        }
+        long time;
+        if (this.outputTimestamp == null || this.outputTimestamp.trim().isEmpty()) {
+            time = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+        } else {
+            String timestamp = this.outputTimestamp.trim();
+            try {
+                time = timestamp.matches("\\d+") ? Long.parseLong(timestamp) * 1000
+                        : OffsetDateTime.parse(timestamp).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IOException("Invalid outputTimestamp " + timestamp, e);
+            }
+            // zip entries hold local times, pick the one showing the same digits in every time zone
+            time -= TimeZone.getDefault().getOffset(time);
+        }
+        return time;
+    }
+
+    /**
+     * @return line separator of the pages, text resources and metadata
+     */
+    String lineSeparator() {
+        return this.reproducible ? "\n" : LF;
+    }
+
+    /**
+     * @return true if the static resources are split into several bundles
+     */
+    boolean isBundled() {
+        return !this.bundles.isEmpty() || this.maxBundleSize > 0;
+    }
+
+    /**
+     * @return true if the static resources are split into bundles, renamed or deduplicated, which needs every file up
+     *         front
+     */
+    boolean plansLayout() {
+        return isBundled() || this.hashNames || this.dedupe;
+    }
+
+    /**
+     * @return the bundles of this execution, a single bundle named after the zipFilename until they are planned
+     */
+    Bundles getLayout() {
+        return this.layout == null ? Bundles.single(this.zipFilename) : this.layout;
+    }
+
+    /**
+     * Assign the static resources to their bundles and names. The filters must be compiled again when the assignment
+     * changed
+     * @param workers hash the content of renamed files
+     * @param files every file of the webappDir
+     * @return true if any file moved to another bundle or name
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    boolean planLayout(ListeningExecutorService workers, Collection<File> files)
+            throws IOException, MojoExecutionException {
+        Bundles previous = this.layout;
+        Map<String, String> canonicals = this.dedupe ? findDuplicates(workers, files)
+                : Collections.<String, String>emptyMap();
+        if (isBundled()) {
+            Map<String, File> resources = newLinkedHashMap();
+            for (File file : files) {
+                if (getFileType(file) != FileType.HTML && !canonicals.containsKey(getArchivePath(file))) {
+                    resources.put(getArchivePath(file), file);
+                }
+            }
+            this.layout = Bundles.partition(this.zipFilename, this.bundles, this.maxBundleSize, resources);
+            for (String name : this.layout.names()) {
+                getLog().info(String.format("Bundle %s: %d files, %d bytes", name, this.layout.files(name).size(),
+                        this.layout.size(name)));
+                if (this.maxBundleSize > 0 && this.layout.size(name) > this.maxBundleSize) {
+                    getLog().warn("Bundle " + name + " holds a file larger than maxBundleSize=" + this.maxBundleSize);
+                }
+            }
+        } else {
+            this.layout = Bundles.single(this.zipFilename);
+        }
+        if (this.hashNames) {
+            this.layout = this.layout.withNames(hashNames(workers, files));
+        }
+        if (this.dedupe) {
+            this.layout = this.layout.withDuplicates(canonicals);
+        }
+        return previous == null || !previous.fingerprint().equals(this.layout.fingerprint());
+    }
+
+    /**
+     * Name every script and stylesheet after a hash of its content and of everything that goes into its output,
+     * hashing the files on the workers
+     * @param workers
+     * @param files
+     * @return names inside the archive, keyed by path relative to the webappDir
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private Map<String, String> hashNames(ListeningExecutorService workers, Collection<File> files)
+            throws IOException, MojoExecutionException {
+        final String fingerprint = new FilterEngine(Iterables.concat(BASE_FILTERS, this.filters), getLog())
+                .fingerprint() + "/" + this.encoding + "/" + this.minify + "/" + lineSeparator();
+        Map<String, Future<String>> hashed = newLinkedHashMap();
+        for (final File file : files) {
+            String extension = getExtension(file);
+            if (!"js".equals(extension) && !"css".equals(extension)) {
+                continue;
+            }
+            final String path = getArchivePath(file);
+            hashed.put(path, workers.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    Hasher hasher = Hashing.sha1().newHasher().putString(fingerprint, Charsets.UTF_8);
+                    Files.asByteSource(file).copyTo(Funnels.asOutputStream(hasher));
+                    String hash = hasher.hash().toString().substring(0, 8);
+                    int dot = path.lastIndexOf('.');
+                    return path.substring(0, dot) + "." + hash + path.substring(dot);
+                }
+            }));
+        }
+        Map<String, String> names = newLinkedHashMap();
+        for (Map.Entry<String, Future<String>> entry : hashed.entrySet()) {
+            names.put(entry.getKey(), await(entry.getValue()));
+        }
+        return names;
+    }
+
+    /**
+     * Find the static resources whose content, once filtered and minified, is the same as another one's, hashing the
+     * files on the workers. A copy is only left out if nothing refers to it by a path the filters can't rewrite: the
+     * copies referenced from stylesheets and scripts are kept and preferred as canonical file, and stylesheets and
+     * scripts holding such paths are never left out, the same paths resolving to other files from another directory
+     * @param workers
+     * @param files every file of the webappDir
+     * @return paths of the canonical files keyed by the paths of their duplicates, relative to the webappDir, in path
+     *         order
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private Map<String, String> findDuplicates(ListeningExecutorService workers, Collection<File> files)
+            throws IOException, MojoExecutionException {
+        long start = ExecutionMetrics.start();
+        String lf = lineSeparator();
+        Charset charset = getCharset();
+        // references to the default bundle are the same in every copy, they are rewritten once the layout is planned
+        final WebToSfEngine filtering = new WebToSfEngine(new TextTransformer(new FilterEngine(
+                Iterables.concat(BASE_FILTERS, this.filters), getLog()), charset, lf, this.bufferSize,
+                this.maxLineLength), null,
+                Bundles.single(this.zipFilename), this.minify, lf);
+        final ReferenceGraph graph = new ReferenceGraph(getWebappBaseDir(), charset, scriptPatterns());
+        Map<String, File> resources = new TreeMap<String, File>();
+        List<File> texts = newArrayList();
+        for (File file : files) {
+            FileType type = getFileType(file);
+            if (type != FileType.HTML) {
+                resources.put(getArchivePath(file), file);
+            }
+            if (type == FileType.TEXT) {
+                texts.add(file);
+            }
+        }
+        Set<File> referenced = graph.referenced(files, texts);
+
+        Map<String, Future<String>> hashed = newLinkedHashMap();
+        for (final File file : resources.values()) {
+            hashed.put(getArchivePath(file), workers.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    HashCode hash;
+                    if (getFileType(file) == FileType.OTHER) {
+                        hash = Files.hash(file, Hashing.sha256());
+                    } else if (!graph.references(file).isEmpty()) {
+                        return null;
+                    } else if (!filtering.minifies(getExtension(file))) {
+                        // the filtered text streams into the hash, the same as the bytes written to the archive
+                        Hasher hasher = Hashing.sha256().newHasher();
+                        filtering.filterText(file, Funnels.asOutputStream(hasher), false);
+                        hash = hasher.hash();
+                    } else {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length() + 16);
+                        filtering.filterText(file, out, false);
+                        hash = Hashing.sha256().hashBytes(filtering.minify(out.toByteArray(), getExtension(file)));
+                    }
+                    // copies are served under the name of the canonical file, which must have the same content type
+                    return getExtension(file) + "/" + hash;
+                }
+            }));
+        }
+        Map<String, List<String>> copies = newLinkedHashMap();
+        for (Map.Entry<String, Future<String>> entry : hashed.entrySet()) {
+            String hash = await(entry.getValue());
+            if (hash == null) {
+                continue;
+            }
+            List<String> paths = copies.get(hash);
+            if (paths == null) {
+                paths = newArrayList();
+                copies.put(hash, paths);
+            }
+            paths.add(entry.getKey());
+        }
+
+        Map<String, String> canonicals = new TreeMap<String, String>();
+        long bytes = 0;
+        for (List<String> paths : copies.values()) {
+            String canonical = paths.get(0);
+            for (String path : paths) {
+                if (referenced.contains(resources.get(path))) {
+                    canonical = path;
+                    break;
+                }
+            }
+            for (String path : paths) {
+                File file = resources.get(path);
+                if (!path.equals(canonical) && !referenced.contains(file)) {
+                    getLog().info("deduplicating file=" + path + " as=" + canonical);
+                    canonicals.put(path, canonical);
+                    bytes += file.length();
+                }
+            }
+        }
+        getLog().info(String.format("Deduplication left out %d copies of %d source bytes", canonicals.size(),
+                bytes));
+        this.metrics.duplicates(canonicals, bytes);
+        this.metrics.phase(Phase.DEDUPE, start);
+        return canonicals;
+    }
+
+    /**
+     * Transform pages and, when asked to, rebuild the static resources archives. Bundles are written in parallel, each
+     * by a writer of its own, while the pages are transformed
+     * @param workers
+     * @param files every file of the webappDir when bundled, only the files to process otherwise
+     * @param resources true to rebuild the archives, false to only transform pages
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    void processOutputs(ListeningExecutorService workers, Iterator<File> files, boolean resources)
+            throws IOException, MojoExecutionException {
+        if (!isBundled()) {
+            processFiles(workers, files, getPagesDir(), resources ? getArchive() : null);
+            return;
+        }
+        final List<File> pages = newArrayList();
+        while (files.hasNext()) {
+            File file = files.next();
+            if (getFileType(file) == FileType.HTML) {
+                pages.add(file);
+            }
+        }
+        final Bundles bundles = getLayout();
+        List<Callable<ResourceEntry>> tasks = newArrayList();
+        tasks.add(processFilesTask(workers, pages, null));
+        if (resources) {
+            for (String name : bundles.names()) {
+                tasks.add(processFilesTask(workers, bundles.files(name), getArchive(name)));
+            }
+        }
+        ListeningExecutorService writers = createWriters(tasks.size());
+        try {
+            List<Future<ResourceEntry>> written = newArrayList();
+            for (Callable<ResourceEntry> task : tasks) {
+                written.add(writers.submit(task));
+            }
+            for (Future<ResourceEntry> future : written) {
+                await(future);
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private Callable<ResourceEntry> processFilesTask(final ListeningExecutorService workers, final List<File> files,
+            final File archive) {
+        return new Callable<ResourceEntry>() {
+            public ResourceEntry call() throws IOException, MojoExecutionException {
+                processFiles(workers, files.iterator(), getPagesDir(), archive);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Transform pages and, when an archive is given, rebuild the static resources archive. Entries are compressed on
+     * the workers, large files in parallel chunks, and added to the archive as raw deflate data. Entries unchanged
+     * since the previous run are copied from the previous archive without being inflated
+     * @param workers
+     * @param files
+     * @param pagesDir
+     * @param archive archive to rebuild, null to only transform pages
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    void processFiles(ListeningExecutorService workers, Iterator<File> files, File pagesDir, File archive)
+            throws IOException, MojoExecutionException {
+        ZipArchiveOutputStream outputStream = null;
+        ZipFile previousArchive = null;
+        boolean complete = false;
+        try {
+            if (archive != null) {
+                outputStream = openArchive(archive);
+                outputStream.setLevel(this.compressionLevel);
+                if (reusesPreviousOutputs() && archive.isFile()) {
+                    previousArchive = ZipFile.builder().setFile(archive).get();
+                }
+            }
+
+            // Transform and filter on the workers, write the archive entries here in file order
+            Deque<Future<ResourceEntry>> pending = new ArrayDeque<Future<ResourceEntry>>();
+            Deque<Long> pendingSizes = new ArrayDeque<Long>();
+            long pendingBytes = 0;
+            boolean overlaid = archive != null && !this.overlays.isEmpty() && archive.equals(getArchive());
+            Set<String> written = newHashSet();
+            boolean debug = getLog().isDebugEnabled();
+            while (files.hasNext()) {
+                File file = files.next();
+                if (debug) {
+                    getLog().debug(String.format("\t--file: [%s]", file.getAbsolutePath()));
+                }
+                FileType type = getFileType(file);
+                if (type != FileType.HTML && (outputStream == null || getLayout().isDuplicate(getArchivePath(file)))) {
+                    continue;
+                }
+                if (type == FileType.HTML && isPartial(file)) {
+                    removePartialPage(pagesDir, file);
+                    continue;
+                }
+                if (overlaid && type != FileType.HTML) {
+                    written.add(getEntryName(file));
+                }
+                // entries are held compressed until written, the window is bounded in files and in bytes
+                long held = heldEstimate(file, type, previousArchive);
+                if (pendingBytes + held > this.inFlightBytes) {
+                    pendingBytes = settle(pending, pendingSizes);
+                }
+                while (!pending.isEmpty() && (pending.size() >= this.threads * 4
+                        || pendingBytes + held > this.inFlightBytes)) {
+                    pendingBytes -= pendingSizes.remove();
+                    writeResource(outputStream, previousArchive, await(pending.remove()));
+                }
+                if (type == FileType.OTHER && isDeflated(file) && !isStreamed(file) && getDeflater().isChunked(file)
+                        && !isReusable(previousArchive, file)) {
+                    pending.add(deflateInChunks(workers, file));
+                } else {
+                    pending.add(workers.submit(processFile(pagesDir, file, previousArchive)));
+                }
+                pendingSizes.add(held);
+                pendingBytes += held;
+            }
+            while (!pending.isEmpty()) {
+                writeResource(outputStream, previousArchive, await(pending.remove()));
+            }
+            if (overlaid) {
+                writeOverlays(outputStream, written);
+            }
+            complete = true;
+        } finally {
+            Utils.close(outputStream);
+            Utils.close(previousArchive);
+            if (!complete && archive != null) {
+                // the previous archive is kept, the partial one dropped
+                File temp = this.tempArchives.remove(archive);
+                if (temp != null) {
+                    temp.delete();
+                }
+            }
+        }
+        if (archive != null) {
+            archiveWritten(archive);
+        }
+    }
+
+    /**
+     * @param file
+     * @param type type of the file
+     * @param previousArchive archive of the previous run, may be null
+     * @return most bytes the entry of the file holds until it is written: its size when it is compressed on the
+     *         workers, none for pages and for files the archive writer copies
+     */
+    private long heldEstimate(File file, FileType type, ZipFile previousArchive) {
+        if (type == FileType.HTML || (type == FileType.OTHER && (!isDeflated(file) || isStreamed(file)))
+                || isReusable(previousArchive, file)) {
+            return 0;
+        }
+        return file.length();
+    }
+
+    /**
+     * Replace the estimates of the entries the workers finished with the compressed bytes they actually hold
+     * @param pending entries waiting for the archive writer
+     * @param sizes bytes held by each pending entry, estimated until it is finished
+     * @return total of the bytes held
+     */
+    static long settle(Deque<Future<ResourceEntry>> pending, Deque<Long> sizes) {
+        long total = 0;
+        int count = sizes.size();
+        Iterator<Future<ResourceEntry>> entries = pending.iterator();
+        for (int i = 0; i < count; i++) {
+            Future<ResourceEntry> future = entries.next();
+            long size = sizes.remove();
+            if (future.isDone()) {
+                try {
+                    ResourceEntry entry = Uninterruptibles.getUninterruptibly(future);
+                    size = entry == null ? 0 : entry.heldBytes();
+                } catch (ExecutionException e) {
+                    // reported when the entry is written
+                }
+            }
+            sizes.add(size);
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Open the stream a static resources archive is written to. The archive itself is only replaced once it is
+     * complete
+     * @param archive
+     * @return stream writing a temporary file next to the archive, named uniquely so concurrent writers never share it
+     * @throws IOException
+     */
+    ZipArchiveOutputStream openArchive(File archive) throws IOException {
+        File temp = Utils.tempFile(archive);
+        this.tempArchives.put(archive, temp);
+        return new ZipArchiveOutputStream(temp);
+    }
+
+    /**
+     * Replace the archive with the completely written temporary file
+     * @param archive
+     * @throws IOException
+     */
+    void archiveWritten(File archive) throws IOException {
+        Utils.replace(this.tempArchives.remove(archive), archive);
+    }
+
+    /**
+     * Create the pool that transforms pages and filters text resources
+     * @return a fixed pool of daemon threads, or a same-thread executor when running sequentially
+     */
+    ListeningExecutorService createWorkers() {
+        if (this.threads <= 1) {
+            return MoreExecutors.sameThreadExecutor();
+        }
+        getLog().info("Processing files with threads=" + this.threads);
+        return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(this.threads,
+                new ThreadFactoryBuilder().setNameFormat("webtosf-%d").setDaemon(true).build()));
+    }
+
+    /**
+     * Create the pool writing the pages and the bundles, separate from the workers they hand files to
+     * @param count number of archives and page sets to write
+     * @return a pool of daemon threads, or a same-thread executor when running sequentially
+     */
+    private ListeningExecutorService createWriters(int count) {
+        if (this.threads <= 1) {
+            return MoreExecutors.sameThreadExecutor();
+        }
+        return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(Math.min(count, this.threads),
+                new ThreadFactoryBuilder().setNameFormat("webtosf-writer-%d").setDaemon(true).build()));
+    }
+
+    /**
+     * Record the current state of every file in the manifest, hashing the files on the workers
+     * @param workers
+     * @param files
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private void recordFiles(ListeningExecutorService workers, File[] files)
+            throws IOException, MojoExecutionException {
+        long start = ExecutionMetrics.start();
+        // every page changes with the partials inlined into it
+        final String partialsFingerprint = Hashing.sha1().hashString(this.engine.templates(), Charsets.UTF_8)
+                .toString();
+        List<Future<ResourceEntry>> recorded = newArrayList();
+        for (final File file : files) {
+            recorded.add(workers.submit(new Callable<ResourceEntry>() {
+                public ResourceEntry call() throws IOException {
+                    FileType type = getFileType(file);
+                    String fingerprint = type == FileType.OTHER ? "" : textFingerprint();
+                    if (type == FileType.HTML && tokenizeHtml) {
+                        fingerprint += "/tokenized";
+                    }
+                    if (type == FileType.HTML && inlinesPartials()) {
+                        fingerprint += "/" + partialsFingerprint;
+                    }
+                    currentManifest.track(previousManifest, file, getArchivePath(file), type, fingerprint);
+                    return null;
+                }
+            }));
+        }
+        for (Future<ResourceEntry> future : recorded) {
+            await(future);
+        }
+        this.metrics.phase(Phase.CHANGES, start);
+    }
+
+    /**
+     * Record the state of every overlay in the manifest, so a changed overlay rebuilds the archive
+     * @throws IOException
+     */
+    private void recordOverlays() throws IOException {
+        for (int i = 0; i < this.overlays.size(); i++) {
+            Overlay overlay = this.overlays.get(i);
+            String fingerprint = textFingerprint() + "/" + directory(overlay.prefix) + "/"
+                    + directory(overlay.targetPath) + "/" + overlay.includes + "/" + overlay.excludes;
+            this.currentManifest.track(this.previousManifest, overlay.file, "!overlay/" + i + "/"
+                    + overlay.file.getName(), FileType.OTHER, fingerprint.replace('\t', ' ').replace('\n', ' '));
+        }
+    }
+
+    /**
+     * Delete the page a run that did not inline the partial generated for it
+     * @param pagesDir
+     * @param partial
+     */
+    private void removePartialPage(File pagesDir, File partial) {
+        String name = getPageName(partial);
+        if (deletePage(pagesDir, name)) {
+            getLog().info("removing page=" + name + " for inlined partial=" + getArchivePath(partial));
+        }
+    }
+
+    /**
+     * Delete a page and its metadata
+     * @param pagesDir
+     * @param name name of the page
+     * @return true if the page existed
+     */
+    boolean deletePage(File pagesDir, String name) {
+        new File(pagesDir, name + ".page-meta.xml").delete();
+        return new File(pagesDir, name + ".page").delete();
+    }
+
+    /**
+     * Delete the pages generated from html files that no longer exist
+     * @param pagesDir
+     * @param paths paths of the removed html files
+     */
+    void removePages(File pagesDir, List<String> paths) {
+        File baseDir = new File(this.webappDir.getDirectory());
+        for (String path : paths) {
+            String name = getPageName(new File(baseDir, path));
+            getLog().info("removing page=" + name + " for deleted file=" + path);
+            deletePage(pagesDir, name);
+        }
+    }
+
+    /**
+     * @return true if unchanged pages and archive entries of the previous run may be kept
+     */
+    boolean reusesPreviousOutputs() {
+        return this.incremental;
+    }
+
+    /**
+     * @param path path relative to the webappDir
+     * @return true if the file and its filters did not change since the previous incremental run
+     */
+    boolean isUnchanged(String path) {
+        return this.incremental && this.currentManifest.isUnchanged(this.previousManifest, path);
+    }
+
+    /**
+     * @param pagesDir
+     * @param htmlFile
+     * @return true if the page generated for the html file by the previous run is still current
+     */
+    boolean keepsPage(File pagesDir, File htmlFile) {
+        return isUnchanged(getArchivePath(htmlFile)) && new File(pagesDir, getPageName(htmlFile) + ".page").isFile();
+    }
+
+    /**
+     * @param previousArchive archive of the previous run, may be null
+     * @param file
+     * @return true if the entry of the previous archive can be copied as is
+     */
+    private boolean isReusable(ZipFile previousArchive, File file) {
+        return previousArchive != null && isUnchanged(getArchivePath(file))
+                && previousArchive.getEntry(getEntryName(file)) != null;
+    }
+
+    /**
+     * Work to be done on a worker thread for one file
+     * @param pagesDir
+     * @param file
+     * @param previousArchive archive of the previous run to reuse unchanged entries from, may be null
+     * @return task producing the archive entry for the file, or null for pages
+     */
+    private Callable<ResourceEntry> processFile(final File pagesDir, final File file, final ZipFile previousArchive) {
+        return new Callable<ResourceEntry>() {
+            public ResourceEntry call() throws IOException {
+                FileType type = getFileType(file);
+                if (type == FileType.HTML) {
+                    if (keepsPage(pagesDir, file)) {
+                        getLog().debug("page unchanged file=" + file);
+                    } else {
+                        transformHtmlToPage(pagesDir, file);
+                    }
+                    return null;
+                }
+
+                if (isReusable(previousArchive, file)) {
+                    return ResourceEntry.previous(getEntryName(file), file);
+                }
+                if (type == FileType.TEXT) {
+                    return filterTextStaticResource(file);
+                }
+                return isDeflated(file) && !isStreamed(file) ? deflateBinaryStaticResource(file)
+                        : ResourceEntry.binary(getEntryName(file), file);
+            }
+        };
+    }
+
+    /**
+     * Compress a large file in chunks on the workers
+     * @param workers
+     * @param file
+     * @return the entry for the file, once every chunk is compressed
+     */
+    private Future<ResourceEntry> deflateInChunks(ListeningExecutorService workers, final File file) {
+        final String path = getEntryName(file);
+        getLog().debug("deflating in chunks file=" + file);
+        return Futures.transform(getDeflater().deflateInChunks(workers, file), new Function<Deflated, ResourceEntry>() {
+            public ResourceEntry apply(Deflated deflated) {
+                return ResourceEntry.deflated(path, file, deflated);
+            }
+        });
+    }
+
+    /**
+     * Wait for a worker to finish, unwrapping its failure
+     * @param future
+     * @return the worker's result
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private <T> T await(Future<T> future) throws IOException, MojoExecutionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while processing files", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw new MojoExecutionException("Error executing mojo", e.getCause());
+        }
+    }
+
+    /**
+     * Write a processed file to the static resources archive
+     * @param zos
+     * @param previousArchive archive of the previous run, may be null
+     * @param entry entry to write, null if the file did not produce one
+     * @throws IOException
+     */
+    private void writeResource(ZipArchiveOutputStream zos, ZipFile previousArchive, ResourceEntry entry)
+            throws IOException {
+        if (entry == null) {
+            return;
+        }
+        if (entry.deflated == null && !entry.fromPreviousArchive) {
+            archiveBinaryStaticResource(zos, null, entry.source);
+            return;
+        }
+        long start = ExecutionMetrics.start();
+        if (entry.fromPreviousArchive) {
+            getLog().debug("reusing unchanged entry=" + entry.path);
+            ZipArchiveEntry previous = previousArchive.getEntry(entry.path);
+            ZipArchiveEntry zipEntry = previous;
+            if (this.reproducible) {
+                zipEntry = new ZipArchiveEntry(previous);
+                zipEntry.setTime(entryTime());
+            }
+            zos.addRawArchiveEntry(zipEntry, previousArchive.getRawInputStream(previous));
+        } else {
+            getLog().info("zipping dir=" + entry.source + " file=" + entry.source.getName() + " to=" + entry.path);
+            writeDeflated(zos, entry.path, entry.deflated);
+        }
+        this.metrics.phase(Phase.ARCHIVE, start);
+    }
+
+    /**
+     * Add content compressed beforehand to the archive, as raw deflate data
+     * @param zos
+     * @param path path of the entry in the archive
+     * @param deflated
+     * @throws IOException
+     */
+    private void writeDeflated(ZipArchiveOutputStream zos, String path, Deflated deflated) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(path);
+        zipEntry.setMethod(ZipArchiveEntry.DEFLATED);
+        zipEntry.setTime(entryTime());
+        zipEntry.setCrc(deflated.crc);
+        zipEntry.setSize(deflated.size);
+        zipEntry.setCompressedSize(deflated.compressedSize);
+        InputStream in = deflated.openStream();
+        try {
+            zos.addRawArchiveEntry(zipEntry, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Add the entries of the overlays to the archive, after the files of the webappDir
+     * @param zos
+     * @param written paths already in the archive, entries of the same path are left out
+     * @throws IOException
+     */
+    private void writeOverlays(ZipArchiveOutputStream zos, Set<String> written) throws IOException {
+        for (Overlay overlay : this.overlays) {
+            long start = ExecutionMetrics.start();
+            String prefix = directory(overlay.prefix);
+            String targetPath = directory(overlay.targetPath);
+            FileSetMatcher matcher = new FileSetMatcher(overlay.includes, overlay.excludes);
+            int copied = 0;
+            int filtered = 0;
+            ZipFile zip = ZipFile.builder().setFile(overlay.file).get();
+            try {
+                List<ZipArchiveEntry> entries = Collections.list(zip.getEntries());
+                if (this.reproducible) {
+                    Collections.sort(entries, new Comparator<ZipArchiveEntry>() {
+                        public int compare(ZipArchiveEntry a, ZipArchiveEntry b) {
+                            return a.getName().compareTo(b.getName());
+                        }
+                    });
+                }
+                for (ZipArchiveEntry entry : entries) {
+                    if (entry.isDirectory() || !entry.getName().startsWith(prefix)) {
+                        continue;
+                    }
+                    String relative = entry.getName().substring(prefix.length());
+                    if (!matcher.matches(relative)) {
+                        continue;
+                    }
+                    String path = targetPath + relative;
+                    if (!written.add(path)) {
+                        getLog().debug("overlay entry replaced by a file of the webappDir=" + path);
+                        continue;
+                    }
+                    if (writeOverlayEntry(zos, zip, entry, path)) {
+                        copied++;
+                    } else {
+                        filtered++;
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+            getLog().info(String.format("Overlaid %s: %d entries copied compressed, %d filtered", overlay.file,
+                    copied, filtered));
+            this.metrics.phase(Phase.ARCHIVE, start);
+        }
+    }
+
+    /**
+     * Add an entry of an overlay to the archive. The compressed bytes are copied along with the CRC and sizes of the
+     * entry, unless it is a text a filter or the minifier may change: it is then inflated, filtered, and compressed
+     * again only if it did change
+     * @param zos
+     * @param zip the overlay
+     * @param entry
+     * @param path path of the entry in the archive
+     * @return true if the entry was copied still compressed
+     * @throws IOException
+     */
+    private boolean writeOverlayEntry(ZipArchiveOutputStream zos, ZipFile zip, ZipArchiveEntry entry, String path)
+            throws IOException {
+        File name = new File(path);
+        String extension = getExtension(name);
+        boolean minified = this.minify && ("js".equals(extension) || "css".equals(extension));
+        if (getFileType(name) != FileType.OTHER && (minified || !this.filterEngine.isEmpty(FileType.TEXT))) {
+            byte[] original;
+            InputStream in = zip.getInputStream(entry);
+            try {
+                original = ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+            if (minified || this.filterEngine.mayChange(new String(original, this.engine.charset()), FileType.TEXT)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(original.length + lineSeparator().length());
+                this.engine.filterText(new ByteArrayInputStream(original), out);
+                getLog().info("filtering overlay entry=" + entry.getName() + " to=" + path);
+                writeDeflated(zos, path, getDeflater().deflate(this.engine.minify(out.toByteArray(), extension)));
+                return false;
+            }
+        }
+        getLog().debug("copying overlay entry=" + entry.getName() + " to=" + path);
+        ZipArchiveEntry copy = new ZipArchiveEntry(path);
+        copy.setMethod(entry.getMethod());
+        copy.setCrc(entry.getCrc());
+        copy.setSize(entry.getSize());
+        copy.setCompressedSize(entry.getCompressedSize());
+        copy.setTime(this.reproducible ? entryTime() : entry.getTime());
+        InputStream raw = zip.getRawInputStream(entry);
+        try {
+            zos.addRawArchiveEntry(copy, raw);
+        } finally {
+            raw.close();
+        }
+        return true;
+    }
+
+    /**
+     * @param path a directory of an archive, may be null
+     * @return the directory with a trailing slash and no leading one, empty for the root
+     */
+    private static String directory(String path) {
+        String directory = path == null ? "" : path.replace('\\', '/');
+        while (directory.startsWith("/")) {
+            directory = directory.substring(1);
+        }
+        return directory.isEmpty() || directory.endsWith("/") ? directory : directory + "/";
+    }
+
+    /**
+     * Add the file to the static resources archive, replacing text according to the filters defined in this plugin's
+     * configuration
+     * @param zos
+     * @param staticResourcesDir
+     * @param file
+     * @throws IOException
+     */
+    protected void archiveTextStaticResource(ZipArchiveOutputStream zos, File staticResourcesDir, File file)
+            throws IOException {
+        writeResource(zos, null, filterTextStaticResource(file));
+    }
+
+    /**
+     * Read a text file, replacing text according to the filters defined in this plugin's configuration, and compress
+     * it. Safe to call from several threads at once
+     * @param file
+     * @return entry holding the compressed, filtered content
+     * @throws IOException
+     */
+    private ResourceEntry filterTextStaticResource(File file) throws IOException {
+        long start = ExecutionMetrics.start();
+        Deflated deflated = null;
+        String key = null;
+        if (this.transformCache != null) {
+            // hashed as it is read, the file is only read whole again on a miss
+            key = TransformCache.key(textCacheFingerprint(file), file);
+            deflated = this.transformCache.get(key);
+        }
+        if (deflated == null) {
+            boolean mapped = file.length() > this.mappedThreshold;
+            if (this.engine.minifies(getExtension(file))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length() + lineSeparator().length());
+                this.engine.filterText(file, out, mapped);
+                deflated = minifyAndDeflate(out.toByteArray(), file);
+            } else {
+                // compressed as it is filtered, only the compressed content is held
+                DeflatingStream out = getDeflater().stream();
+                this.engine.filterText(file, out, mapped);
+                deflated = out.finish();
+            }
+            if (key != null) {
+                this.transformCache.put(key, deflated);
+            }
+        }
+        this.metrics.file(Phase.TEXT, getArchivePath(file), FileType.TEXT, file.length(), start);
+        return ResourceEntry.deflated(getEntryName(file), file, deflated);
+    }
+
+    /**
+     * Minify filtered scripts and stylesheets when asked to, and compress the result
+     * @param content filtered content
+     * @param file file the content was read from
+     * @return the compressed content
+     */
+    private Deflated minifyAndDeflate(byte[] content, File file) {
+        return getDeflater().deflate(this.engine.minify(content, getExtension(file)));
+    }
+
+    /**
+     * @return fingerprint of everything besides the content that determines the output of a text or html file
+     */
+    private String textFingerprint() {
+        return this.filterEngine.fingerprint() + "/" + textSettings();
+    }
+
+    /**
+     * @return charset, line separator and minification the text and html files are written with
+     */
+    private String textSettings() {
+        // escaped, the fingerprint is recorded in the one-line entries of the manifest
+        String lf = lineSeparator().replace("\r", "\\r").replace("\n", "\\n");
+        return this.engine.charset().name() + "/" + lf + (this.minify ? "/minified" : "");
+    }
+
+    /**
+     * The filters applied to text and, when references are rewritten, the bundle and name of each file if the filtered
+     * content may hold a reference: a text file is cached across executions whose other settings differ
+     * @param file
+     * @return fingerprint of everything besides the content that determines the output of the text file
+     * @throws IOException
+     */
+    private String textCacheFingerprint(File file) throws IOException {
+        String fingerprint = this.filterEngine.fingerprint(FileType.TEXT) + "/" + textSettings() + "/"
+                + this.compressionLevel;
+        Bundles bundles = getLayout();
+        if (bundles.rewritesReferences() && (this.filterEngine.mayWrite(bundles.reference(), FileType.TEXT)
+                || Utils.contains(file, this.engine.charset(), bundles.reference()))) {
+            fingerprint += "/" + bundles.fingerprint();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Read and compress a binary file too small to be split into chunks. Safe to call from several threads at once
+     * @param file
+     * @return entry holding the compressed content
+     * @throws IOException
+     */
+    private ResourceEntry deflateBinaryStaticResource(File file) throws IOException {
+        long start = ExecutionMetrics.start();
+        byte[] content = Files.toByteArray(file);
+        Deflated deflated = null;
+        String key = null;
+        if (this.transformCache != null) {
+            key = TransformCache.key("binary/" + this.compressionLevel, content);
+            deflated = this.transformCache.get(key);
+        }
+        if (deflated == null) {
+            deflated = getDeflater().deflate(content);
+            if (key != null) {
+                this.transformCache.put(key, deflated);
+            }
+        }
+        this.metrics.file(Phase.ARCHIVE, getArchivePath(file), FileType.OTHER, file.length(), start);
+        return ResourceEntry.deflated(getEntryName(file), file, deflated);
+    }
+
+    /**
+     * Add the file to the static resources archive, doing a byte-by-byte copy. Files with one of the
+     * storedExtensions are stored without compression
+     * @param zos
+     * @param staticResourcesDir
+     * @param file
+     * @throws IOException
+     */
+    protected void archiveBinaryStaticResource(ZipArchiveOutputStream zos, File staticResourcesDir, File file)
+            throws IOException {
+        long start = ExecutionMetrics.start();
+        String path = getEntryName(file);
+        getLog().info("zipping dir=" + file + " file=" + file.getName() + " to=" + path);
+
+        byte[] buf = getCopyBuffer();
+        boolean mapped = file.length() > this.mappedThreshold;
+        ZipArchiveEntry entry = new ZipArchiveEntry(path);
+        entry.setTime(entryTime());
+        if (isStored(file)) {
+            entry.setMethod(ZipArchiveEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCrc(mapped ? MappedFile.crc(file) : crc(file, buf));
+        }
+        zos.putArchiveEntry(entry);
+        if (mapped) {
+            MappedFile.copy(file, zos, buf);
+        } else {
+            InputStream is = new FileInputStream(file);
+            try {
+                int len;
+                while ((len = is.read(buf)) != -1) {
+                    zos.write(buf, 0, len);
+                }
+            } finally {
+                is.close();
+            }
+        }
+        zos.closeArchiveEntry();
+        this.metrics.file(Phase.ARCHIVE, path, FileType.OTHER, file.length(), start);
+    }
+
+    /**
+     * @return the deflater of this execution, created with the configured level and chunk size on first use
+     */
+    private ParallelDeflater getDeflater() {
+        if (this.deflater == null) {
+            this.deflater = new ParallelDeflater(this.compressionLevel, this.deflateChunkSize);
+        }
+        return this.deflater;
+    }
+
+    /**
+     * @return buffer for copying binary files, reused for every file an archive writer copies
+     */
+    private byte[] getCopyBuffer() {
+        byte[] copyBuffer = this.copyBuffers.get();
+        if (copyBuffer == null || copyBuffer.length != this.bufferSize) {
+            copyBuffer = new byte[this.bufferSize];
+            this.copyBuffers.set(copyBuffer);
+        }
+        return copyBuffer;
+    }
+
+    /**
+     * @param file
+     * @return true if the file is already compressed and should be stored in the archive as is
+     */
+    private boolean isStored(File file) {
+        String extension = getExtension(file);
+        for (String stored : this.storedExtensions) {
+            if (stored.equalsIgnoreCase(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param file
+     * @return true if the file is compressed on the workers rather than copied by the archive writer
+     */
+    private boolean isDeflated(File file) {
+        return !isStored(file);
+    }
+
+    /**
+     * @param file a binary file
+     * @return true if the file is too large to be held in memory, and is copied by the archive writer from mapped
+     *         memory, compressed on the way unless it is stored
+     */
+    private boolean isStreamed(File file) {
+        return file.length() > this.mappedThreshold;
+    }
+
+    /**
+     * Compute the CRC-32 of a file, as needed up front by stored archive entries
+     * @param file
+     * @param buf buffer to read the file with
+     * @return the checksum
+     * @throws IOException
+     */
+    private static long crc(File file, byte[] buf) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                crc.update(buf, 0, len);
+            }
+            return crc.getValue();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Creates metadata needed by Force.com to deploy the static resources
+     * @param staticResourcesDir
+     * @throws IOException
+     */
+    protected void createMetaData(File staticResourcesDir) throws IOException {
+        createMetaData(staticResourcesDir, zipFilename);
+    }
+
+    /**
+     * Creates the metadata of every bundle, and deletes the parts of bundles that are no longer split that far
+     * @param staticResourcesDir
+     * @throws IOException
+     */
+    void createBundleMetaData(File staticResourcesDir) throws IOException {
+        Bundles bundles = getLayout();
+        for (String name : bundles.names()) {
+            createMetaData(staticResourcesDir, name);
+        }
+        if (!isBundled()) {
+            return;
+        }
+        List<String> bases = newArrayList(this.zipFilename);
+        for (Bundle bundle : this.bundles) {
+            bases.add(bundle.name);
+        }
+        File[] outputs = staticResourcesDir.listFiles();
+        for (File output : outputs == null ? new File[0] : outputs) {
+            String name = output.getName().replaceFirst("\\.resource(-meta\\.xml)?$", "");
+            if (name.equals(output.getName()) || bundles.names().contains(name)) {
+                continue;
+            }
+            for (String base : bases) {
+                if (name.matches(Pattern.quote(base) + "_\\d+")) {
+                    getLog().info("removing stale bundle part=" + output);
+                    output.delete();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates metadata needed by Force.com to deploy one static resource
+     * @param staticResourcesDir
+     * @param name name of the static resource
+     * @throws IOException
+     */
+    protected void createMetaData(File staticResourcesDir, String name) throws IOException {
+        Utils.writeIfChanged(resourceMetaData(), new File(staticResourcesDir, name + ".resource-meta.xml"),
+                Charsets.UTF_8);
+    }
+
+    /**
+     * Transform a single htmlFile to a Force.com .page file
+     * @param pagesDir
+     * @param htmlFile
+     */
+    protected void transformHtmlToPage(File pagesDir, File htmlFile) throws IOException {
+        String name = getPageName(htmlFile);
+        File to = new File(pagesDir, name + ".page");
+        File toMeta = new File(pagesDir, name + ".page-meta.xml");
+        getLog().info("transforming page file=" + htmlFile + " to=" + to);
+
+        // Data, replacing the previous page only once complete
+        File temp = Utils.tempFile(to);
+        try {
+            OutputStream w = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                writePage(htmlFile, w);
+            } finally {
+                w.close();
+            }
+            Utils.replace(temp, to);
+        } finally {
+            temp.delete();
+        }
+
+        // Meta
+        Utils.writeIfChanged(pageMetaData(name), toMeta, Charsets.UTF_8);
+    }
+
+    /**
+     * Write the page generated for an html file. Safe to call from several threads at once
+     * @param htmlFile
+     * @param w
+     * @throws IOException
+     */
+    void writePage(File htmlFile, OutputStream w) throws IOException {
+        long start = ExecutionMetrics.start();
+        InputStream r = new FileInputStream(htmlFile);
+        try {
+            this.engine.writePage(r, (int) htmlFile.length(), w);
+        } finally {
+            r.close();
+        }
+        this.metrics.file(Phase.PAGES, getArchivePath(htmlFile), FileType.HTML, htmlFile.length(), start);
+    }
+
+    /**
+     * @param name name of the page
+     * @return metadata needed by Force.com to deploy the page
+     */
+    String pageMetaData(String name) {
+        String lf = lineSeparator();
+        return "" + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + lf
+                + "<ApexPage xmlns=\"http://soap.sforce.com/2006/04/metadata\">" + lf
+                + "    <apiVersion>" + API_VERSION + "</apiVersion>" + lf
+                + "    <label>" + name + "</label>" + lf
+                + "</ApexPage>";
+    }
+
+    /**
+     * @return metadata needed by Force.com to deploy a static resource archive
+     */
+    String resourceMetaData() {
+        String lf = lineSeparator();
+        return ""
+                + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + lf
+                + "<StaticResource xmlns=\"http://soap.sforce.com/2006/04/metadata\">" + lf
+                + "    <cacheControl>Public</cacheControl>" + lf
+                + "    <contentType>application/zip</contentType>" + lf
+                + "</StaticResource>";
+    }
+
+    /**
+     * Name of the page generated for an html file, flattening its path
+     * @param htmlFile
+     * @return page name without extension
+     */
+    String getPageName(File htmlFile) {
+        // Prepend path
+        File baseDir = new File(this.webappDir.getDirectory());
+        String name = "";
+        for (String path : Utils.pathDifference(baseDir, htmlFile.getParentFile())) {
+            name += Utils.cleanName(path);
+        }
+        return name + Utils.cleanName(Utils.removeSuffix(htmlFile.getName()));
+    }
+
+    /**
+     * Validate properties
+     */
+    private void validateAndDebug() throws MojoExecutionException {
+        getLog().debug("Executing webtosf mojo.");
+        getLog().debug(String.format("webAppDir: [%s]", webappDir.getDirectory()));
+        getLog().info(String.format("Filters:"));
+        for (Filter filter : this.filters) {
+            if (filter.token == null) {
+                throw new MojoExecutionException("token required on each filter.");
+            }
+            try {
+                filter.getFileTypes();
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException("fileTypes of each filter must be html, text or other.", e);
+            }
+            if (filter.window != null && filter.window < 0) {
+                throw new MojoExecutionException("window of a filter must be 0 or more characters.");
+            }
+            getLog().debug(String.format("\t--filter token: [%s] value: [%s]", filter.token, filter.getValue()));
+        }
+        for (String pattern : this.treeShakePatterns) {
+            try {
+                if (Pattern.compile(pattern).matcher("").groupCount() < 1) {
+                    throw new MojoExecutionException("treeShakePattern " + pattern + " must capture the path.");
+                }
+            } catch (PatternSyntaxException e) {
+                throw new MojoExecutionException("Invalid treeShakePattern " + pattern, e);
+            }
+        }
+        this.partialMatcher = this.partials.isEmpty() ? null
+                : new FileSetMatcher(this.partials, Collections.<String>emptyList());
+        for (Overlay overlay : this.overlays) {
+            if (overlay.file == null || !overlay.file.isFile()) {
+                throw new MojoExecutionException("file of each overlay must be an existing jar or zip, not "
+                        + overlay.file);
+            }
+            getLog().debug(String.format("\t--overlay file: [%s] prefix: [%s] targetPath: [%s]", overlay.file,
+                    overlay.prefix, overlay.targetPath));
+        }
+        for (Bundle bundle : this.bundles) {
+            if (bundle.name == null || !bundle.name.matches("[A-Za-z][A-Za-z0-9_]*")) {
+                throw new MojoExecutionException("name of letters, digits and underscores required on each bundle.");
+            }
+            getLog().debug(String.format("\t--bundle name: [%s] includes: %s", bundle.name, bundle.includes));
+        }
+        getLog().debug(String.format("outputDir: [%s]", outputDir.getAbsolutePath()));
+    }
+
+    /**
+     * Iterates through the webappDir, populating the files property and the replacement map
+     * @return Array of files we care about (applying includes and excludes)
+     * @throws MojoExecutionException
+     */
+    protected File[] filesIncludedByConfiguration() throws MojoExecutionException {
+        if (this.webappDir == null || this.webappDir.getDirectory() == null) {
+            return new File[] {};
+        }
+        try {
+            List<File> files = new FileDiscovery(getWebappBaseDir(), getFileSetMatcher()).scan();
+            if (this.treeShake) {
+                files = shake(files);
+            }
+            return files.toArray(new File[files.size()]);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to get webappDir files", e);
+        }
+    }
+
+    /**
+     * Leave out the static resources no page references, directly or not. Files matching the treeShakeKeeps are kept
+     * like pages
+     * @param files every file of the webappDir
+     * @return the pages and the files they reach, in the order they were found
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    private List<File> shake(List<File> files) throws IOException, MojoExecutionException {
+        long start = ExecutionMetrics.start();
+        FileSetMatcher keeps = new FileSetMatcher(this.treeShakeKeeps, Collections.<String>emptyList());
+        List<File> roots = newArrayList();
+        for (File file : files) {
+            if (getFileType(file) == FileType.HTML
+                    || (!this.treeShakeKeeps.isEmpty() && keeps.matches(getArchivePath(file)))) {
+                roots.add(file);
+            }
+        }
+        Set<File> reachable = new ReferenceGraph(getWebappBaseDir(), getCharset(), scriptPatterns())
+                .reachable(files, roots);
+
+        List<File> kept = newArrayList();
+        List<String> unreferenced = newArrayList();
+        long bytes = 0;
+        for (File file : files) {
+            if (reachable.contains(file)) {
+                kept.add(file);
+            } else {
+                getLog().info("leaving out unreferenced file=" + getArchivePath(file));
+                unreferenced.add(getArchivePath(file));
+                bytes += file.length();
+            }
+        }
+        getLog().info(String.format("Tree shaking left out %d unreferenced files, %d bytes", unreferenced.size(),
+                bytes));
+        this.metrics.unreferenced(unreferenced);
+        this.metrics.phase(Phase.TREE_SHAKE, start);
+        return kept;
+    }
+
+    /**
+     * @return the treeShakePatterns, finding references in scripts
+     */
+    private List<Pattern> scriptPatterns() {
+        List<Pattern> patterns = newArrayList();
+        for (String pattern : this.treeShakePatterns) {
+            patterns.add(Pattern.compile(pattern));
+        }
+        return patterns;
+    }
+
+    /**
+     * Same files as {@link #filesIncludedByConfiguration}, handed out while the webappDir is still being walked so
+     * processing starts with the first file found
+     * @return the files, closeable to stop the walk early
+     * @throws MojoExecutionException
+     */
+    Iterator<File> streamFilesIncludedByConfiguration() throws MojoExecutionException {
+        if (this.webappDir == null || this.webappDir.getDirectory() == null) {
+            return Collections.<File>emptyList().iterator();
+        }
+        return new FileDiscovery(getWebappBaseDir(), getFileSetMatcher()).stream();
+    }
+
+    /**
+     * @return directory the webapp files are read from
+     */
+    File getWebappBaseDir() {
+        return new File(this.webappDir.getDirectory());
+    }
+
+    /**
+     * @param file
+     * @return path of the file inside its static resources archive, renamed when names are hashed
+     */
+    String getEntryName(File file) {
+        return getLayout().nameOf(getArchivePath(file));
+    }
+
+    /**
+     * @return the include and exclude patterns of the webappDir
+     */
+    FileSetMatcher getFileSetMatcher() {
+        return new FileSetMatcher(this.webappDir.getIncludes(), this.webappDir.getExcludes());
+    }
+
+    /**
+     * @return directory the pages are written to
+     */
+    File getPagesDir() {
+        return new File(this.outputDir, "pages");
+    }
+
+    /**
+     * Create the directories the pages and static resources are written to
+     */
+    void createOutputDirs() {
+        Utils.createDir(this.outputDir, "staticResources");
+        Utils.createDir(this.outputDir, "pages");
+    }
+
+    /**
+     * @return file incremental runs record their inputs in, read back by the next incremental run
+     */
+    File getManifestFile() {
+        return new File(this.outputDir, MANIFEST_FILENAME);
+    }
+
+    /**
+     * @return the static resources archive
+     */
+    File getArchive() {
+        return getArchive(this.zipFilename);
+    }
+
+    /**
+     * @param name name of the static resource
+     * @return archive of the static resource
+     */
+    File getArchive(String name) {
+        return new File(new File(this.outputDir, "staticResources"), name + ".resource");
+    }
+
+    /**
+     * @param file
+     * @return path of the file inside the static resources archive
+     */
+    String getArchivePath(File file) {
+        return Utils.getRelativePath(new File(this.webappDir.getDirectory()), file);
+    }
+
+    /**
+     * @return the configured encoding, or the platform encoding if none is configured
+     * @throws MojoExecutionException if the encoding is not supported
+     */
+    private Charset getCharset() throws MojoExecutionException {
+        if (this.encoding == null || this.encoding.isEmpty()) {
+            getLog().warn("No encoding configured, using platform encoding " + Charset.defaultCharset());
+            return Charset.defaultCharset();
+        }
+        try {
+            return Charset.forName(this.encoding);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Unsupported encoding " + this.encoding, e);
+        }
+    }
+
+    /**
+     * Get the {@code FileType} of a given file
+     * @param file
+     * @return matching FileType or OTHER if none matches
+     */
+    FileType getFileType(File file) {
+        return fileTypeOf(file);
+    }
+
+    /**
+     * @param file
+     * @return type of the file by its extension, OTHER if it has none of the known ones
+     */
+    static FileType fileTypeOf(File file) {
+        FileType type = EXTENSIONS_MAP.get(getExtension(file));
+        return type == null ? FileType.OTHER : type;
+    }
+
+    /**
+     * @param file
+     * @return lower case extension of the file, empty if it has none
+     */
+    static String getExtension(File file) {
+        final String name = file.getName().toLowerCase();
+        return Iterables.getLast(Splitter.on(".").split(name), "");
     }
 
 }
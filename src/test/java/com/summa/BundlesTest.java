@@ -0,0 +1,91 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.common.base.Charsets;
+import com.summa.WebToSfMojo.Bundle;
+
+/** @author bgray */
+public class BundlesTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        this.dir = new File("./testOutput/bundles").getCanonicalFile();
+        FileUtils.deleteDirectory(this.dir);
+        this.dir.mkdirs();
+    }
+
+    @Test
+    public void testPartition_rulesThenSize() throws Exception {
+        Map<String, File> files = ImmutableMap.of(
+                "vendor/a.js", file("a.js", 40),
+                "vendor/b.js", file("b.js", 40),
+                "vendor/c.js", file("c.js", 40),
+                "app.js", file("app.js", 10));
+        List<Bundle> rules = newArrayList(new Bundle("vendor", newArrayList("vendor/")));
+        Bundles bundles = Bundles.partition("appzip", rules, 100, files);
+
+        assertEquals(newArrayList("appzip", "vendor", "vendor_2"), newArrayList(bundles.names()));
+        assertEquals(newArrayList(files.get("app.js")), bundles.files("appzip"));
+        assertEquals(80, bundles.size("vendor"));
+        assertEquals(newArrayList(files.get("vendor/c.js")), bundles.files("vendor_2"));
+        assertEquals("vendor_2", bundles.resourceOf("./vendor/c.js?v=2"));
+        assertEquals("appzip", bundles.resourceOf("unknown.js"));
+        assertTrue(bundles.isSplit());
+        assertEquals(bundles.fingerprint(), Bundles.partition("appzip", rules, 100, files).fingerprint());
+        assertFalse(bundles.fingerprint().equals(Bundles.partition("appzip", rules, 0, files).fingerprint()));
+    }
+
+    @Test
+    public void testRewrite_pointsReferencesAtBundle() throws Exception {
+        Bundles bundles = Bundles.partition("appzip", newArrayList(new Bundle("vendor", newArrayList("vendor/"))), 0,
+                ImmutableMap.of("vendor/a.js", file("a.js", 1), "app.js", file("app.js", 1)));
+
+        assertEquals("<x value=\"{!URLFor($Resource.vendor, 'vendor/a.js')}\"/>"
+                + "<x value=\"{!URLFor($Resource.appzip, 'app.js')}\"/>",
+                bundles.rewrite("<x value=\"{!URLFor($Resource.appzip, 'vendor/a.js')}\"/>"
+                + "<x value=\"{!URLFor($Resource.appzip, 'app.js')}\"/>").toString());
+        String untouched = "<x value=\"{!URLFor($Resource.appzip, 'app.js')}\"/>";
+        assertSame(untouched, bundles.rewrite(untouched));
+        assertEquals("{!URLFor($Resource.vendor, 'vendor/a.js')}", bundles.urlFor("vendor/a.js"));
+        assertFalse(Bundles.single("appzip").isSplit());
+    }
+
+    @Test
+    public void testWithDuplicates_servesCopiesFromTheCanonicalEntry() throws Exception {
+        Bundles bundles = Bundles.partition("appzip", newArrayList(new Bundle("vendor", newArrayList("vendor/"))), 0,
+                ImmutableMap.of("vendor/jquery.js", file("a.js", 1), "app.js", file("app.js", 1)))
+                .withNames(ImmutableMap.of("vendor/jquery.js", "vendor/jquery.0a1b2c3d.js"))
+                .withDuplicates(ImmutableMap.of("admin/jquery.js", "vendor/jquery.js"));
+
+        assertTrue(bundles.isDuplicate("admin/jquery.js"));
+        assertFalse(bundles.isDuplicate("vendor/jquery.js"));
+        assertEquals("<x value=\"{!URLFor($Resource.vendor, 'vendor/jquery.0a1b2c3d.js')}\"/>",
+                bundles.rewrite("<x value=\"{!URLFor($Resource.appzip, './admin/jquery.js')}\"/>").toString());
+        assertEquals("{!URLFor($Resource.vendor, 'vendor/jquery.0a1b2c3d.js')}", bundles.urlFor("admin/jquery.js"));
+        assertEquals(newArrayList(new File(this.dir, "app.js")), bundles.files("appzip"));
+    }
+
+    private File file(String name, int size) throws Exception {
+        File file = new File(this.dir, name);
+        Files.write(Strings.repeat("x", size), file, Charsets.UTF_8);
+        return file;
+    }
+}
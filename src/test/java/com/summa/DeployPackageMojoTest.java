@@ -0,0 +1,154 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.model.FileSet;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Ordering;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/** @author bgray */
+public class DeployPackageMojoTest {
+
+    private File outputDir;
+
+    private File deployPackage;
+
+    private DeployPackageMojo mojo;
+
+    @Before
+    public void setup() throws Exception {
+        this.outputDir = new File("./testOutput/deploy").getCanonicalFile();
+        FileUtils.deleteDirectory(this.outputDir);
+        this.deployPackage = new File(this.outputDir, "deploy.zip");
+        URL url = getClass().getResource(getClass().getSimpleName() + ".class");
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(TestUtils.determinePathSubstring(url.toExternalForm(), "/"));
+        fileSet.setIncludes(newArrayList("js/", "*.html"));
+        fileSet.setExcludes(newArrayList("js/exclude.js"));
+
+        this.mojo = new DeployPackageMojo();
+        TestUtils.reflectionSet(mojo, "zipFilename", "appzip");
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "outputDir", new File(this.outputDir, "target"));
+        TestUtils.reflectionSet(mojo, "deployPackage", this.deployPackage);
+    }
+
+    @Test
+    public void testDeployPackage_holdsPagesResourcesAndPackageXml() throws Exception {
+        mojo.execute();
+
+        Map<String, String> entries = TestUtils.readZip(this.deployPackage);
+        assertEquals(newArrayList("package.xml", "pages/test.page", "pages/test.page-meta.xml",
+                "staticresources/appzip.resource", "staticresources/appzip.resource-meta.xml"),
+                newArrayList(entries.keySet()));
+        String packageXml = entries.get("package.xml");
+        assertThat(packageXml, containsString("<members>test</members>\n        <name>ApexPage</name>"));
+        assertThat(packageXml, containsString("<members>appzip</members>\n        <name>StaticResource</name>"));
+        assertThat(packageXml, containsString("<version>" + WebToSfMojo.API_VERSION + "</version>"));
+        assertThat(entries.get("pages/test.page"), containsString("<apex:includeScript"));
+        assertThat(entries.get("pages/test.page-meta.xml"), containsString("<ApexPage"));
+
+        // the archive is stored, and holds the resources
+        ZipFile zip = new ZipFile(this.deployPackage);
+        try {
+            ZipEntry resource = zip.getEntry("staticresources/appzip.resource");
+            assertEquals(ZipEntry.STORED, resource.getMethod());
+            File archive = new File(this.outputDir, "appzip.resource");
+            Files.write(ByteStreams.toByteArray(zip.getInputStream(resource)), archive);
+            Map<String, String> resources = TestUtils.readZip(archive);
+            assertTrue("test.js missing", resources.containsKey("js/test.js"));
+            assertFalse("exclude.js found", resources.containsKey("js/exclude.js"));
+        } finally {
+            zip.close();
+        }
+
+        // nothing written to the intermediate directories
+        assertFalse("page written", new File(this.outputDir, "target/pages/test.page").exists());
+        assertFalse("archive written", new File(this.outputDir, "target/staticResources/appzip.resource").exists());
+    }
+
+    @Test
+    public void testDeployPackage_incrementalIgnoresArchivesInOutputDir() throws Exception {
+        TestUtils.reflectionSet(mojo, "incremental", true);
+        mojo.execute();
+
+        // an archive left in the outputDir by another goal is not taken into the package
+        File stale = new File(this.outputDir, "target/staticResources/appzip.resource");
+        stale.getParentFile().mkdirs();
+        Files.write("stale".getBytes("UTF-8"), stale);
+        mojo.execute();
+        assertEquals("spooled files left", newArrayList("deploy.zip", "deploy.zip.webtosf-manifest", "target"),
+                Ordering.natural().sortedCopy(newArrayList(this.outputDir.list())));
+
+        ZipFile zip = new ZipFile(this.deployPackage);
+        try {
+            ZipEntry resource = zip.getEntry("staticresources/appzip.resource");
+            File archive = new File(this.outputDir, "appzip.resource");
+            Files.write(ByteStreams.toByteArray(zip.getInputStream(resource)), archive);
+            assertTrue("test.js missing", TestUtils.readZip(archive).containsKey("js/test.js"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testDeployPackage_leavesIncrementalWebToSfOutputsAlone() throws Exception {
+        File webapp = new File(this.outputDir, "webapp");
+        URL url = getClass().getResource(getClass().getSimpleName() + ".class");
+        FileUtils.copyDirectoryStructure(new File(TestUtils.determinePathSubstring(url.toExternalForm(), "/")), webapp);
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(webapp.getPath());
+        fileSet.setIncludes(newArrayList("js/", "*.html"));
+        File target = new File(this.outputDir, "target");
+        WebToSfMojo webToSf = new WebToSfMojo();
+        TestUtils.reflectionSet(webToSf, "zipFilename", "appzip");
+        TestUtils.reflectionSet(webToSf, "webappDir", fileSet);
+        TestUtils.reflectionSet(webToSf, "outputDir", target);
+        TestUtils.reflectionSet(webToSf, "incremental", true);
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "incremental", true);
+        webToSf.execute();
+
+        File script = new File(webapp, "js/test.js");
+        Files.write("var edited = true;\n", script, Charsets.UTF_8);
+        script.setLastModified(script.lastModified() + 2000);
+        mojo.execute();
+        assertTrue("page written", new File(target, "pages/test.page").isFile());
+        webToSf.execute();
+
+        assertEquals("var edited = true;\n",
+                TestUtils.readZip(new File(target, "staticResources/appzip.resource")).get("js/test.js"));
+    }
+
+    @Test
+    public void testDeployPackage_bundles() throws Exception {
+        TestUtils.reflectionSet(mojo, "bundles",
+                newArrayList(new WebToSfMojo.Bundle("scripts", newArrayList("**/*.js"))));
+        TestUtils.reflectionSet(mojo, "threads", 4);
+        mojo.execute();
+
+        Map<String, String> entries = TestUtils.readZip(this.deployPackage);
+        assertTrue(entries.containsKey("staticresources/scripts.resource"));
+        assertTrue(entries.containsKey("staticresources/scripts.resource-meta.xml"));
+        assertThat(entries.get("package.xml"),
+                containsString("<members>appzip</members>\n        <members>scripts</members>"));
+        assertThat(entries.get("pages/test.page"), containsString("$Resource.scripts, 'js/test.js'"));
+    }
+}
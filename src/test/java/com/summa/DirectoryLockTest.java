@@ -0,0 +1,63 @@
+package com.summa;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** @author bgray */
+public class DirectoryLockTest {
+
+    private final ExecutorService other = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        other.shutdownNow();
+    }
+
+    @Test
+    public void testLock_excludesNestedDirectories() throws Exception {
+        File dir = new File("./testOutput/locks/out");
+        DirectoryLock lock = Utils.lockFor(dir);
+        lock.lock();
+        try {
+            assertFalse("same directory locked", tryLockElsewhere(new File("./testOutput/locks/../locks/out")));
+            assertFalse("descendant locked", tryLockElsewhere(new File(dir, "staticResources")));
+            assertFalse("ancestor locked", tryLockElsewhere(new File("./testOutput/locks")));
+            assertTrue("sibling not locked", tryLockElsewhere(new File("./testOutput/locks/out2")));
+
+            // reentrant, and nested directories of the same thread
+            DirectoryLock nested = Utils.lockFor(new File(dir, "pages"));
+            assertTrue("nested directory not locked by the holder", nested.tryLock());
+            nested.unlock();
+            assertTrue("not reentrant", lock.tryLock());
+            lock.unlock();
+        } finally {
+            lock.unlock();
+        }
+        assertTrue("descendant not locked once released", tryLockElsewhere(new File(dir, "staticResources")));
+    }
+
+    /**
+     * @param dir
+     * @return true if another thread could lock the directory, which it releases at once
+     */
+    private boolean tryLockElsewhere(final File dir) throws Exception {
+        return other.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                DirectoryLock lock = Utils.lockFor(dir);
+                if (!lock.tryLock()) {
+                    return false;
+                }
+                lock.unlock();
+                return true;
+            }
+        }).get();
+    }
+}
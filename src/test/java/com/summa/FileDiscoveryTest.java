@@ -0,0 +1,97 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/** @author bgray */
+public class FileDiscoveryTest {
+
+    private static final List<String> FILES = newArrayList("index.html", "skip.txt", "a/x.js", "a/b/y.css",
+            "a/b/notes.txt", "node_modules/lib/z.js", "node_modules/lib/deep/w.js", "other/o.js", "other/o.css");
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        this.dir = new File("./testOutput/discovery").getCanonicalFile();
+        FileUtils.deleteDirectory(this.dir);
+        for (String file : FILES) {
+            File f = new File(this.dir, file);
+            f.getParentFile().mkdirs();
+            Files.write(file, f, Charsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testScan_sameAsPlexus() throws Exception {
+        assertSameAsPlexus(null, null);
+        assertSameAsPlexus(newArrayList("a/", "*.html"), null);
+        assertSameAsPlexus(newArrayList("**/*.js", "*.html", "a/"), newArrayList("node_modules/**", "**/*.txt"));
+        assertSameAsPlexus(null, newArrayList("node_modules/", "a/b/*.css"));
+    }
+
+    @Test
+    public void testCouldMatchBelow_prunesExcludedDirectories() {
+        FileSetMatcher matcher = new FileSetMatcher(newArrayList("**/*.js", "a/"), newArrayList("node_modules/**"));
+        assertTrue(matcher.couldMatchBelow("a"));
+        assertTrue(matcher.couldMatchBelow("other"));
+        assertFalse(matcher.couldMatchBelow("node_modules"));
+        assertFalse(matcher.couldMatchBelow("node_modules/lib"));
+        assertFalse(new FileSetMatcher(newArrayList("a/"), null).couldMatchBelow("other"));
+    }
+
+    @Test
+    public void testStream_sameAsScan() throws Exception {
+        FileDiscovery discovery = new FileDiscovery(this.dir, new FileSetMatcher(null, newArrayList("**/*.txt")));
+        Set<File> streamed = newHashSet();
+        FileDiscovery.Stream stream = discovery.stream();
+        try {
+            for (Iterator<File> it = stream; it.hasNext();) {
+                streamed.add(it.next());
+            }
+        } finally {
+            stream.close();
+        }
+        assertEquals(newHashSet(discovery.scan()), streamed);
+        assertEquals(FILES.size() - 2, streamed.size());
+    }
+
+    @Test
+    public void testStream_closeStopsTheWalker() throws Exception {
+        // more files than the stream holds ahead of its consumer
+        File many = new File(this.dir, "many");
+        many.mkdirs();
+        for (int i = 0; i < 1500; i++) {
+            Files.write("x", new File(many, i + ".js"), Charsets.UTF_8);
+        }
+        FileDiscovery.Stream stream = new FileDiscovery(this.dir, new FileSetMatcher(null, null)).stream();
+        stream.next();
+        Thread walker = (Thread) TestUtils.reflectionGet(stream, "walker");
+        Thread.sleep(100);
+        stream.close();
+        walker.join(10000);
+        assertFalse("walker still running", walker.isAlive());
+    }
+
+    private void assertSameAsPlexus(List<String> includes, List<String> excludes) throws Exception {
+        List<?> expected = FileUtils.getFiles(this.dir, includes == null ? null : Utils.getCommaSeparatedList(includes),
+                excludes == null ? null : Utils.getCommaSeparatedList(excludes));
+        List<File> actual = new FileDiscovery(this.dir, new FileSetMatcher(includes, excludes)).scan();
+        assertEquals(includes + " " + excludes, newHashSet(expected), newHashSet(actual));
+    }
+}
@@ -0,0 +1,167 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.summa.WebToSfMojo.FileType;
+import com.summa.WebToSfMojo.Filter;
+
+/** @author bgray */
+public class FilterEngineTest {
+
+    private static final List<String> LINES = newArrayList(
+            "",
+            "<!doctype html>",
+            "<html><head>",
+            "    <title>This is a title</title>",
+            "    <link rel=\"stylesheet\" href=\"css/app.css\"></link>",
+            "    <script src='js/test.js'></script>",
+            "var a = 'partials/detail.html'; var b = 'partials/list.html';",
+            "aaaa abab ababab",
+            "café naïve über",
+            "nothing to see here");
+
+    @Test
+    public void testReplace_sameAsSequentialStringOperations() {
+        List<Filter> filters = newArrayList(
+                new Filter("<!doctype html>"),
+                new Filter("<html>"),
+                new Filter("<head>"),
+                new Filter("(.*)<title>.*</title>(.*)", "$1$2", true),
+                new Filter("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)",
+                        "$1<apex:includeScript value=\"$2\"></apex:includeScript>$3", true),
+                new Filter("(.*)<link.*href=[\"'](.+)[\"'].*>(</link>)*(.*)",
+                        "$1<apex:stylesheet value=\"$2\"></apex:stylesheet>$3", true),
+                new Filter("partials/detail.html", "partialsdetail"),
+                new Filter("partials/list.html", "partialslist"),
+                // overlapping and chained literals
+                new Filter("aa", "b"),
+                new Filter("bab", "x"),
+                new Filter("ab", "aa"),
+                new Filter("aa", "c"),
+                // literal introduced by a regex
+                new Filter("(.*)see(.*)", "$1includeScript$2", true),
+                new Filter("includeScript", "script"),
+                new Filter("über", "uber"),
+                new Filter("naïve"));
+
+        FilterEngine engine = new FilterEngine(filters, new SystemStreamLog());
+        for (String line : LINES) {
+            assertEquals("line [" + line + "]", legacyReplace(filters, line), engine.replace(line));
+        }
+    }
+
+    @Test
+    public void testReplace_emptyToken() {
+        List<Filter> filters = newArrayList(new Filter("", "-"));
+        FilterEngine engine = new FilterEngine(filters, new SystemStreamLog());
+        for (String line : LINES) {
+            assertEquals("line [" + line + "]", legacyReplace(filters, line), engine.replace(line));
+        }
+    }
+
+    @Test
+    public void testRequiredLiteral() {
+        assertEquals("></script>", FilterEngine.requiredLiteral("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)"));
+        assertEquals(" value=\"", FilterEngine.requiredLiteral("(.*)<apex:(.*).* value=\"(?!http)(.+)\".*>(.*)"));
+        assertEquals("x.js", FilterEngine.requiredLiteral("ab?x\\.js$"));
+        assertEquals("ab", FilterEngine.requiredLiteral("ab+c{0,2}"));
+        assertEquals("", FilterEngine.requiredLiteral("<html>|<body>"));
+        assertEquals("", FilterEngine.requiredLiteral("(?i)<html>"));
+        assertEquals("", FilterEngine.requiredLiteral("[<>]\\d+"));
+    }
+
+    @Test
+    public void testReplace_onlyFiltersOfTheFileType() {
+        List<Filter> filters = newArrayList(
+                new Filter("<html>", null, false, newArrayList("html")),
+                new Filter("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)", "$1$2$3", true, newArrayList("HTML")),
+                new Filter("var", "let", false, newArrayList("text")),
+                new Filter("(.*)a(.*)", "$1A$2", true));
+        FilterEngine engine = new FilterEngine(filters, new SystemStreamLog());
+
+        String line = "<html><script src='x.js'></script> var";
+        assertEquals("x.js let", engine.replace(line).toString());
+        assertEquals("x.js vAr", engine.replace(line, FileType.HTML).toString());
+        assertEquals("<html><script src='x.js'></script> let", engine.replace(line, FileType.TEXT).toString());
+        String untouched = "<html> nothing to see here";
+        assertSame(untouched, engine.replace(untouched, FileType.TEXT));
+        assertFalse(engine.isEmpty(FileType.OTHER));
+        assertTrue(new FilterEngine(filters.subList(0, 2), new SystemStreamLog()).isEmpty(FileType.TEXT));
+    }
+
+    @Test
+    public void testMayChange_onlyWhenALiteralIsPresent() {
+        List<Filter> filters = newArrayList(
+                new Filter("var", "let", false, newArrayList("text")),
+                new Filter("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)", "$1$2$3", true, newArrayList("html")));
+        FilterEngine engine = new FilterEngine(filters, new SystemStreamLog());
+
+        assertTrue(engine.mayChange("a;\nvar b;", FileType.TEXT));
+        assertFalse(engine.mayChange("a;\nlet b;", FileType.TEXT));
+        assertFalse(engine.mayChange("<script src='x.js'></script>", FileType.TEXT));
+        assertTrue(engine.mayChange("<script src='x.js'></script>", FileType.HTML));
+        assertFalse(engine.mayChange("var", FileType.OTHER));
+    }
+
+    @Test
+    public void testWindow_sameAsReplaceAllOverTheWholeText() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append(i % 3 == 0 ? "<script\n   src=\"js/" + i + ".js\">\n</script>\n" : "  var a" + i + " = 1;\n");
+        }
+        String text = sb.toString();
+        List<Filter> filters = newArrayList(
+                window("(?s)<script\\s+src=\"([^\"]*)\"\\s*>\\s*</script>", "<apex:includeScript value=\"$1\"/>",
+                        true, 64),
+                window("(?m)^\\s+", "", true, 16),
+                window("var", "$let", false, 0));
+        String expected = text;
+        for (Filter filter : filters) {
+            expected = filter.isRegex ? expected.replaceAll(filter.token, filter.value)
+                    : expected.replace(filter.token, filter.value);
+        }
+
+        FilterEngine engine = new FilterEngine(filters, new SystemStreamLog());
+        StringWriter out = new StringWriter();
+        Writer w = engine.window(out, FileType.TEXT);
+        // uneven chunks move the matches across the window boundaries
+        for (int i = 0, chunk = 1; i < text.length(); i += chunk, chunk = chunk % 37 + 5) {
+            w.write(text.substring(i, Math.min(text.length(), i + chunk)));
+        }
+        w.close();
+        assertEquals(expected, out.toString());
+        assertFalse(engine.isEmpty(FileType.TEXT));
+        assertEquals("line filters only", "  var a", engine.replace("  var a"));
+    }
+
+    private static Filter window(String token, String value, boolean isRegex, int window) {
+        Filter filter = new Filter(token, value, isRegex);
+        filter.window = window;
+        return filter;
+    }
+
+    /**
+     * The per-line algorithm the engine replaces
+     */
+    private static String legacyReplace(List<Filter> filters, String line) {
+        for (Filter filter : filters) {
+            if (filter.isRegex && line.matches(filter.token)) {
+                line = line.replaceAll(filter.token, filter.getValue());
+            } else if (!filter.isRegex && line.contains(filter.token)) {
+                line = line.replace(filter.token, filter.getValue());
+            }
+        }
+        return line;
+    }
+}
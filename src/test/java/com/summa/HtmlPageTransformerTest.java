@@ -0,0 +1,60 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.summa.WebToSfMojo.Filter;
+
+/** @author bgray */
+public class HtmlPageTransformerTest {
+
+    private final HtmlPageTransformer transformer = new HtmlPageTransformer(new FilterEngine(newArrayList(
+            new Filter("Foobar", "Foo"),
+            new Filter("lib/", "vendor/")), new SystemStreamLog()), Bundles.single("appzip"), Charsets.UTF_8, "\n", 16);
+
+    @Test
+    public void testTransform_tagsAcrossAndWithinLines() throws IOException {
+        assertEquals("<apex:includeScript value=\"{!URLFor($Resource.appzip, 'a.js')}\"></apex:includeScript>"
+                + "<apex:includeScript value=\"{!URLFor($Resource.appzip, 'vendor/b.js')}\"></apex:includeScript>\n",
+                transform("<script\r\n  src=\"a.js\"></script><SCRIPT src='lib/b.js'>\n</SCRIPT>"));
+        assertEquals("\n<apex:stylesheet value=\"http://cdn/x.css\"></apex:stylesheet>\n<p>Foo</p>\n",
+                transform("<html><head><title>multi\nline</title>\n"
+                        + "<link rel=\"stylesheet\"\n href=\"http://cdn/x.css\"></link></head>\n<p>Foobar</p></html>"));
+    }
+
+    @Test
+    public void testTransform_keepsOtherMarkup() throws IOException {
+        assertEquals("<!-- <script src=\"x.js\"></script> -->\n"
+                + "<link rel=\"icon\" href=\"favicon.ico\">\n"
+                + "<a href=\"vendor/Foo\" title='a > b'>x < y</a>\n"
+                + "<script>if (a<b) { Foo(); }</script>\n",
+                transform("<!-- <script src=\"x.js\"></script> -->\n"
+                        + "<link rel=\"icon\" href=\"favicon.ico\">\n"
+                        + "<a href=\"lib/Foobar\" title='a > b'>x < y</a>\n"
+                        + "<script>if (a<b) { Foobar(); }</script>"));
+    }
+
+    @Test
+    public void testTransform_minifiedLine() throws IOException {
+        String line = Strings.repeat("<div class=\"c\"><script src=\"a.js\"></script></div>", 20000);
+        String expected = Strings.repeat(
+                "<div class=\"c\"><apex:includeScript value=\"{!URLFor($Resource.appzip, 'a.js')}\">"
+                + "</apex:includeScript></div>", 20000) + "\n";
+        assertEquals(expected, transform(line));
+    }
+
+    private String transform(String html) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformer.transform(new ByteArrayInputStream(html.getBytes(Charsets.UTF_8)), out);
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+}
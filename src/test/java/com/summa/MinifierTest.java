@@ -0,0 +1,46 @@
+package com.summa;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** @author bgray */
+public class MinifierTest {
+
+    @Test
+    public void testJs_keepsLiteralsAndLineBreaks() {
+        assertEquals("/*! license */\nvar a=\"x  // y\",b='/* z */';\nif(a){\nb=a+ +1;}\nvar re=/[/]\\/  +/g;\nc=a/2;\nreturn/ x /.test(`  a\n  b`)",
+                Minifier.js("/*! license */\n"
+                        + "// comment\n"
+                        + "var a = \"x  // y\", b = '/* z */';   \n"
+                        + "\n"
+                        + "if (a) {   /* block\n comment */ b = a + +1;  }\n"
+                        + "var re = /[/]\\/  +/g;\n"
+                        + "c = a / 2;\n"
+                        + "return / x /.test(`  a\n  b`)"));
+        assertEquals("1 .toString()", Minifier.js("1 .toString()"));
+        assertEquals("x=a- -b", Minifier.js("x = a - -b"));
+    }
+
+    @Test
+    public void testCss_dropsCommentsAndWhitespace() {
+        assertEquals("a:hover,b>i{color:red;content:\"  /* x */  \"}@media (max-width:10px){a{margin:0 auto}}",
+                Minifier.css("/* comment */\n"
+                        + "a:hover ,\n  b > i {\n  color:red;\n  content: \"  /* x */  \";\n}\n"
+                        + "@media (max-width:10px) {\n  a { margin: 0  auto; }\n}\n"));
+        assertEquals("a :hover{}", Minifier.css("a :hover { }"));
+    }
+
+    @Test
+    public void testHtml_collapsesOutsideRawElements() {
+        assertEquals("<p>a b</p>\n<pre>  x\n  y</pre>\n<!--[if IE]>ie<![endif]--> <script>if (a)  b;</script>",
+                Minifier.html("  <p>a   <!-- comment -->  b</p>\n\n  <pre>  x\n  y</pre>\n"
+                        + "<!--[if IE]>ie<![endif]-->   <script>if (a)  b;</script>"));
+    }
+
+    @Test
+    public void testHtml_keepsTagsAndAttributeValues() {
+        assertEquals("<p title=\"a   b\"\n   class='x  > y'>a b</p> 1 < 2",
+                Minifier.html("<p title=\"a   b\"\n   class='x  > y'>a   b</p>   1  <  2"));
+    }
+}
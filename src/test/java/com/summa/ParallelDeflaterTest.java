@@ -0,0 +1,89 @@
+package com.summa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.summa.ParallelDeflater.Deflated;
+
+/** @author bgray */
+public class ParallelDeflaterTest {
+
+    @Test
+    public void testDeflateInChunks_inflatesToOriginal() throws Exception {
+        // repetitive enough for back references to cross chunk boundaries, random enough not to vanish
+        byte[] content = new byte[300 * 1024 + 17];
+        Random random = new Random(42);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + random.nextInt(i % 4096 < 2048 ? 4 : 26));
+        }
+        File file = new File("./testOutput/deflate.bin");
+        file.getParentFile().mkdirs();
+        Files.write(content, file);
+
+        ParallelDeflater deflater = new ParallelDeflater(6, 64 * 1024);
+        ListeningExecutorService pool = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+        try {
+            Deflated chunked = deflater.deflateInChunks(pool, file).get();
+            assertEquals(content.length, chunked.size);
+            assertEquals(crc(content), chunked.crc);
+            assertArrayEquals(content, inflate(chunked));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Deflated whole = deflater.deflate(content);
+        assertEquals(crc(content), whole.crc);
+        assertArrayEquals(content, inflate(whole));
+
+        ParallelDeflater.DeflatingStream stream = deflater.stream();
+        for (int i = 0; i < content.length; i += 1000) {
+            stream.write(content, i, Math.min(1000, content.length - i));
+        }
+        Deflated streamed = stream.finish();
+        assertEquals(content.length, streamed.size);
+        assertEquals(crc(content), streamed.crc);
+        assertArrayEquals(content, inflate(streamed));
+    }
+
+    @Test
+    public void testCombine_sameAsWhole() {
+        byte[] content = "the quick brown fox jumps over the lazy dog".getBytes();
+        for (int split = 0; split <= content.length; split++) {
+            CRC32 first = new CRC32();
+            first.update(content, 0, split);
+            CRC32 second = new CRC32();
+            second.update(content, split, content.length - split);
+            assertEquals(crc(content), ParallelDeflater.Crc32.combine(first.getValue(), second.getValue(),
+                    content.length - split));
+        }
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static byte[] inflate(Deflated deflated) throws Exception {
+        InputStream in = new InflaterInputStream(deflated.openStream(), new Inflater(true));
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
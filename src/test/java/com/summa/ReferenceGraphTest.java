@@ -0,0 +1,72 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/** @author bgray */
+public class ReferenceGraphTest {
+
+    private File baseDir;
+
+    private List<File> files;
+
+    @Before
+    public void setup() throws Exception {
+        this.baseDir = new File("./testOutput/graph").getCanonicalFile();
+        FileUtils.deleteDirectory(this.baseDir);
+        this.files = newArrayList();
+    }
+
+    @Test
+    public void testReachable_followsPagesStylesheetsAndScripts() throws Exception {
+        File page = write("app/index.html", "<link href=\"css/app.css?v=2\" rel=\"stylesheet\">\n"
+                + "<script src='/app/js/app.js'></script>\n"
+                + "<a href=\"http://example.com/x.js\">x</a> <img src=\"{!$Resource.logo}\">\n"
+                + "<div style=\"background: url(img/bg%20dark.png)\"></div>");
+        File css = write("app/css/app.css", "@import 'theme.css';\nh1 { background: url(\"../img/title.png\") }\n"
+                + "i { background: url(data:image/png;base64,AAAA) }");
+        File theme = write("app/css/theme.css", "p { color: red }");
+        File title = write("app/img/title.png", "png");
+        File bg = write("app/img/bg dark.png", "png");
+        File script = write("app/js/app.js", "templateUrl: 'app/tpl/home.html', load('missing.js')");
+        File template = write("app/tpl/home.html", "<img src=\"../img/home.png\">");
+        File home = write("app/img/home.png", "png");
+        write("app/vendor/dead.js", "dead");
+        write("app/js/unused.js", "templateUrl: 'app/tpl/home.html'");
+
+        ReferenceGraph graph = new ReferenceGraph(this.baseDir, Charsets.UTF_8,
+                newArrayList(Pattern.compile("templateUrl:\\s*'([^']+)'")));
+        assertEquals(newArrayList(page, css, script, bg, title, theme, template, home),
+                newArrayList(graph.reachable(this.files, newArrayList(page))));
+    }
+
+    @Test
+    public void testReachable_scriptsWithoutPatternsReferenceNothing() throws Exception {
+        File page = write("index.html", "<script src=\"a.js\"></script>");
+        File a = write("a.js", "templateUrl: 'b.html'");
+        write("b.html", "");
+
+        ReferenceGraph graph = new ReferenceGraph(this.baseDir, Charsets.UTF_8, Collections.<Pattern>emptyList());
+        assertEquals(newArrayList(page, a), newArrayList(graph.reachable(this.files, newArrayList(page))));
+    }
+
+    private File write(String path, String content) throws Exception {
+        File file = new File(this.baseDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(content, file, Charsets.UTF_8);
+        this.files.add(file);
+        return file;
+    }
+}
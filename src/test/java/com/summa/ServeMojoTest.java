@@ -0,0 +1,151 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.maven.model.FileSet;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/** @author bgray */
+public class ServeMojoTest {
+
+    private File outputDir;
+
+    private File webappDir;
+
+    private ServeMojo mojo;
+
+    @Before
+    public void setup() throws Exception {
+        this.outputDir = new File("./testOutput/serve").getCanonicalFile();
+        FileUtils.deleteDirectory(this.outputDir);
+        this.webappDir = new File(this.outputDir, "webapp");
+        URL url = getClass().getResource(getClass().getSimpleName() + ".class");
+        FileUtils.copyDirectoryStructure(
+                new File(TestUtils.determinePathSubstring(url.toExternalForm(), "/")), this.webappDir);
+
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(this.webappDir.getPath());
+        fileSet.setIncludes(newArrayList("js/", "*.html"));
+        fileSet.setExcludes(newArrayList("js/exclude.js"));
+        this.mojo = new ServeMojo();
+        TestUtils.reflectionSet(mojo, "zipFilename", "appzip");
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "outputDir", new File(this.outputDir, "target"));
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("Changed", "Served")));
+        TestUtils.reflectionSet(mojo, "port", 0);
+    }
+
+    @After
+    public void stop() {
+        mojo.stop();
+    }
+
+    @Test
+    public void testServe_convertsRequestedFilesOverHttp() throws Exception {
+        int port = mojo.start();
+
+        HttpURLConnection page = open(port, "/pages/test.page");
+        assertEquals(200, page.getResponseCode());
+        assertThat(read(page), containsString("<apex:includeScript"));
+
+        HttpURLConnection script = open(port, "/staticResources/appzip/js/test.js");
+        assertEquals(200, script.getResponseCode());
+        assertThat(script.getContentType(), containsString("application/javascript"));
+
+        assertEquals(404, open(port, "/staticResources/appzip/js/exclude.js").getResponseCode());
+        Files.write("var a;", new File(this.webappDir, "js/a&b.js"), Charsets.UTF_8);
+        mojo.render("/staticResources/appzip/js/a&b.js");
+        String listing = read(open(port, "/"));
+        assertThat(listing, containsString("<a href=\"/pages/test.page\">"));
+        assertThat(listing, containsString("<a href=\"/staticResources/appzip/js/a&amp;b.js\">"));
+        assertFalse("output written", new File(this.outputDir, "target").exists());
+    }
+
+    @Test
+    public void testServe_failedConversionAnswered() throws Exception {
+        // replacing with a group the regex does not have throws while converting
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("(.*)Broken(.*)", "$1$3", true)));
+        Files.write("var broken = 'Broken';\n", new File(this.webappDir, "js/broken.js"), Charsets.UTF_8);
+        int port = mojo.start();
+
+        assertEquals(500, open(port, "/staticResources/appzip/js/broken.js").getResponseCode());
+        assertEquals(200, open(port, "/staticResources/appzip/js/test.js").getResponseCode());
+    }
+
+    @Test
+    public void testServe_convertsChangedFilesAgain() throws Exception {
+        mojo.start();
+        File script = new File(this.webappDir, "js/test.js");
+        ServeMojo.Rendered first = mojo.render("/staticResources/appzip/js/test.js");
+        assertSame(first, mojo.render("/staticResources/appzip/js/test.js"));
+
+        Files.write("var changed = 'Changed';\n", script, Charsets.UTF_8);
+        script.setLastModified(script.lastModified() + 2000);
+        assertEquals("var changed = 'Served';\n",
+                new String(mojo.render("/staticResources/appzip/js/test.js").content, Charsets.UTF_8));
+
+        // added and removed files are found by scanning again
+        File added = new File(this.webappDir, "js/added.js");
+        Files.write("Changed", added, Charsets.UTF_8);
+        assertTrue(new String(mojo.render("/staticResources/appzip/js/added.js").content, Charsets.UTF_8)
+                .startsWith("Served"));
+        added.delete();
+        assertNull(mojo.render("/staticResources/appzip/js/added.js"));
+    }
+
+    @Test
+    public void testServe_rescansOnlyForChangedPartials() throws Exception {
+        File partial = new File(this.webappDir, "partials/detail.html");
+        partial.getParentFile().mkdirs();
+        Files.write("<p>Changed</p>", partial, Charsets.UTF_8);
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(this.webappDir.getPath());
+        fileSet.setIncludes(newArrayList("js/", "*.html", "partials/"));
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "partials", newArrayList("partials/"));
+        mojo.start();
+
+        Object site = TestUtils.reflectionGet(mojo, "site");
+        assertThat(new String(mojo.render("/pages/test.page").content, Charsets.UTF_8),
+                containsString("<p>Served</p>"));
+        mojo.render("/pages/test.page");
+        assertSame("scanned again", site, TestUtils.reflectionGet(mojo, "site"));
+
+        Files.write("<p>Changed again</p>", partial, Charsets.UTF_8);
+        partial.setLastModified(partial.lastModified() + 2000);
+        assertThat(new String(mojo.render("/pages/test.page").content, Charsets.UTF_8),
+                containsString("<p>Served again</p>"));
+    }
+
+    private static HttpURLConnection open(int port, String path) throws Exception {
+        return (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws Exception {
+        InputStream in = connection.getInputStream();
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
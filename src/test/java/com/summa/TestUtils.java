@@ -10,11 +10,15 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 
 /**
  * Test Utilities
@@ -32,8 +36,9 @@ public final class TestUtils {
      */
     public static String determinePathSubstring(String path, String separator) {
         List<String> pathParts = newArrayList(Splitter.on(separator).split(path));
+        // drop the protocol prefix, keeping the leading separator of absolute paths
         pathParts = pathParts.subList(1, pathParts.size() - 1);
-        return Joiner.on(separator).join(pathParts);
+        return separator + Joiner.on(separator).join(pathParts);
     }
 
     /**
@@ -60,6 +65,28 @@ public final class TestUtils {
         return false;
     }
 
+    /**
+     * Get a value by reflection
+     * @param object
+     * @param fieldName
+     * @return the value of the field, null if there is none
+     */
+    public static Object reflectionGet(Object object, String fieldName) {
+        Class<?> clazz = object.getClass();
+        while (clazz != null) {
+            try {
+                Field field = clazz.getDeclaredField(fieldName);
+                field.setAccessible(true);
+                return field.get(object);
+            } catch (NoSuchFieldException e) {
+                clazz = clazz.getSuperclass();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
     /**
      * Unzip a zip archive
      * @param zipFile input zip file
@@ -117,6 +144,25 @@ public final class TestUtils {
         }
     }
 
+    /**
+     * Read every entry of a zip archive
+     * @param zipFile
+     * @return entry contents keyed by entry name, in archive order
+     * @throws IOException
+     */
+    public static Map<String, String> readZip(File zipFile) throws IOException {
+        Map<String, String> entries = Maps.newLinkedHashMap();
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            for (ZipEntry ze = zis.getNextEntry(); ze != null; ze = zis.getNextEntry()) {
+                entries.put(ze.getName(), new String(ByteStreams.toByteArray(zis), Charsets.UTF_8));
+            }
+            return entries;
+        } finally {
+            zis.close();
+        }
+    }
+
     /**
      * Read a file into a List<String>
      * @param testPage
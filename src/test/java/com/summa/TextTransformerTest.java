@@ -0,0 +1,167 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.summa.WebToSfMojo.FileType;
+import com.summa.WebToSfMojo.Filter;
+
+/** @author bgray */
+public class TextTransformerTest {
+
+    private static final List<String> INPUTS = newArrayList(
+            "",
+            "no terminator",
+            "unix\nlines\n",
+            "windows\r\nlines\r\n",
+            "old mac\rlines\r",
+            "mixed\r\n\n\r\rend",
+            "<script src='js/test.js'></script>\nvar x = 'café';\n",
+            "long " + Strings.repeat("<b>x</b> ", 20000) + "\nshort\n");
+
+    private final FilterEngine engine = new FilterEngine(newArrayList(
+            new Filter("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)",
+                    "$1<apex:includeScript value=\"$2\"></apex:includeScript>$3", true),
+            new Filter("café", "cafe"),
+            new Filter("<b>", "<strong>")), new SystemStreamLog());
+
+    @Test
+    public void testTransform_sameAsReadLine() throws IOException {
+        for (Charset charset : newArrayList(Charsets.UTF_8, Charsets.ISO_8859_1, Charsets.UTF_16)) {
+            // a small buffer splits lines and \r\n pairs across reads
+            TextTransformer transformer = new TextTransformer(engine, charset, "\n", 7, 1 << 20);
+            for (String input : INPUTS) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                transformer.transform(new ByteArrayInputStream(input.getBytes(charset)), out);
+                assertEquals(charset + " [" + input + "]", readLineReplace(input), new String(out.toByteArray(),
+                        charset));
+            }
+        }
+    }
+
+    @Test
+    public void testTransform_windowFiltersBeforeLineFilters() throws IOException {
+        Filter window = new Filter("(?s)<script\\s+src=(['\"][^'\"]*['\"])\\s*>\\s*</script>",
+                "<script src=$1></script>", true);
+        window.window = 256;
+        List<Filter> filters = newArrayList(window);
+        filters.add(new Filter("(.*)<script.*src=[\"'](.+)[\"']></script>(.*)",
+                "$1<apex:includeScript value=\"$2\"></apex:includeScript>$3", true));
+        TextTransformer transformer = new TextTransformer(new FilterEngine(filters, new SystemStreamLog()),
+                Charsets.UTF_8, "\n", 7, 1 << 20);
+        String input = "<p>café</p>\r\n<script\r\n  src='js/a.js'>\r\n</script>\r\n" + Strings.repeat("x", 1000)
+                + "\nend";
+        String expected = "<p>café</p>\n<apex:includeScript value=\"js/a.js\"></apex:includeScript>\n"
+                + Strings.repeat("x", 1000) + "\nend\n";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformer.transform(new ByteArrayInputStream(input.getBytes(Charsets.UTF_8)), out, FileType.TEXT);
+        assertEquals(expected, new String(out.toByteArray(), Charsets.UTF_8));
+
+        File file = new File("./testOutput/window.txt");
+        file.getParentFile().mkdirs();
+        Files.write(input, file, Charsets.UTF_8);
+        out = new ByteArrayOutputStream();
+        transformer.transform(file, out, FileType.TEXT, true);
+        assertEquals(expected, new String(out.toByteArray(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testTransform_longLineWithoutLineFiltersStreamed() throws IOException {
+        Filter window = new Filter("(?s)<b>\\s*</b>", "", true);
+        window.window = 16;
+        TextTransformer transformer = new TextTransformer(new FilterEngine(newArrayList(window),
+                new SystemStreamLog()), Charsets.UTF_8, "\n", 7, 10);
+        // surrogate pairs split across the parts written
+        String input = Strings.repeat("a\uD83D\uDE00<b>\n</b>", 1000) + "\r\nend";
+        String expected = Strings.repeat("a\uD83D\uDE00", 1000) + "\nend\n";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformer.transform(new ByteArrayInputStream(input.getBytes(Charsets.UTF_8)), out, FileType.TEXT);
+        assertEquals(expected, new String(out.toByteArray(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testTransform_lineLongerThanMaxLineLength() throws IOException {
+        Filter window = new Filter("(?s)<b>\\s*</b>", "", true);
+        window.window = 16;
+        TextTransformer transformer = new TextTransformer(new FilterEngine(newArrayList(window,
+                new Filter("x", "y")), new SystemStreamLog()), Charsets.UTF_8, "\n", 7, 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformer.transform(new ByteArrayInputStream((Strings.repeat("x", 100) + "\n").getBytes(Charsets.UTF_8)),
+                out, FileType.TEXT);
+        assertEquals(Strings.repeat("y", 100) + "\n", new String(out.toByteArray(), Charsets.UTF_8));
+
+        try {
+            transformer.transform(new ByteArrayInputStream(Strings.repeat("x", 101).getBytes(Charsets.UTF_8)),
+                    new ByteArrayOutputStream(), FileType.TEXT);
+            fail("line longer than maxLineLength filtered");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("maxLineLength=100"));
+        }
+    }
+
+    @Test
+    public void testTransform_lineFiltersHoldLinesUpToMaxLineLength() throws IOException {
+        for (Charset charset : newArrayList(Charsets.UTF_8, Charsets.ISO_8859_1, Charsets.UTF_16)) {
+            TextTransformer transformer = new TextTransformer(engine, charset, "\n", 7, 100);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            transformer.transform(new ByteArrayInputStream((Strings.repeat("<b>", 33) + "x\n").getBytes(charset)),
+                    out, FileType.TEXT);
+            assertEquals(charset.name(), Strings.repeat("<strong>", 33) + "x\n",
+                    new String(out.toByteArray(), charset));
+
+            try {
+                transformer.transform(new ByteArrayInputStream(Strings.repeat("x", 101).getBytes(charset)),
+                        new ByteArrayOutputStream(), FileType.TEXT);
+                fail(charset + " line longer than maxLineLength filtered");
+            } catch (IOException e) {
+                assertThat(e.getMessage(), containsString("maxLineLength=100"));
+            }
+        }
+    }
+
+    @Test
+    public void testTransform_longLineBuffersDropped() throws IOException {
+        TextTransformer transformer = new TextTransformer(engine, Charsets.UTF_8, "\n", 16, 1 << 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformer.transform(new ByteArrayInputStream((Strings.repeat("<b>", 10000) + "\nend").getBytes(
+                Charsets.UTF_8)), out, FileType.TEXT);
+        assertEquals(Strings.repeat("<strong>", 10000) + "\nend\n", new String(out.toByteArray(), Charsets.UTF_8));
+
+        Object state = ((ThreadLocal<?>) TestUtils.reflectionGet(transformer, "state")).get();
+        assertEquals(16, ((byte[]) TestUtils.reflectionGet(state, "line")).length);
+        assertEquals(16, ((CharBuffer) TestUtils.reflectionGet(state, "chars")).capacity());
+        assertEquals(16, ((ByteBuffer) TestUtils.reflectionGet(state, "bytes")).capacity());
+    }
+
+    private String readLineReplace(String input) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        BufferedReader r = new BufferedReader(new StringReader(input));
+        String line;
+        while ((line = r.readLine()) != null) {
+            expected.append(engine.replace(line)).append('\n');
+        }
+        return expected.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.summa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.summa.ParallelDeflater.Deflated;
+
+/** @author bgray */
+public class TransformCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        this.dir = new File("./testOutput/transformCache");
+        FileUtils.deleteDirectory(this.dir);
+    }
+
+    @Test
+    public void testGet_returnsWhatWasPut() throws Exception {
+        TransformCache cache = new TransformCache(this.dir, Long.MAX_VALUE);
+        Deflated deflated = new ParallelDeflater(6, 1024).deflate("var x = 1;".getBytes(Charsets.UTF_8));
+        String key = TransformCache.key("filters", "var x = 1;".getBytes(Charsets.UTF_8));
+
+        assertNull(cache.get(key));
+        cache.put(key, deflated);
+        Deflated cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(deflated.crc, cached.crc);
+        assertEquals(deflated.size, cached.size);
+        assertArrayEquals(ByteStreams.toByteArray(deflated.openStream()), ByteStreams.toByteArray(cached.openStream()));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testEvict_removesLeastRecentlyUsed() throws Exception {
+        ParallelDeflater deflater = new ParallelDeflater(6, 1024);
+        TransformCache cache = new TransformCache(this.dir, 0);
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            byte[] content = ("file " + i).getBytes(Charsets.UTF_8);
+            keys[i] = TransformCache.key("filters", content);
+            cache.put(keys[i], deflater.deflate(content));
+        }
+        File first = new File(new File(this.dir, keys[0].substring(0, 2)), keys[0]);
+        long entryLength = first.length();
+        for (int i = 0; i < keys.length; i++) {
+            new File(new File(this.dir, keys[i].substring(0, 2)), keys[i]).setLastModified(1000000L * (i + 1));
+        }
+
+        // room for the two most recently used entries only
+        new TransformCache(this.dir, 2 * entryLength).evict();
+        assertNull(cache.get(keys[0]));
+        assertNotNull(cache.get(keys[1]));
+        assertNotNull(cache.get(keys[2]));
+    }
+}
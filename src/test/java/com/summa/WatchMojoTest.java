@@ -0,0 +1,144 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.model.FileSet;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+/** @author bgray */
+public class WatchMojoTest {
+
+    private File outputDir;
+
+    private File webappDir;
+
+    private Thread watching;
+
+    @Before
+    public void setup() throws Exception {
+        this.outputDir = new File("./testOutput/watch").getCanonicalFile();
+        FileUtils.deleteDirectory(this.outputDir);
+        this.webappDir = new File(this.outputDir, "webapp");
+        URL url = getClass().getResource(getClass().getSimpleName() + ".class");
+        FileUtils.copyDirectoryStructure(
+                new File(TestUtils.determinePathSubstring(url.toExternalForm(), "/")), this.webappDir);
+    }
+
+    @After
+    public void stop() throws Exception {
+        if (this.watching != null) {
+            this.watching.interrupt();
+            this.watching.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Test
+    public void testWatch_resyncsChangedFiles() throws Exception {
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(this.webappDir.getPath());
+        fileSet.setIncludes(newArrayList("js/", "*.html"));
+        final WatchMojo mojo = new WatchMojo();
+        TestUtils.reflectionSet(mojo, "zipFilename", "appzip");
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "outputDir", this.outputDir);
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("Changed", "Synced")));
+        this.watching = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mojo.execute();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        this.watching.start();
+
+        final File page = new File(this.outputDir, "pages/test.page");
+        final File html = new File(this.webappDir, "test.html");
+        final String content = Files.toString(html, Charsets.UTF_8);
+        // keep touching the files until the watcher is registered and picks them up
+        assertTrue("page not synced", poll(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                Files.write(content + "<p>Changed</p>\n", html, Charsets.UTF_8);
+                return page.isFile() && Files.toString(page, Charsets.UTF_8).contains("<p>Synced</p>");
+            }
+        }));
+
+        final File archive = new File(this.outputDir, "staticResources/appzip.resource");
+        final File added = new File(this.webappDir, "js/added.js");
+        assertTrue("added resource not archived", poll(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                Files.write("var added = 1;\n", added, Charsets.UTF_8);
+                return TestUtils.readZip(archive).containsKey("js/added.js");
+            }
+        }));
+        assertTrue("unchanged resource lost", TestUtils.readZip(archive).containsKey("js/test.js"));
+
+        assertTrue(html.delete());
+        assertTrue("page of deleted file kept", poll(new Callable<Boolean>() {
+            public Boolean call() {
+                return !page.exists();
+            }
+        }));
+        assertFalse(new File(this.outputDir, "pages/test.page-meta.xml").exists());
+    }
+
+    @Test
+    public void testRegister_skipsExcludedTrees() throws Exception {
+        new File(this.webappDir, "node_modules/lib").mkdirs();
+        new File(this.webappDir, "other").mkdirs();
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(this.webappDir.getPath());
+        fileSet.setIncludes(newArrayList("js/", "*.html", "node_modules/**"));
+        fileSet.setExcludes(newArrayList("node_modules/**"));
+        WatchMojo mojo = new WatchMojo();
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        try {
+            mojo.register(watcher, this.webappDir.toPath());
+            Map<?, ?> watched = (Map<?, ?>) TestUtils.reflectionGet(mojo, "watchedDirs");
+            assertTrue("webappDir not watched", watched.containsValue(this.webappDir.toPath()));
+            assertTrue("js not watched", watched.containsValue(new File(this.webappDir, "js").toPath()));
+            assertFalse("excluded tree watched",
+                    watched.containsValue(new File(this.webappDir, "node_modules").toPath()));
+            assertFalse("excluded tree watched",
+                    watched.containsValue(new File(this.webappDir, "node_modules/lib").toPath()));
+            assertFalse("tree without includes watched",
+                    watched.containsValue(new File(this.webappDir, "other").toPath()));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    private static boolean poll(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (System.nanoTime() < deadline) {
+            try {
+                if (condition.call()) {
+                    return true;
+                }
+            } catch (Exception e) {
+                // output being rewritten, try again
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+}
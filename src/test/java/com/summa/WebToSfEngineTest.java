@@ -0,0 +1,40 @@
+package com.summa;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.summa.WebToSfMojo.Filter;
+
+/** @author bgray */
+public class WebToSfEngineTest {
+
+    @Test
+    public void testBuilder_rendersIntoMemory() throws Exception {
+        WebToSfEngine engine = WebToSfEngine.builder()
+                .filters(newArrayList(new Filter("OLD", "NEW"), new Filter("Foobar", "Foo")))
+                .resourceName("site")
+                .lineSeparator("\n")
+                .build();
+        OutputSink.Memory sink = new OutputSink.Memory();
+
+        engine.renderPage("test", new File(getClass().getResource("test.html").toURI()), sink);
+        String page = new String(sink.pages().get("test"), Charsets.UTF_8);
+        assertThat(page, containsString("<apex:page showHeader=\"false\""));
+        assertThat(page, containsString("<h1>Foo</h1>"));
+        assertThat(page, containsString("<apex:includeScript value=\"{!URLFor($Resource.site, 'js/test.js')}\">"));
+
+        File script = new File("./testOutput/engine/app.js");
+        script.getParentFile().mkdirs();
+        Files.write("var x = 'OLD';\r\n", script, Charsets.UTF_8);
+        engine.renderResource("js/app.js", script, sink);
+        assertEquals("var x = 'NEW';\n", new String(sink.resources().get("site/js/app.js"), Charsets.UTF_8));
+    }
+}
@@ -2,20 +2,48 @@ package com.summa;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.maven.model.FileSet;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.summa.ParallelDeflater.Deflated;
 
 /** @author bgray */
 public class WebToSfMojoTest {
@@ -48,17 +76,17 @@ public class WebToSfMojoTest {
 
         assertTrue("Output missing", this.outputDir.exists());
         assertTrue("pages missing", new File(this.outputDir, "pages").exists());
-        assertTrue("staticresources missing", new File(this.outputDir, "staticresources").exists());
+        assertTrue("staticresources missing", new File(this.outputDir, "staticResources").exists());
 
         // check pages
         assertTrue("test page missing", new File(this.outputDir, "pages/test.page").exists());
         assertTrue("test page meta missing", new File(this.outputDir, "pages/test.page-meta.xml").exists());
 
         // check static resources
-        File resourceBundle = new File(this.outputDir, "staticresources/appzip.resource");
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
         assertTrue("staticresources bundle missing", resourceBundle.exists());
         assertTrue("staticresources bundle meta missing", new File(this.outputDir,
-                "staticresources/appzip.resource-meta.xml").exists());
+                "staticResources/appzip.resource-meta.xml").exists());
 
         File unzipDir = new File(outputDir, UNZIP_DIR);
         TestUtils.unzip(resourceBundle, unzipDir);
@@ -92,6 +120,485 @@ public class WebToSfMojoTest {
         assertTrue("Page did not contain <apex:includeScript> tag", goodCount > 0);
     }
 
+    @Test
+    public void testMojo_report() throws Exception {
+        TestUtils.reflectionSet(mojo, "report", true);
+        mojo.execute();
+
+        File report = new File(this.outputDir, "webtosf-report.json");
+        assertTrue("report missing", report.exists());
+        String json = Joiner.on('\n').join(TestUtils.readFile(report));
+        assertThat(json, containsString("\"HTML\": {\"files\": 1"));
+        assertThat(json, containsString("\"token\": \"<!doctype html>\", \"regex\": false, \"hits\": 1"));
+        assertThat(json, containsString("\"path\": \"test.html\""));
+    }
+
+    @Test
+    public void testMojo_reportTokenizedHtml() throws Exception {
+        TestUtils.reflectionSet(mojo, "report", true);
+        TestUtils.reflectionSet(mojo, "tokenizeHtml", true);
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("Foobar", "Foo")));
+        mojo.execute();
+
+        // the configured filters applied to the text of the page are reported with their text file hits
+        String json = Joiner.on('\n').join(TestUtils.readFile(new File(this.outputDir, "webtosf-report.json")));
+        assertThat(json, containsString("\"token\": \"Foobar\", \"regex\": false, \"hits\": 1,"));
+        assertEquals(1, json.split("\"token\": \"Foobar\"", -1).length - 1);
+    }
+
+    @Test
+    public void testMojo_compressedFilesStored() throws Exception {
+        mojo.execute();
+
+        ZipFile zipFile = new ZipFile(new File(this.outputDir, "staticResources/appzip.resource"));
+        try {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("js/pixel.png").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("js/test.js").getMethod());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testMojo_mappedSameAsStreamed() throws Exception {
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+
+        mojo.execute();
+        Map<String, String> streamedEntries = TestUtils.readZip(resourceBundle);
+
+        setup();
+        TestUtils.reflectionSet(mojo, "mappedThreshold", 0L);
+        TestUtils.reflectionSet(mojo, "bufferSize", 16);
+        mojo.execute();
+        assertEquals(streamedEntries, TestUtils.readZip(resourceBundle));
+
+        // large deflated binaries are compressed by the writer, one entry in memory at a time
+        setup();
+        TestUtils.reflectionSet(mojo, "mappedThreshold", 0L);
+        TestUtils.reflectionSet(mojo, "storedExtensions", newArrayList());
+        TestUtils.reflectionSet(mojo, "inFlightBytes", 1L);
+        TestUtils.reflectionSet(mojo, "threads", 4);
+        mojo.execute();
+        assertEquals(streamedEntries, TestUtils.readZip(resourceBundle));
+        ZipFile zipFile = new ZipFile(resourceBundle);
+        try {
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("js/pixel.png").getMethod());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testMojo_parallelSameAsSequential() throws Exception {
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+        File testPage = new File(this.outputDir, "pages/test.page");
+
+        TestUtils.reflectionSet(mojo, "threads", 1);
+        mojo.execute();
+        Map<String, String> sequentialEntries = TestUtils.readZip(resourceBundle);
+        List<String> sequentialPage = TestUtils.readFile(testPage);
+
+        setup();
+        TestUtils.reflectionSet(mojo, "threads", 4);
+        mojo.execute();
+        assertEquals(sequentialEntries, TestUtils.readZip(resourceBundle));
+        assertEquals(sequentialPage, TestUtils.readFile(testPage));
+    }
+
+    @Test
+    public void testMojo_tokenizedSameAsRegex() throws Exception {
+        File testPage = new File(this.outputDir, "pages/test.page");
+
+        mojo.execute();
+        List<String> regexPage = TestUtils.readFile(testPage);
+
+        setup();
+        TestUtils.reflectionSet(mojo, "tokenizeHtml", true);
+        mojo.execute();
+        assertEquals(regexPage, TestUtils.readFile(testPage));
+    }
+
+    @Test
+    public void testMojo_cachedSameAsUncached() throws Exception {
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+        File cacheDir = new File(this.outputDir, "cache");
+
+        mojo.execute();
+        Map<String, String> uncachedEntries = TestUtils.readZip(resourceBundle);
+
+        // first run fills the cache, second run reads from it
+        for (int i = 0; i < 2; i++) {
+            setup();
+            TestUtils.reflectionSet(mojo, "cache", true);
+            TestUtils.reflectionSet(mojo, "cacheDir", cacheDir);
+            mojo.execute();
+            assertEquals(uncachedEntries, TestUtils.readZip(resourceBundle));
+        }
+        assertTrue("cache not filled", cacheDir.list().length > 0);
+    }
+
+    @Test
+    public void testMojo_cacheKeepsTextAcrossResourceNames() throws Exception {
+        File cacheDir = new File(this.outputDir, "cache");
+        FileUtils.deleteDirectory(cacheDir);
+        for (String zipFilename : Arrays.asList("appzip", "otherzip")) {
+            setup();
+            TestUtils.reflectionSet(mojo, "zipFilename", zipFilename);
+            TestUtils.reflectionSet(mojo, "cache", true);
+            TestUtils.reflectionSet(mojo, "cacheDir", cacheDir);
+            mojo.execute();
+        }
+        // the name of the resource only changes the references written into pages
+        TransformCache transformCache = (TransformCache) TestUtils.reflectionGet(mojo, "transformCache");
+        assertTrue("nothing read from the cache", transformCache.hits() > 0);
+        assertEquals(0, transformCache.misses());
+    }
+
+    @Test
+    public void testSettle_countsTheCompressedBytesOfFinishedEntries() throws Exception {
+        Deque<Future<ResourceEntry>> pending = new ArrayDeque<Future<ResourceEntry>>();
+        pending.add(Futures.immediateFuture(ResourceEntry.deflated("a.js", new File("a.js"),
+                Deflated.of(0, 1000, new byte[10]))));
+        pending.add(Futures.immediateFuture(ResourceEntry.binary("b.png", new File("b.png"))));
+        pending.add(Futures.<ResourceEntry> immediateFuture(null));
+        pending.add(SettableFuture.<ResourceEntry> create());
+        pending.add(Futures.<ResourceEntry> immediateFailedFuture(new IOException("failed")));
+        Deque<Long> sizes = new ArrayDeque<Long>(Arrays.asList(1000L, 1000L, 1000L, 1000L, 1000L));
+
+        assertEquals(2010, WebToSfMojo.settle(pending, sizes));
+        assertEquals(Arrays.asList(10L, 0L, 0L, 1000L, 1000L), newArrayList(sizes));
+    }
+
+    @Test
+    public void testMojo_incrementalSkipsUnchangedOutputs() throws Exception {
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+        File testPage = new File(this.outputDir, "pages/test.page");
+        File resourceMeta = new File(this.outputDir, "staticResources/appzip.resource-meta.xml");
+        File pageMeta = new File(this.outputDir, "pages/test.page-meta.xml");
+
+        TestUtils.reflectionSet(mojo, "incremental", true);
+        mojo.execute();
+        assertTrue("manifest missing", new File(this.outputDir, ".webtosf-manifest").exists());
+        Map<String, String> entries = TestUtils.readZip(resourceBundle);
+        for (File output : newArrayList(resourceBundle, testPage, resourceMeta, pageMeta)) {
+            assertTrue("unable to backdate " + output, output.setLastModified(1000));
+        }
+
+        // nothing changed
+        setup();
+        TestUtils.reflectionSet(mojo, "incremental", true);
+        mojo.execute();
+        assertEquals("archive rewritten", 1000, resourceBundle.lastModified());
+        assertEquals("page rewritten", 1000, testPage.lastModified());
+        assertEquals("resource metadata rewritten", 1000, resourceMeta.lastModified());
+        assertEquals("page metadata rewritten", 1000, pageMeta.lastModified());
+
+        // filters changed
+        setup();
+        TestUtils.reflectionSet(mojo, "incremental", true);
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("Foobar", "Foo")));
+        mojo.execute();
+        assertThat("page not rewritten", testPage.lastModified(), not(1000L));
+        assertThat("archive not rewritten", resourceBundle.lastModified(), not(1000L));
+        assertEquals(entries, TestUtils.readZip(resourceBundle));
+    }
+
+    @Test
+    public void testMojo_bundles() throws Exception {
+        TestUtils.reflectionSet(mojo, "bundles", newArrayList(
+                new WebToSfMojo.Bundle("scripts", newArrayList("**/*.js"))));
+        TestUtils.reflectionSet(mojo, "threads", 4);
+        mojo.execute();
+
+        File staticResourcesDir = new File(this.outputDir, "staticResources");
+        assertTrue("scripts meta missing", new File(staticResourcesDir, "scripts.resource-meta.xml").exists());
+        assertEquals(newArrayList("js/test.js"),
+                newArrayList(TestUtils.readZip(new File(staticResourcesDir, "scripts.resource")).keySet()));
+        assertEquals(newArrayList("js/pixel.png"),
+                newArrayList(TestUtils.readZip(new File(staticResourcesDir, "appzip.resource")).keySet()));
+        String page = Joiner.on('\n').join(TestUtils.readFile(new File(this.outputDir, "pages/test.page")));
+        assertThat(page, containsString("{!URLFor($Resource.scripts, 'js/test.js')}"));
+        assertThat(page, containsString("{!URLFor($Resource.appzip, 'css/app.css')}"));
+
+        // the same split, without a page ever referencing the wrong bundle, when tokenizing html
+        setup();
+        TestUtils.reflectionSet(mojo, "bundles", newArrayList(
+                new WebToSfMojo.Bundle("scripts", newArrayList("**/*.js"))));
+        TestUtils.reflectionSet(mojo, "tokenizeHtml", true);
+        mojo.execute();
+        assertThat(Joiner.on('\n').join(TestUtils.readFile(new File(this.outputDir, "pages/test.page"))),
+                containsString("{!URLFor($Resource.scripts, 'js/test.js')}"));
+    }
+
+    @Test
+    public void testMojo_maxBundleSizeSplitsAndCleansUp() throws Exception {
+        File staticResourcesDir = new File(this.outputDir, "staticResources");
+        File part = new File(staticResourcesDir, "appzip_2.resource");
+        TestUtils.reflectionSet(mojo, "maxBundleSize", 1L);
+        mojo.execute();
+        assertTrue("second part missing", part.exists());
+        assertTrue("second part meta missing", new File(staticResourcesDir, "appzip_2.resource-meta.xml").exists());
+
+        setup();
+        TestUtils.reflectionSet(mojo, "bundles", newArrayList(new WebToSfMojo.Bundle("all", newArrayList("**"))));
+        mojo.execute();
+        assertFalse("stale part kept", part.exists());
+        assertEquals(2, TestUtils.readZip(new File(staticResourcesDir, "all.resource")).size());
+    }
+
+    @Test
+    public void testMojo_minifiedWithHashedNames() throws Exception {
+        TestUtils.reflectionSet(mojo, "minify", true);
+        TestUtils.reflectionSet(mojo, "hashNames", true);
+        mojo.execute();
+
+        Map<String, String> entries = TestUtils.readZip(new File(this.outputDir, "staticResources/appzip.resource"));
+        String script = null;
+        for (String name : entries.keySet()) {
+            if (name.matches("js/test\\.[0-9a-f]{8}\\.js")) {
+                script = name;
+            }
+        }
+        assertTrue("hashed script missing from " + entries.keySet(), script != null);
+        assertTrue("png renamed", entries.containsKey("js/pixel.png"));
+        String page = Joiner.on('\n').join(TestUtils.readFile(new File(this.outputDir, "pages/test.page")));
+        assertThat(page, containsString("{!URLFor($Resource.appzip, '" + script + "')}"));
+        assertThat(page, not(containsString("<!-- lib -->")));
+    }
+
+    @Test
+    public void testMojo_reproducible() throws Exception {
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+        File hashes = new File(this.outputDir, "staticResources.sha256");
+
+        TestUtils.reflectionSet(mojo, "reproducible", true);
+        mojo.execute();
+        byte[] first = Files.toByteArray(resourceBundle);
+        assertEquals(Files.hash(resourceBundle, Hashing.sha256()) + "  staticResources/appzip.resource\n",
+                Files.toString(hashes, Charsets.UTF_8));
+        assertFalse("platform line separator", Files.toString(new File(this.outputDir, "pages/test.page"),
+                Charsets.UTF_8).contains("\r"));
+
+        Thread.sleep(2100);
+        setup();
+        TestUtils.reflectionSet(mojo, "reproducible", true);
+        TestUtils.reflectionSet(mojo, "threads", 1);
+        mojo.execute();
+        assertTrue("archive differs", Arrays.equals(first, Files.toByteArray(resourceBundle)));
+        assertEquals(newArrayList("js/pixel.png", "js/test.js"),
+                newArrayList(TestUtils.readZip(resourceBundle).keySet()));
+
+        ZipFile zipFile = new ZipFile(resourceBundle);
+        try {
+            assertEquals(new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis(),
+                    zipFile.getEntry("js/test.js").getTime());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testMojo_parallelExecutionsShareTheOutputDir() throws Exception {
+        List<WebToSfMojo.Filter> filters = createFilters();
+        final List<WebToSfMojo> mojos = newArrayList();
+        for (int i = 0; i < 4; i++) {
+            setup();
+            TestUtils.reflectionSet(mojo, "filters", filters);
+            // the same directory, by another path
+            TestUtils.reflectionSet(mojo, "outputDir", new File(this.outputDir, "../" + this.outputDir.getName()));
+            TestUtils.reflectionSet(mojo, "threads", 2);
+            mojos.add(mojo);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(mojos.size());
+        try {
+            List<Future<?>> executions = newArrayList();
+            for (final WebToSfMojo each : mojos) {
+                executions.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        each.execute();
+                        each.execute();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> execution : executions) {
+                execution.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the configured filters are left as injected
+        assertTrue(filters.isEmpty());
+        for (String dir : newArrayList("pages", "staticResources")) {
+            for (String name : new File(this.outputDir, dir).list()) {
+                assertFalse("temporary file left " + name, name.endsWith(".tmp"));
+            }
+        }
+        assertTrue("test.js missing", TestUtils.readZip(new File(this.outputDir, "staticResources/appzip.resource"))
+                .containsKey("js/test.js"));
+        assertThat(Files.toString(new File(this.outputDir, "pages/test.page"), Charsets.UTF_8),
+                containsString("<apex:includeScript"));
+    }
+
+    @Test
+    public void testMojo_treeShakeLeavesOutUnreferencedFiles() throws Exception {
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+        TestUtils.reflectionSet(mojo, "treeShake", true);
+        TestUtils.reflectionSet(mojo, "report", true);
+        mojo.execute();
+
+        assertEquals(newArrayList("js/test.js"), newArrayList(TestUtils.readZip(resourceBundle).keySet()));
+        assertThat(Files.toString(new File(this.outputDir, "webtosf-report.json"), Charsets.UTF_8),
+                containsString("\"unreferencedFiles\": [\n    \"js/pixel.png\"\n  ]"));
+
+        // kept when asked to
+        setup();
+        TestUtils.reflectionSet(mojo, "treeShake", true);
+        TestUtils.reflectionSet(mojo, "treeShakeKeeps", newArrayList("**/*.png"));
+        mojo.execute();
+        assertTrue("pixel.png missing", TestUtils.readZip(resourceBundle).containsKey("js/pixel.png"));
+    }
+
+    @Test
+    public void testMojo_dedupeStoresCopiesOnce() throws Exception {
+        File webapp = new File(this.outputDir, "dedupe").getCanonicalFile();
+        FileUtils.deleteDirectory(webapp);
+        write(webapp, "index.html", "<script src=\"js/lib/jquery.js\"></script>\n"
+                + "<script src=\"admin/js/jquery.js\"></script>\n<link rel=\"stylesheet\" href=\"css/app.css\">");
+        write(webapp, "js/lib/jquery.js", "var jquery = 'OLD';\n");
+        write(webapp, "admin/js/jquery.js", "var jquery = 'NEW';\n");
+        write(webapp, "admin/js/jquery.txt", "var jquery = 'NEW';\n");
+        write(webapp, "css/app.css", "h1 { background: url(img/logo.png) }\n");
+        write(webapp, "css/img/logo.png", "png");
+        write(webapp, "img/logo.png", "png");
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(webapp.getPath());
+        File output = new File(this.outputDir, "dedupeOutput");
+        FileUtils.deleteDirectory(output);
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "outputDir", output);
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("OLD", "NEW")));
+        TestUtils.reflectionSet(mojo, "dedupe", true);
+        TestUtils.reflectionSet(mojo, "report", true);
+        mojo.execute();
+
+        // the same once filtered, the first in path order is kept; a copy referenced by a stylesheet is preferred
+        assertEquals(newArrayList("admin/js/jquery.js", "admin/js/jquery.txt", "css/app.css", "css/img/logo.png"),
+                newArrayList(new TreeSet<String>(TestUtils.readZip(new File(output,
+                        "staticResources/appzip.resource")).keySet())));
+        String page = Joiner.on('\n').join(TestUtils.readFile(new File(output, "pages/index.page")));
+        assertThat(page, not(containsString("js/lib/jquery.js")));
+        assertEquals(2, page.split("URLFor\\(\\$Resource.appzip, 'admin/js/jquery.js'\\)", -1).length - 1);
+        assertThat(Files.toString(new File(output, "webtosf-report.json"), Charsets.UTF_8),
+                containsString("\"duplicateSourceBytes\": 23,\n  \"duplicateFiles\": [\n"
+                + "    {\"path\": \"img/logo.png\", \"canonical\": \"css/img/logo.png\"},\n"
+                + "    {\"path\": \"js/lib/jquery.js\", \"canonical\": \"admin/js/jquery.js\"}\n  ]"));
+    }
+
+    @Test
+    public void testMojo_partialsInlinedIntoEveryPage() throws Exception {
+        File webapp = new File(this.outputDir, "partials").getCanonicalFile();
+        FileUtils.deleteDirectory(webapp);
+        write(webapp, "index.html", "<div ng-app=\"app\" ng-view></div>\n<script src=\"js/app.js\"></script>");
+        write(webapp, "admin.html", "<div ng-app=\"app\" ng-view></div>");
+        write(webapp, "partials/list.html", "<ul>\n  <li ng-repeat=\"x in xs\">{{x}} OLD</li>\n</ul>\n");
+        write(webapp, "partials/detail.html", "<p title='it''s'>{{x}}</p>\n");
+        write(webapp, "js/app.js", "templateUrl: 'partials/list.html'");
+        FileSet fileSet = new FileSet();
+        fileSet.setDirectory(webapp.getPath());
+        File output = new File(this.outputDir, "partialsOutput");
+        FileUtils.deleteDirectory(output);
+        write(output, "pages/partialslist.page", "left by a run that did not inline partials");
+        TestUtils.reflectionSet(mojo, "webappDir", fileSet);
+        TestUtils.reflectionSet(mojo, "outputDir", output);
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("OLD", "NEW")));
+        TestUtils.reflectionSet(mojo, "partials", newArrayList("partials/"));
+        TestUtils.reflectionSet(mojo, "reproducible", true);
+        mojo.execute();
+
+        assertEquals(newArrayList("admin.page", "admin.page-meta.xml", "index.page", "index.page-meta.xml"),
+                newArrayList(new TreeSet<String>(Arrays.asList(new File(output, "pages").list()))));
+        String templates = "<script type=\"text/ng-template\" id=\"partials/detail.html\">\n"
+                + "<p title='it''s'>{{x}}</p>\n</script>\n"
+                + "<script type=\"text/ng-template\" id=\"partials/list.html\">\n"
+                + "<ul>\n  <li ng-repeat=\"x in xs\">{{x}} NEW</li>\n</ul>\n</script>\n</apex:page>";
+        assertTrue(Files.toString(new File(output, "pages/index.page"), Charsets.UTF_8).endsWith(templates));
+        assertTrue(Files.toString(new File(output, "pages/admin.page"), Charsets.UTF_8).endsWith(templates));
+        assertFalse("partial archived", TestUtils.readZip(new File(output, "staticResources/appzip.resource"))
+                .containsKey("partials/list.html"));
+
+        // a script in a partial would end its ng-template block
+        write(webapp, "partials/detail.html", "<p title='it''s'>{{x}}</p><script></script>\n");
+        try {
+            mojo.execute();
+            fail("partial ending its ng-template block inlined");
+        } catch (MojoExecutionException e) {
+            assertThat(e.getMessage(), containsString("partials/detail.html contains </script>"));
+        }
+
+        // unless put into the template cache of the application module
+        TestUtils.reflectionSet(mojo, "partialsModule", "app");
+        mojo.execute();
+        assertTrue(Files.toString(new File(output, "pages/admin.page"), Charsets.UTF_8).endsWith("<script>\n"
+                + "angular.module('app').run(['$templateCache', function($templateCache) {\n"
+                + "    $templateCache.put('partials/detail.html', '<p title=\\'it\\'\\'s\\'>{{x}}<\\/p>"
+                + "<script><\\/script>');\n"
+                + "    $templateCache.put('partials/list.html', '<ul>\\n  <li ng-repeat=\"x in xs\">{{x}} NEW<\\/li>"
+                + "\\n<\\/ul>');\n"
+                + "}]);\n</script>\n</apex:page>"));
+    }
+
+    @Test
+    public void testMojo_overlaysCopyUnfilteredEntriesCompressed() throws Exception {
+        File jar = new File(this.outputDir, "lib-1.0.jar");
+        String prefix = "META-INF/resources/webjars/lib/1.0/";
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(jar);
+        try {
+            for (String[] entry : new String[][] { { "META-INF/MANIFEST.MF", "Manifest-Version: 1.0" },
+                    { prefix + "lib.js", "var version = 'OLD';" }, { prefix + "lib.css", "a { color: red }" },
+                    { prefix + "test.js", "overlay" } }) {
+                zos.putArchiveEntry(new ZipArchiveEntry(entry[0]));
+                zos.write(entry[1].getBytes(Charsets.UTF_8));
+                zos.closeArchiveEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        TestUtils.reflectionSet(mojo, "filters", newArrayList(new WebToSfMojo.Filter("OLD", "NEW")));
+        TestUtils.reflectionSet(mojo, "overlays", newArrayList(new WebToSfMojo.Overlay(jar, prefix, "js")));
+        mojo.execute();
+
+        File resourceBundle = new File(this.outputDir, "staticResources/appzip.resource");
+        Map<String, String> entries = TestUtils.readZip(resourceBundle);
+        assertEquals(newArrayList("js/lib.css", "js/lib.js", "js/pixel.png", "js/test.js"),
+                newArrayList(new TreeSet<String>(entries.keySet())));
+        assertEquals("var version = 'NEW';", entries.get("js/lib.js").trim());
+        assertEquals("", entries.get("js/test.js"));
+
+        // copied with the compressed bytes of the overlay
+        org.apache.commons.compress.archivers.zip.ZipFile source =
+                new org.apache.commons.compress.archivers.zip.ZipFile(jar);
+        org.apache.commons.compress.archivers.zip.ZipFile archive =
+                new org.apache.commons.compress.archivers.zip.ZipFile(resourceBundle);
+        try {
+            ZipArchiveEntry original = source.getEntry(prefix + "lib.css");
+            ZipArchiveEntry copy = archive.getEntry("js/lib.css");
+            assertEquals(original.getCrc(), copy.getCrc());
+            assertTrue(Arrays.equals(ByteStreams.toByteArray(source.getRawInputStream(original)),
+                    ByteStreams.toByteArray(archive.getRawInputStream(copy))));
+        } finally {
+            source.close();
+            archive.close();
+        }
+    }
+
+    private static void write(File dir, String path, String content) throws Exception {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
     private FileSet createFileSet() {
         URL url = getClass().getResource(getClass().getSimpleName() + ".class");
         String path = url.toExternalForm();